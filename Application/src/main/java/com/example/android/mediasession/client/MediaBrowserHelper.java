@@ -18,6 +18,7 @@ package com.example.android.mediasession.client;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -28,6 +29,7 @@ import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaControllerCompat.Callback;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v4.os.ResultReceiver;
 import android.util.Log;
 
 import com.example.android.mediasession.service.MusicService;
@@ -104,6 +106,15 @@ public class MediaBrowserHelper {
     protected void onConnected(@NonNull MediaControllerCompat mediaController) {
     }
 
+    /**
+     * Called after connecting to pick the node whose children are delivered to
+     * {@link #onChildrenLoaded(String, List)}. Subscribes to the browser root by default.
+     */
+    @NonNull
+    protected String getSubscriptionMediaId(@NonNull String rootMediaId) {
+        return rootMediaId;
+    }
+
     /**
      * Called after loading a browsable {@link MediaBrowserCompat.MediaItem}
      *
@@ -150,6 +161,27 @@ public class MediaBrowserHelper {
         return mMediaController.getTransportControls();
     }
 
+    /**
+     * Sends a custom command to the connected session, adding the
+     * {@link MusicService#EXTRA_COMMAND_TOKEN} the service gave this browser, if any, to
+     * {@code extras}. Does nothing while disconnected.
+     */
+    public void sendCommand(@NonNull String command,
+                            @Nullable Bundle extras,
+                            @Nullable ResultReceiver cb) {
+        if (mMediaController == null) {
+            Log.d(TAG, "sendCommand: not connected, dropping " + command);
+            return;
+        }
+        final Bundle args = extras != null ? new Bundle(extras) : new Bundle();
+        final Bundle rootExtras = mMediaBrowser.getExtras();
+        if (rootExtras != null && rootExtras.containsKey(MusicService.EXTRA_COMMAND_TOKEN)) {
+            args.putString(MusicService.EXTRA_COMMAND_TOKEN,
+                           rootExtras.getString(MusicService.EXTRA_COMMAND_TOKEN));
+        }
+        mMediaController.sendCommand(command, args, cb);
+    }
+
     public void registerCallback(Callback callback) {
         if (callback != null) {
             mCallbackList.add(callback);
@@ -208,7 +240,8 @@ public class MediaBrowserHelper {
                 throw new RuntimeException(e);
             }
 
-            mMediaBrowser.subscribe(mMediaBrowser.getRoot(), mMediaBrowserSubscriptionCallback);
+            mMediaBrowser.subscribe(getSubscriptionMediaId(mMediaBrowser.getRoot()),
+                                    mMediaBrowserSubscriptionCallback);
         }
     }
 
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserServiceCompat.Result;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs browse requests from {@link MusicService#onLoadChildren} on a small, bounded background
+ * executor so the service looper never waits on the catalog.
+ * <p>
+ * Requests are keyed (typically by parent media ID and paging options). While a load for a key
+ * is in flight, further requests for the same key are attached to it and all of them receive
+ * the single result. Results are always delivered on the main thread.
+ * <p>
+ * All public methods must be called from the main thread.
+ */
+public class ChildrenLoader {
+
+    private static final String TAG = ChildrenLoader.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 2;
+    private static final int MAX_QUEUED_LOADS = 32;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, PendingLoad> mInFlight = new HashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    // Metrics. Only touched on the main thread.
+    private int mRequestCount;
+    private int mCoalescedCount;
+    private int mRejectedCount;
+    private int mLoadCount;
+    private int mMaxQueueDepth;
+    private long mTotalWaitMs;
+    private long mTotalLoadMs;
+    private long mMaxLoadMs;
+
+    public ChildrenLoader() {
+        mExecutor = new ThreadPoolExecutor(
+                THREAD_COUNT,
+                THREAD_COUNT,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_LOADS),
+                new CatalogThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Detaches {@code result} and loads its children in the background with {@code loader}.
+     * If a load for {@code key} is already running, {@code result} shares it instead.
+     */
+    public void load(@NonNull String key,
+                     @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                     @NonNull Callable<List<MediaBrowserCompat.MediaItem>> loader) {
+        mRequestCount++;
+        result.detach();
+
+        final PendingLoad existing = mInFlight.get(key);
+        if (existing != null) {
+            existing.mResults.add(result);
+            mCoalescedCount++;
+            return;
+        }
+
+        final PendingLoad pending = new PendingLoad(key, loader);
+        pending.mResults.add(result);
+        try {
+            mExecutor.execute(pending);
+        } catch (RejectedExecutionException e) {
+            // The queue is full (or we're shutting down). A null result is reported to the
+            // subscriber as an error, which is better than stalling the main thread.
+            mRejectedCount++;
+            Log.w(TAG, "load: rejected " + key + ", " + mExecutor.getQueue().size() + " queued");
+            result.sendResult(null);
+            return;
+        }
+        mInFlight.put(key, pending);
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mExecutor.getQueue().size());
+    }
+
+    /**
+     * Stops accepting work. Loads that haven't finished are dropped without a result since the
+     * service is going away.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mInFlight.clear();
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public long getAverageLoadMs() {
+        return mLoadCount == 0 ? 0 : mTotalLoadMs / mLoadCount;
+    }
+
+    public long getMaxLoadMs() {
+        return mMaxLoadMs;
+    }
+
+    @Override
+    public String toString() {
+        return "ChildrenLoader{requests=" + mRequestCount
+                + ", coalesced=" + mCoalescedCount
+                + ", rejected=" + mRejectedCount
+                + ", loads=" + mLoadCount
+                + ", queueDepth=" + getQueueDepth()
+                + ", maxQueueDepth=" + mMaxQueueDepth
+                + ", avgWaitMs=" + (mLoadCount == 0 ? 0 : mTotalWaitMs / mLoadCount)
+                + ", avgLoadMs=" + getAverageLoadMs()
+                + ", maxLoadMs=" + mMaxLoadMs
+                + "}";
+    }
+
+    private void onLoadFinished(PendingLoad pending, List<MediaBrowserCompat.MediaItem> items) {
+        if (mInFlight.get(pending.mKey) != pending) {
+            // Dropped by shutdown().
+            return;
+        }
+        mInFlight.remove(pending.mKey);
+
+        final long waitMs = pending.mStartedAt - pending.mQueuedAt;
+        final long loadMs = pending.mFinishedAt - pending.mStartedAt;
+        mLoadCount++;
+        mTotalWaitMs += waitMs;
+        mTotalLoadMs += loadMs;
+        mMaxLoadMs = Math.max(mMaxLoadMs, loadMs);
+        Log.d(TAG, "onLoadFinished: " + pending.mKey + " waited " + waitMs + "ms, loaded in "
+                + loadMs + "ms for " + pending.mResults.size() + " subscriber(s)");
+
+        for (Result<List<MediaBrowserCompat.MediaItem>> result : pending.mResults) {
+            result.sendResult(items);
+        }
+    }
+
+    private final class PendingLoad implements Runnable {
+        private final String mKey;
+        private final Callable<List<MediaBrowserCompat.MediaItem>> mLoader;
+        private final List<Result<List<MediaBrowserCompat.MediaItem>>> mResults =
+                new ArrayList<>(1);
+        private final long mQueuedAt = SystemClock.elapsedRealtime();
+        private volatile long mStartedAt;
+        private volatile long mFinishedAt;
+
+        private PendingLoad(String key, Callable<List<MediaBrowserCompat.MediaItem>> loader) {
+            mKey = key;
+            mLoader = loader;
+        }
+
+        @Override
+        public void run() {
+            mStartedAt = SystemClock.elapsedRealtime();
+            List<MediaBrowserCompat.MediaItem> items;
+            try {
+                items = mLoader.call();
+            } catch (Exception e) {
+                Log.e(TAG, "run: failed to load " + mKey, e);
+                items = null;
+            }
+            mFinishedAt = SystemClock.elapsedRealtime();
+
+            final List<MediaBrowserCompat.MediaItem> loaded = items;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoadFinished(PendingLoad.this, loaded);
+                }
+            });
+        }
+    }
+
+    private static final class CatalogThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "catalog-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -17,9 +17,17 @@
 package com.example.android.mediasession.service;
 
 import android.app.Notification;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
@@ -27,33 +35,199 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v4.os.ResultReceiver;
 import android.util.Log;
 
+import com.example.android.mediasession.service.contentcatalogs.BrowseTree;
+import com.example.android.mediasession.service.contentcatalogs.CatalogSnapshot;
+import com.example.android.mediasession.service.contentcatalogs.MediaScanner;
+import com.example.android.mediasession.service.contentcatalogs.MusicCatalog;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.contentcatalogs.SearchIndex;
+import com.example.android.mediasession.service.contentcatalogs.TrackDownloader;
 import com.example.android.mediasession.service.notifications.MediaNotificationManager;
 import com.example.android.mediasession.service.players.MediaPlayerAdapter;
+import com.example.android.mediasession.service.players.StreamingPlayerAdapter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 public class MusicService extends MediaBrowserServiceCompat {
 
     private static final String TAG = MusicService.class.getSimpleName();
 
+    /**
+     * Custom session command that appends a list of media IDs to the queue in a single call.
+     * The IDs are passed as a string array list in {@link #EXTRA_MEDIA_IDS}; the number of
+     * items queued is sent back as the result code.
+     */
+    public static final String COMMAND_ENQUEUE_MEDIA_IDS =
+            "com.example.android.mediasession.ENQUEUE_MEDIA_IDS";
+    public static final String EXTRA_MEDIA_IDS = "com.example.android.mediasession.MEDIA_IDS";
+
+    /**
+     * Custom session command that sets how many queue items are published through
+     * {@code setQueue()}, passed as an int in {@link #EXTRA_QUEUE_WINDOW_SIZE}.
+     */
+    public static final String COMMAND_SET_QUEUE_WINDOW =
+            "com.example.android.mediasession.SET_QUEUE_WINDOW";
+    public static final String EXTRA_QUEUE_WINDOW_SIZE =
+            "com.example.android.mediasession.QUEUE_WINDOW_SIZE";
+
+    /**
+     * Custom session command that scans a directory for music, replacing the catalog with the
+     * built-in tracks plus whatever is found. The absolute path is passed as a string in
+     * {@link #EXTRA_SCAN_DIRECTORY} and remembered for later sessions; without it the last
+     * directory is rescanned. Needs {@link #EXTRA_COMMAND_TOKEN}.
+     */
+    public static final String COMMAND_SCAN = "com.example.android.mediasession.SCAN";
+    public static final String EXTRA_SCAN_DIRECTORY =
+            "com.example.android.mediasession.SCAN_DIRECTORY";
+
+    /**
+     * Custom session command that streams music from a media server, passed as a base URL in
+     * {@link #EXTRA_STREAM_SERVER_URL} that bundled tracks are fetched from by name. The URL is
+     * remembered for later sessions; without it, music is played from the app again. Needs
+     * {@link #EXTRA_COMMAND_TOKEN}.
+     */
+    public static final String COMMAND_SET_STREAM_SERVER =
+            "com.example.android.mediasession.SET_STREAM_SERVER";
+    public static final String EXTRA_STREAM_SERVER_URL =
+            "com.example.android.mediasession.STREAM_SERVER_URL";
+
+    /**
+     * Custom session command that downloads tracks for offline playback, from the server set
+     * with {@link #COMMAND_SET_STREAM_SERVER} or the track's own URL. The media IDs are passed
+     * as a string array list in {@link #EXTRA_MEDIA_IDS}, optionally with their files' SHA-256
+     * in hex, in the same order, in {@link #EXTRA_DOWNLOAD_CHECKSUMS}; the number of downloads
+     * started is sent back as the result code. Needs {@link #EXTRA_COMMAND_TOKEN}.
+     */
+    public static final String COMMAND_DOWNLOAD = "com.example.android.mediasession.DOWNLOAD";
+    public static final String EXTRA_DOWNLOAD_CHECKSUMS =
+            "com.example.android.mediasession.DOWNLOAD_CHECKSUMS";
+
+    /**
+     * String in the root extras of browsers of this app, or of apps signed with the same key,
+     * that {@link #COMMAND_SCAN}, {@link #COMMAND_SET_STREAM_SERVER} and
+     * {@link #COMMAND_DOWNLOAD} must carry in their extras. It changes whenever the service is
+     * recreated, which also disconnects its browsers.
+     */
+    public static final String EXTRA_COMMAND_TOKEN =
+            "com.example.android.mediasession.COMMAND_TOKEN";
+
+    /**
+     * Browsable node whose children are the whole play queue, in order. Each child carries its
+     * queue ID in {@link #EXTRA_QUEUE_ID} so it can be played with {@code skipToQueueItem()}.
+     */
+    public static final String QUEUE_MEDIA_ID = "__QUEUE__";
+    public static final String EXTRA_QUEUE_ID = "com.example.android.mediasession.QUEUE_ID";
+
+    /**
+     * Optional extras of {@code playFromMediaId()} and {@code prepareFromMediaId()} naming
+     * where the item was picked, which becomes the queue: either the browse node it was listed
+     * under, as a string in {@link #EXTRA_PARENT_MEDIA_ID}, or the search query that found it,
+     * as a string in {@link #EXTRA_SEARCH_QUERY} along with the extras the search was made
+     * with. Without either, the item's album is queued.
+     */
+    public static final String EXTRA_PARENT_MEDIA_ID =
+            "com.example.android.mediasession.PARENT_MEDIA_ID";
+    public static final String EXTRA_SEARCH_QUERY =
+            "com.example.android.mediasession.SEARCH_QUERY";
+
+    /**
+     * Root returned to browsers asking for {@link BrowserRoot#EXTRA_RECENT}, e.g. the system
+     * offering to resume playback. Its only child is the item playback would resume with.
+     */
+    public static final String RECENT_ROOT_ID = "__RECENT__";
+
+    // Queue browse requests without paging options get at most this many items.
+    private static final int MAX_UNPAGED_QUEUE_ITEMS = 500;
+
+    // Search results returned to browsers, and queued by onPlayFromSearch().
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    // Playing an item from the whole catalog queues at most this many tracks around it.
+    private static final int MAX_CATALOG_QUEUE_ITEMS = 500;
+
+    // Keys of the children loader, and queue contexts: browse nodes and searches are told
+    // apart by these, since a parent media ID can be any string.
+    private static final String CHILDREN_KEY_PREFIX = "children/";
+    private static final String SEARCH_KEY_PREFIX = "search/";
+
+    private static final String SNAPSHOT_FILENAME = "catalog.snapshot";
+
+    private static final String SCAN_MANIFEST_FILENAME = "scan.manifest";
+    private static final String QUEUE_JOURNAL_FILENAME = "queue.journal";
+    // Not under the scanned music directory, so downloads aren't cataloged twice.
+    private static final String DOWNLOADS_DIRNAME = "downloads";
+    private static final int MAX_DOWNLOAD_CONNECTIONS = 4;
+    private static final int DOWNLOAD_CONNECT_TIMEOUT_MS = 10000;
+    private static final int DOWNLOAD_READ_TIMEOUT_MS = 30000;
+
+    // While playing, the position is saved this often, so a crash loses at most this much.
+    private static final long POSITION_CHECKPOINT_INTERVAL_MS = 10000;
+    private static final String PREFERENCES_NAME = "music_service";
+    private static final String PREF_SCAN_DIRECTORY = "scan_directory";
+    private static final String PREF_STREAM_SERVER = "stream_server";
+    private static final String PREF_SHUFFLE_MODE = "shuffle_mode";
+    private static final String PREF_SHUFFLE_SEED = "shuffle_seed";
+    private static final String PREF_SHUFFLE_BASE = "shuffle_base";
+    private static final String PREF_SHUFFLE_CAPACITY = "shuffle_capacity";
+    // Bounds on how many queue IDs a shuffle order covers.
+    private static final int MIN_SHUFFLE_CAPACITY = 16;
+    private static final int MAX_SHUFFLE_CAPACITY = 1 << 30;
+    private static final String PREF_REPEAT_MODE = "repeat_mode";
+
     private MediaSessionCompat mSession;
     private PlayerAdapter mPlayback;
+    private MediaPlayerListener mPlayerListener;
     private MediaNotificationManager mMediaNotificationManager;
     private MediaSessionCallback mCallback;
+    private ChildrenLoader mChildrenLoader;
+    private MediaScanner mScanner;
+    // Whether MusicLibrary holds the scanned catalog yet, rather than only the built-in tracks.
+    // Also read on loader threads.
+    private volatile boolean mCatalogScanned;
+    private QueueJournal mQueueJournal;
+    private TrackDownloader mDownloader;
+    private final Handler mHandler = new Handler();
     private boolean mServiceInStartedState;
+    private final String mCommandToken = UUID.randomUUID().toString();
+
+    // Guarded by "this"; opened by the first browse request that needs it.
+    private CatalogSnapshot mSnapshot;
+    private boolean mSnapshotOpened;
 
     @Override
     public void onCreate() {
+        final long start = SystemClock.elapsedRealtime();
         super.onCreate();
 
         // Create a new MediaSession.
         mSession = new MediaSessionCompat(this, "MusicService");
         mCallback = new MediaSessionCallback();
         mSession.setCallback(mCallback);
+
+        // The queue of the previous instance, so a media button press carries on with it. The
+        // item to resume is known right away; the queue follows from a background thread.
+        mQueueJournal = new QueueJournal(new File(getFilesDir(), QUEUE_JOURNAL_FILENAME));
+        mCallback.restoreHead(mQueueJournal.readHead());
+        final long restoredAt = SystemClock.elapsedRealtime();
+        mQueueJournal.restore(new QueueJournal.RestoreListener() {
+            @Override
+            public void onRestored(@Nullable QueueJournal.State state) {
+                mCallback.restore(state);
+                Log.d(TAG, "onRestored: " + (state != null ? state.mQueue.size() : 0)
+                        + " queue items in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        });
         mSession.setFlags(
                 MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
@@ -62,8 +236,30 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         mMediaNotificationManager = new MediaNotificationManager(this);
 
-        mPlayback = new MediaPlayerAdapter(this, new MediaPlayerListener());
+        mPlayerListener = new MediaPlayerListener();
+        mPlayback = createPlayback();
+        mChildrenLoader = new ChildrenLoader();
+
+        // Tracks found by the previous scan are restored from its manifest first, then the
+        // directory is checked for changes.
+        mScanner = new MediaScanner(new File(getFilesDir(), SCAN_MANIFEST_FILENAME),
+                                    new ScanListener());
+        final File scanDirectory = getScanDirectory();
+        if (scanDirectory != null) {
+            mScanner.scan(scanDirectory);
+        } else {
+            mCatalogScanned = true;
+        }
+        // Tracks downloaded earlier play from local storage again; unfinished downloads resume.
+        mDownloader = new TrackDownloader(new File(getFilesDir(), DOWNLOADS_DIRNAME),
+                                          MAX_DOWNLOAD_CONNECTIONS,
+                                          DOWNLOAD_CONNECT_TIMEOUT_MS,
+                                          DOWNLOAD_READ_TIMEOUT_MS,
+                                          new DownloadListener());
+        mDownloader.restore();
         Log.d(TAG, "onCreate: MusicService creating MediaSession, and MediaNotificationManager");
+        Log.d(TAG, "onCreate: restored the current item in " + (restoredAt - start)
+                + "ms, ready in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
     @Override
@@ -74,8 +270,19 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     @Override
     public void onDestroy() {
+        Log.d(TAG, "onDestroy: " + mChildrenLoader + ", " + MusicLibrary.getAlbumArtCache()
+                + ", " + MusicLibrary.getMetadataCache() + ", " + mDownloader);
+        mChildrenLoader.shutdown();
+        mScanner.shutdown();
+        mDownloader.shutdown();
+        mHandler.removeCallbacksAndMessages(null);
+        mCallback.checkpointPosition();
+        mQueueJournal.close();
+        mCallback.mQueuePublisher.release();
         mMediaNotificationManager.onDestroy();
         mPlayback.stop();
+        // The stop still runs on the player thread, but its updates don't reach the session.
+        mPlayback.release();
         mSession.release();
         Log.d(TAG, "onDestroy: MediaPlayerAdapter stopped, and MediaSession released");
     }
@@ -84,46 +291,505 @@ public class MusicService extends MediaBrowserServiceCompat {
     public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                  int clientUid,
                                  Bundle rootHints) {
-        return new BrowserRoot(MusicLibrary.getRoot(), null);
+        // Deliberately doesn't touch MusicLibrary, so answering doesn't wait for the catalog.
+        if (rootHints != null && rootHints.getBoolean(BrowserRoot.EXTRA_RECENT)) {
+            if (mCallback.getRecentItem() == null) {
+                // Nothing to resume, so there must be no recent root.
+                return null;
+            }
+            final Bundle extras = new Bundle();
+            extras.putBoolean(BrowserRoot.EXTRA_RECENT, true);
+            return new BrowserRoot(RECENT_ROOT_ID, extras);
+        }
+        // Session commands don't say who sent them before API 24, so the commands that change
+        // where music comes from are authorized by a token that only trusted browsers get.
+        Bundle extras = null;
+        if (isTrustedCaller(clientUid)) {
+            extras = new Bundle();
+            extras.putString(EXTRA_COMMAND_TOKEN, mCommandToken);
+        }
+        return new BrowserRoot(BrowseTree.ROOT_ID, extras);
+    }
+
+    /**
+     * @return whether {@code uid} is this app, or an app signed with the same key.
+     */
+    private boolean isTrustedCaller(int uid) {
+        return uid == Process.myUid()
+                || getPackageManager().checkSignatures(uid, Process.myUid())
+                        == PackageManager.SIGNATURE_MATCH;
     }
 
     @Override
     public void onLoadChildren(
             @NonNull final String parentMediaId,
             @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(MusicLibrary.getMediaItems());
+        if (QUEUE_MEDIA_ID.equals(parentMediaId)) {
+            result.sendResult(mCallback.getQueueItems(0, MAX_UNPAGED_QUEUE_ITEMS));
+            return;
+        }
+        if (RECENT_ROOT_ID.equals(parentMediaId)) {
+            result.sendResult(mCallback.getRecentItems());
+            return;
+        }
+        loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void onLoadChildren(
+            @NonNull final String parentMediaId,
+            @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result,
+            @NonNull final Bundle options) {
+        final int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        final int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            onLoadChildren(parentMediaId, result);
+            return;
+        }
+
+        if (QUEUE_MEDIA_ID.equals(parentMediaId)) {
+            // The queue lives on the main thread and a slice of it is O(log n + page), so
+            // there is no point going through the loader.
+            result.sendResult(mCallback.getQueueItems(page, pageSize));
+            return;
+        }
+
+        // Paging is handled here rather than by MediaBrowserServiceCompat so that only the
+        // requested slice of the catalog is ever built.
+        loadChildren(parentMediaId, result, page, pageSize);
+    }
+
+    private void loadChildren(final String parentMediaId,
+                              Result<List<MediaBrowserCompat.MediaItem>> result,
+                              final int page,
+                              final int pageSize) {
+        // The page comes first, as the media ID may contain anything.
+        final String key = CHILDREN_KEY_PREFIX + page + '/' + pageSize + '/' + parentMediaId;
+        mChildrenLoader.load(key, result,
+                new Callable<List<MediaBrowserCompat.MediaItem>>() {
+                    @Override
+                    public List<MediaBrowserCompat.MediaItem> call() {
+                        if (BrowseTree.ALL_TRACKS_ID.equals(parentMediaId)) {
+                            final CatalogSnapshot snapshot = getSnapshot();
+                            if (snapshot != null) {
+                                return snapshot.getMediaItems(page, pageSize);
+                            }
+                        }
+                        return BrowseTree.getChildren(MusicService.this,
+                                                      MusicLibrary.getCatalog(),
+                                                      parentMediaId,
+                                                      page,
+                                                      pageSize);
+                    }
+                });
+    }
+
+    /**
+     * Maps the catalog snapshot, writing it first if it's missing or stale. A snapshot is
+     * current if it was written by this install of the app from the catalog of the last scan,
+     * which the scan manifest's version identifies; so on a cold start it stands in for the
+     * catalog the scanner is about to restore. Called on loader threads.
+     *
+     * @return the snapshot, or null if it can't be used.
+     */
+    private synchronized CatalogSnapshot getSnapshot() {
+        if (mSnapshotOpened) {
+            return mSnapshot;
+        }
+
+        final long installTime;
+        try {
+            installTime = getPackageManager().getPackageInfo(getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "getSnapshot: can't find own package", e);
+            mSnapshotOpened = true;
+            return null;
+        }
+        // Read first: once scanned, the catalog is the scanned one or a later one.
+        final boolean scanned = mCatalogScanned;
+        final MusicCatalog catalog = MusicLibrary.getCatalog();
+        final long manifestVersion =
+                scanned ? catalog.getSourceVersion() : mScanner.getManifestVersion();
+        // The built-in tracks come with the app, the rest from the manifest.
+        final long sourceVersion = installTime * 31 + manifestVersion;
+        final File file = new File(getCacheDir(), SNAPSHOT_FILENAME);
+        final long start = SystemClock.elapsedRealtime();
+        mSnapshot = CatalogSnapshot.open(file, sourceVersion);
+        if (mSnapshot != null) {
+            mSnapshotOpened = true;
+            Log.d(TAG, "getSnapshot: mapped " + mSnapshot.size() + " tracks in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            return mSnapshot;
+        }
+
+        if (catalog.getSourceVersion() != manifestVersion) {
+            // The scanner is still restoring the catalog; tried again with the next request.
+            return null;
+        }
+        // The catalog has been built anyway, so save it for next time.
+        mSnapshotOpened = true;
+        try {
+            CatalogSnapshot.write(catalog, file, sourceVersion);
+            mSnapshot = CatalogSnapshot.open(file, sourceVersion);
+            Log.d(TAG, "getSnapshot: wrote snapshot in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (IOException e) {
+            Log.w(TAG, "getSnapshot: failed to write " + file, e);
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Drops the snapshot so the next browse request writes a new one from the current catalog.
+     */
+    private synchronized void invalidateSnapshot() {
+        mSnapshot = null;
+        mSnapshotOpened = false;
+        final File file = new File(getCacheDir(), SNAPSHOT_FILENAME);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "invalidateSnapshot: failed to delete " + file);
+        }
+    }
+
+    /**
+     * @return a player for the server set with {@link #COMMAND_SET_STREAM_SERVER}, if any.
+     */
+    private PlayerAdapter createPlayback() {
+        final String serverUrl = getPreferences().getString(PREF_STREAM_SERVER, null);
+        return serverUrl != null
+                ? new StreamingPlayerAdapter(this, mPlayerListener, serverUrl)
+                : new MediaPlayerAdapter(this, mPlayerListener);
+    }
+
+    private SharedPreferences getPreferences() {
+        return getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the directory set with {@link #COMMAND_SCAN}, or the app's own music directory on
+     * external storage; null if neither is available.
+     */
+    private File getScanDirectory() {
+        final String path = getPreferences().getString(PREF_SCAN_DIRECTORY, null);
+        return path != null ? new File(path) : getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+    }
+
+    /**
+     * @return how many of the tracks started downloading; bundled tracks can only be
+     * downloaded from a stream server.
+     */
+    private int download(List<String> mediaIds, List<String> checksums) {
+        if (mediaIds == null) {
+            return 0;
+        }
+        final String serverUrl = getPreferences().getString(PREF_STREAM_SERVER, null);
+        int started = 0;
+        for (int i = 0; i < mediaIds.size(); i++) {
+            final String mediaId = mediaIds.get(i);
+            final String filename = MusicLibrary.getMusicFilename(mediaId);
+            final String url = filename != null
+                    ? StreamingPlayerAdapter.getRemoteUrl(serverUrl, filename)
+                    : null;
+            if (url == null) {
+                Log.w(TAG, "download: nothing to download for " + mediaId);
+                continue;
+            }
+            final String checksum =
+                    checksums != null && i < checksums.size() ? checksums.get(i) : null;
+            if (mDownloader.download(mediaId, url, checksum)) {
+                started++;
+            }
+        }
+        return started;
+    }
+
+    private class DownloadListener implements TrackDownloader.Listener {
+        @Override
+        public void onDownloadFinished(@NonNull String mediaId, boolean success) {
+            // Players look the file up when they next open the track.
+            Log.d(TAG, "onDownloadFinished: " + mediaId + ", success=" + success);
+        }
+    }
+
+    private class ScanListener implements MediaScanner.Listener {
+        @Override
+        public void onCatalogScanned(@NonNull MusicCatalog catalog, boolean changed) {
+            MusicLibrary.setCatalog(catalog);
+            mCatalogScanned = true;
+            mCallback.removeUnresolvedItems();
+            // The manifest has a new version, so the snapshot is stale.
+            if (changed) {
+                invalidateSnapshot();
+            }
+            Log.d(TAG, "onCatalogScanned: " + catalog.size() + " tracks, changed=" + changed);
+            notifyChildrenChanged(BrowseTree.ROOT_ID);
+            notifyChildrenChanged(BrowseTree.ALL_TRACKS_ID);
+            notifyChildrenChanged(BrowseTree.ARTISTS_ID);
+            notifyChildrenChanged(BrowseTree.ALBUMS_ID);
+            notifyChildrenChanged(BrowseTree.GENRES_ID);
+        }
+    }
+
+    @Override
+    public void onSearch(@NonNull String query,
+                         Bundle extras,
+                         @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        // Keyed by the normalized query, so that searches differing only in their focus
+        // extras don't share results, and ones differing only in case or spacing do.
+        final SearchIndex.Query searchQuery = SearchIndex.newQuery(query, extras);
+        final String key =
+                SEARCH_KEY_PREFIX + (searchQuery != null ? searchQuery.getKey() : "");
+        mChildrenLoader.load(key, result,
+                new Callable<List<MediaBrowserCompat.MediaItem>>() {
+                    @Override
+                    public List<MediaBrowserCompat.MediaItem> call() {
+                        final MusicCatalog catalog = MusicLibrary.getCatalog();
+                        final int[] ordinals = searchQuery != null
+                                ? catalog.getSearchIndex().search(searchQuery, MAX_SEARCH_RESULTS)
+                                : new int[0];
+                        return catalog.getMediaItems(ordinals, 0, Math.max(1, ordinals.length));
+                    }
+                });
     }
 
     // MediaSession Callback: Transport Controls -> MediaPlayerAdapter
     public class MediaSessionCallback extends MediaSessionCompat.Callback {
-        private final List<MediaSessionCompat.QueueItem> mPlaylist = new ArrayList<>();
+        private final PlaybackQueue mPlaylist = new PlaybackQueue();
+        private final QueuePublisher mQueuePublisher =
+                new QueuePublisher(MusicService.this, mSession, mPlaylist);
         private int mQueueIndex = -1;
         private MediaMetadataCompat mPreparedMedia;
 
+        // Where the queue was built from by setQueueFromMediaId(), so that playing another item
+        // from the same place only moves the queue position; null for any other queue, and
+        // once the queue has been edited.
+        private String mQueueContext;
+        // The catalog mQueueContext was resolved against. After a rescan the same place may
+        // list other tracks, so it is resolved again.
+        private MusicCatalog mQueueCatalog;
+
+        private int mShuffleMode;
+        private int mRepeatMode;
+        private long mShuffleSeed;
+        // Play order while shuffling: a permutation of the queue IDs from mShuffleBase on, with
+        // room for mShuffleCapacity of them. Made from the seed when first needed, so edits
+        // don't move the items already queued. Each item plays once per cycle, and the queue
+        // keeps track of which have.
+        private ShuffleOrder mShuffleOrder;
+        private long mShuffleBase;
+        private int mShuffleCapacity;
+        // The queue item handed to the player as the next one, if any. Kept by queue ID, since
+        // the queue may be edited before the player gets to it.
+        private long mNextQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+
+        // Set until the journal has delivered the queue. Playing or preparing meanwhile waits
+        // for it; the item to resume, from the journal's head, is all that is known before.
+        private boolean mRestoring;
+        private MediaDescriptionCompat mResumeItem;
+        private boolean mPlayWhenRestored;
+        private boolean mPrepareWhenRestored;
+        // Set by an empty search while restoring: queue the catalog if nothing is restored.
+        private boolean mQueueCatalogWhenRestored;
+
+        // Restored from the journal: the queue item playback resumes with, and where in it.
+        private long mResumeQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+        private long mResumePositionMs;
+        private PlaybackStateCompat mLastState;
+        private final Runnable mCheckpointRunnable = new Runnable() {
+            @Override
+            public void run() {
+                checkpointPosition();
+                mHandler.postDelayed(this, POSITION_CHECKPOINT_INTERVAL_MS);
+            }
+        };
+
+        MediaSessionCallback() {
+            // The seed and the span of the order are kept as well, so a restored queue plays
+            // in the same order.
+            final SharedPreferences preferences = getPreferences();
+            mShuffleMode = preferences.getInt(PREF_SHUFFLE_MODE,
+                                              PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mShuffleSeed = preferences.getLong(PREF_SHUFFLE_SEED, 0);
+            mShuffleBase = preferences.getLong(PREF_SHUFFLE_BASE, 0);
+            mShuffleCapacity = preferences.getInt(PREF_SHUFFLE_CAPACITY, 0);
+            mRepeatMode = preferences.getInt(PREF_REPEAT_MODE,
+                                             PlaybackStateCompat.REPEAT_MODE_NONE);
+            mSession.setShuffleMode(mShuffleMode);
+            mSession.setRepeatMode(mRepeatMode);
+        }
+
+        @Override
+        public void onCommand(String command, Bundle extras, ResultReceiver cb) {
+            if (COMMAND_SET_QUEUE_WINDOW.equals(command)) {
+                final int windowSize = extras != null
+                        ? extras.getInt(EXTRA_QUEUE_WINDOW_SIZE, QueuePublisher.DEFAULT_WINDOW_SIZE)
+                        : QueuePublisher.DEFAULT_WINDOW_SIZE;
+                mQueuePublisher.setWindowSize(Math.max(1, windowSize));
+                return;
+            }
+            if ((COMMAND_SET_STREAM_SERVER.equals(command)
+                    || COMMAND_DOWNLOAD.equals(command)
+                    || COMMAND_SCAN.equals(command))
+                    && (extras == null
+                            || !mCommandToken.equals(extras.getString(EXTRA_COMMAND_TOKEN)))) {
+                Log.w(TAG, "onCommand: rejecting " + command + " without the command token");
+                if (cb != null) {
+                    cb.send(0, null);
+                }
+                return;
+            }
+            if (COMMAND_SET_STREAM_SERVER.equals(command)) {
+                final String url = extras.getString(EXTRA_STREAM_SERVER_URL);
+                getPreferences().edit().putString(PREF_STREAM_SERVER, url).apply();
+                // Switching players stops playback; the queue stays as it is.
+                onStop();
+                mPlayback.release();
+                mPlayback = createPlayback();
+                mPreparedMedia = null;
+                // release() drops the old player's update, so the new one reports the stop.
+                mPlayback.stop();
+                return;
+            }
+            if (COMMAND_DOWNLOAD.equals(command)) {
+                final int started = download(extras.getStringArrayList(EXTRA_MEDIA_IDS),
+                                             extras.getStringArrayList(EXTRA_DOWNLOAD_CHECKSUMS));
+                if (cb != null) {
+                    cb.send(started, null);
+                }
+                return;
+            }
+            if (COMMAND_SCAN.equals(command)) {
+                final String path = extras.getString(EXTRA_SCAN_DIRECTORY);
+                if (path != null) {
+                    getPreferences().edit().putString(PREF_SCAN_DIRECTORY, path).apply();
+                }
+                final File directory = getScanDirectory();
+                if (directory != null) {
+                    mScanner.scan(directory);
+                }
+                return;
+            }
+            if (!COMMAND_ENQUEUE_MEDIA_IDS.equals(command)) {
+                super.onCommand(command, extras, cb);
+                return;
+            }
+
+            final List<String> mediaIds =
+                    extras != null ? extras.getStringArrayList(EXTRA_MEDIA_IDS) : null;
+            final List<MediaDescriptionCompat> descriptions = new ArrayList<>(
+                    mediaIds != null ? mediaIds.size() : 0);
+            if (mediaIds != null) {
+                final MusicCatalog catalog = MusicLibrary.getCatalog();
+                for (String mediaId : mediaIds) {
+                    final int ordinal = catalog.getOrdinal(mediaId);
+                    if (ordinal >= 0) {
+                        descriptions.add(catalog.getDescription(ordinal));
+                    } else {
+                        Log.w(TAG, "onCommand: unknown media ID " + mediaId);
+                    }
+                }
+            }
+
+            final int start = mPlaylist.size();
+            mPlaylist.addAll(descriptions);
+            mQueueJournal.insert(start, mPlaylist.subList(start, mPlaylist.size()));
+            if (mQueueIndex == -1 && !mPlaylist.isEmpty()) {
+                mQueueIndex = 0;
+            }
+            onQueueChanged();
+            if (cb != null) {
+                cb.send(descriptions.size(), null);
+            }
+        }
+
         @Override
         public void onAddQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.add(new MediaSessionCompat.QueueItem(description, description.hashCode()));
+            final MediaSessionCompat.QueueItem item = mPlaylist.add(description);
+            mQueueJournal.insert(mPlaylist.size() - 1, Collections.singletonList(item));
             mQueueIndex = (mQueueIndex == -1) ? 0 : mQueueIndex;
-            mSession.setQueue(mPlaylist);
+            onQueueChanged();
+        }
+
+        @Override
+        public void onAddQueueItem(MediaDescriptionCompat description, int index) {
+            index = Math.max(0, Math.min(index, mPlaylist.size()));
+            final MediaSessionCompat.QueueItem item = mPlaylist.add(index, description);
+            mQueueJournal.insert(index, Collections.singletonList(item));
+            if (mQueueIndex == -1) {
+                mQueueIndex = 0;
+            } else if (index <= mQueueIndex) {
+                mQueueIndex++;
+            }
+            onQueueChanged();
         }
 
         @Override
         public void onRemoveQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.remove(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mPlaylist.isEmpty()) ? -1 : mQueueIndex;
-            mSession.setQueue(mPlaylist);
+            final int position = mPlaylist.indexOfMediaId(description.getMediaId());
+            if (position < 0) {
+                return;
+            }
+            mQueueJournal.remove(position);
+            mPlaylist.remove(position);
+            if (mPlaylist.isEmpty()) {
+                mQueueIndex = -1;
+            } else if (position < mQueueIndex) {
+                mQueueIndex--;
+            } else {
+                mQueueIndex = Math.min(mQueueIndex, mPlaylist.size() - 1);
+            }
+            onQueueChanged();
+        }
+
+        @Override
+        public void onSkipToQueueItem(long queueId) {
+            final int position = mPlaylist.indexOf(queueId);
+            if (position < 0) {
+                return;
+            }
+            mQueueIndex = position;
+            mPreparedMedia = null;
+            onPlay();
         }
 
         @Override
         public void onPrepare() {
+            if (mRestoring) {
+                mPrepareWhenRestored = true;
+                return;
+            }
             if (mQueueIndex < 0 && mPlaylist.isEmpty()) {
                 // Nothing to play.
                 return;
             }
 
-            final String mediaId = mPlaylist.get(mQueueIndex).getDescription().getMediaId();
-            mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
+            MediaSessionCompat.QueueItem item = mPlaylist.get(mQueueIndex);
+            mPreparedMedia = MusicLibrary.getMetadata(
+                    MusicService.this, item.getDescription().getMediaId());
+            // Items whose tracks have left the catalog are skipped, as far as the queue goes.
+            for (int skipped = 1; mPreparedMedia == null && skipped < mPlaylist.size(); skipped++) {
+                final int next = getNextIndex(false);
+                if (next < 0) {
+                    break;
+                }
+                mQueueIndex = next;
+                item = mPlaylist.get(mQueueIndex);
+                mPreparedMedia = MusicLibrary.getMetadata(
+                        MusicService.this, item.getDescription().getMediaId());
+            }
+            if (mPreparedMedia == null) {
+                Log.w(TAG, "onPrepare: nothing playable from queue position " + mQueueIndex);
+                return;
+            }
+            markCurrentPlayed();
             mSession.setMetadata(mPreparedMedia);
+            mQueuePublisher.setCurrentIndex(mQueueIndex);
+            mQueueJournal.setIndex(mQueueIndex, item.getDescription());
+            if (item.getQueueId() != mResumeQueueId) {
+                mResumePositionMs = 0;
+            }
+            mResumeQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+            mQueueJournal.setPosition(mResumePositionMs);
 
             if (!mSession.isActive()) {
                 mSession.setActive(true);
@@ -132,6 +798,10 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         @Override
         public void onPlay() {
+            if (mRestoring) {
+                mPlayWhenRestored = true;
+                return;
+            }
             if (!isReadyToPlay()) {
                 // Nothing to play.
                 return;
@@ -140,8 +810,19 @@ public class MusicService extends MediaBrowserServiceCompat {
             if (mPreparedMedia == null) {
                 onPrepare();
             }
+            if (mPreparedMedia == null) {
+                // Nothing left in the queue can be played.
+                onStop();
+                return;
+            }
 
             mPlayback.playFromMedia(mPreparedMedia);
+            if (mResumePositionMs > 0) {
+                // Queued behind the play, so it is applied once the player is prepared.
+                mPlayback.seekTo(mResumePositionMs);
+                mResumePositionMs = 0;
+            }
+            updateQueueNeighbours();
             Log.d(TAG, "onPlayFromMediaId: MediaSession active");
         }
 
@@ -158,16 +839,48 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         @Override
         public void onSkipToNext() {
-            mQueueIndex = (++mQueueIndex % mPlaylist.size());
-            mPreparedMedia = null;
-            onPlay();
+            if (isReadyToPlay()) {
+                mQueueIndex = getNextIndex(true);
+                mPreparedMedia = null;
+                onPlay();
+            }
         }
 
         @Override
         public void onSkipToPrevious() {
-            mQueueIndex = mQueueIndex > 0 ? mQueueIndex - 1 : mPlaylist.size() - 1;
-            mPreparedMedia = null;
-            onPlay();
+            if (isReadyToPlay()) {
+                mQueueIndex = getPreviousIndex();
+                mPreparedMedia = null;
+                onPlay();
+            }
+        }
+
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            final boolean wasShuffling = isShuffling();
+            mShuffleMode = shuffleMode;
+            if (isShuffling() && !wasShuffling) {
+                // A new order every time shuffle is turned on, starting from the current item.
+                mShuffleSeed = new Random().nextLong();
+                newShuffleOrder();
+                mPlaylist.clearPlayed();
+                mQueueJournal.clearPlayed();
+                markCurrentPlayed();
+            }
+            mSession.setShuffleMode(mShuffleMode);
+            getPreferences().edit()
+                    .putInt(PREF_SHUFFLE_MODE, mShuffleMode)
+                    .putLong(PREF_SHUFFLE_SEED, mShuffleSeed)
+                    .apply();
+            onPlayOrderChanged();
+        }
+
+        @Override
+        public void onSetRepeatMode(int repeatMode) {
+            mRepeatMode = repeatMode;
+            mSession.setRepeatMode(mRepeatMode);
+            getPreferences().edit().putInt(PREF_REPEAT_MODE, mRepeatMode).apply();
+            onPlayOrderChanged();
         }
 
         @Override
@@ -175,9 +888,603 @@ public class MusicService extends MediaBrowserServiceCompat {
             mPlayback.seekTo(pos);
         }
 
+        @Override
+        public void onPrepareFromMediaId(String mediaId, Bundle extras) {
+            if (setQueueFromMediaId(mediaId, extras)) {
+                onPrepare();
+            }
+        }
+
+        @Override
+        public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            if (setQueueFromMediaId(mediaId, extras)) {
+                onPlay();
+            }
+        }
+
+        @Override
+        public void onPrepareFromSearch(String query, Bundle extras) {
+            if (setQueueFromSearch(query, extras)) {
+                onPrepare();
+            }
+        }
+
+        @Override
+        public void onPlayFromSearch(String query, Bundle extras) {
+            if (setQueueFromSearch(query, extras)) {
+                onPlay();
+            }
+        }
+
+        /**
+         * Replaces the queue with the results of a search. An empty query means "play
+         * anything", which keeps the current queue or, if there is none, queues the catalog.
+         *
+         * @return whether there is anything to play.
+         */
+        private boolean setQueueFromSearch(String query, Bundle extras) {
+            final SearchIndex.Query searchQuery = SearchIndex.newQuery(query, extras);
+            if (searchQuery == null && (!mPlaylist.isEmpty() || mRestoring)) {
+                // The restored queue, once it's there.
+                mQueueCatalogWhenRestored |= mRestoring;
+                return true;
+            }
+
+            final MusicCatalog catalog = MusicLibrary.getCatalog();
+            final int[] ordinals;
+            if (searchQuery != null) {
+                ordinals = catalog.getSearchIndex().search(searchQuery, MAX_SEARCH_RESULTS);
+            } else {
+                ordinals = new int[Math.min(catalog.size(), MAX_SEARCH_RESULTS)];
+                for (int i = 0; i < ordinals.length; i++) {
+                    ordinals[i] = i;
+                }
+            }
+            if (ordinals.length == 0) {
+                Log.w(TAG, "setQueueFromSearch: nothing found for " + query);
+                return false;
+            }
+
+            final List<MediaDescriptionCompat> descriptions = new ArrayList<>(ordinals.length);
+            for (int ordinal : ordinals) {
+                descriptions.add(catalog.getDescription(ordinal));
+            }
+            setQueue(null, descriptions, 0);
+            return true;
+        }
+
+        /**
+         * Makes {@code mediaId} the current queue item, queueing it with the album, artist,
+         * genre or search it was picked from (see {@link #EXTRA_PARENT_MEDIA_ID}). If the queue
+         * already holds that context, only the position moves and nothing is re-sent to
+         * controllers.
+         *
+         * @return whether there is anything to play.
+         */
+        private boolean setQueueFromMediaId(String mediaId, Bundle extras) {
+            final MusicCatalog catalog = MusicLibrary.getCatalog();
+            final int ordinal = mediaId != null ? catalog.getOrdinal(mediaId) : -1;
+            if (ordinal < 0) {
+                Log.w(TAG, "setQueueFromMediaId: unknown media ID " + mediaId);
+                return false;
+            }
+
+            final String query = extras != null ? extras.getString(EXTRA_SEARCH_QUERY) : null;
+            // Made again as the browser made it, focus extras and all.
+            final SearchIndex.Query searchQuery =
+                    query != null ? SearchIndex.newQuery(query, extras) : null;
+            // Tracks without an album fall back to a window of the whole catalog.
+            final String album = catalog.getAlbumId(ordinal);
+            final String albumId = album != null
+                    ? BrowseTree.getGroupId(BrowseTree.ALBUMS_ID, album)
+                    : BrowseTree.ALL_TRACKS_ID;
+            String parentId = extras != null ? extras.getString(EXTRA_PARENT_MEDIA_ID) : null;
+            if (parentId == null) {
+                parentId = albumId;
+            }
+            String context = searchQuery != null
+                    ? SEARCH_KEY_PREFIX + searchQuery.getKey()
+                    : CHILDREN_KEY_PREFIX + parentId;
+
+            if (context.equals(mQueueContext) && catalog == mQueueCatalog) {
+                final int position = mPlaylist.indexOfMediaId(mediaId);
+                if (position >= 0) {
+                    if (position != mQueueIndex) {
+                        mQueueIndex = position;
+                        mPreparedMedia = null;
+                    }
+                    return true;
+                }
+            }
+            int[] ordinals = getContextOrdinals(catalog, ordinal, parentId, searchQuery);
+            if (ordinals == null) {
+                // Not listed there after all, e.g. the catalog has been rescanned since.
+                context = CHILDREN_KEY_PREFIX + albumId;
+                ordinals = getContextOrdinals(catalog, ordinal, albumId, null);
+            }
+
+            int position = 0;
+            final List<MediaDescriptionCompat> descriptions = new ArrayList<>(ordinals.length);
+            for (int i = 0; i < ordinals.length; i++) {
+                if (ordinals[i] == ordinal) {
+                    position = i;
+                }
+                descriptions.add(catalog.getDescription(ordinals[i]));
+            }
+            setQueue(context, descriptions, position);
+            mQueueCatalog = catalog;
+            return true;
+        }
+
+        /**
+         * @return the tracks to queue for {@code ordinal} when it was picked from the results of
+         * {@code searchQuery} or, without one, from the children of {@code parentId}; null if it
+         * isn't listed there.
+         */
+        private int[] getContextOrdinals(MusicCatalog catalog,
+                                         int ordinal,
+                                         String parentId,
+                                         @Nullable SearchIndex.Query searchQuery) {
+            final int[] ordinals;
+            if (searchQuery != null) {
+                ordinals = catalog.getSearchIndex().search(searchQuery, MAX_SEARCH_RESULTS);
+                for (int found : ordinals) {
+                    if (found == ordinal) {
+                        return ordinals;
+                    }
+                }
+                return null;
+            }
+            if (BrowseTree.ALL_TRACKS_ID.equals(parentId)) {
+                // Ordinals are positions in the catalog, so this is just a window around it.
+                final int size = Math.min(catalog.size(), MAX_CATALOG_QUEUE_ITEMS);
+                final int from = Math.max(0, Math.min(ordinal - size / 2, catalog.size() - size));
+                ordinals = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ordinals[i] = from + i;
+                }
+                return ordinals;
+            }
+            // Group ordinals are sorted, so membership is a binary search.
+            ordinals = BrowseTree.getGroupOrdinals(catalog, parentId);
+            return ordinals != null && Arrays.binarySearch(ordinals, ordinal) >= 0
+                    ? ordinals
+                    : null;
+        }
+
+        private void setQueue(String context,
+                              List<MediaDescriptionCompat> descriptions,
+                              int position) {
+            supersedeRestore();
+            mPlaylist.clear();
+            mPlaylist.addAll(descriptions);
+            mQueueIndex = position;
+            mQueueContext = context;
+            mPreparedMedia = null;
+            newShuffleOrder();
+            // The whole queue is new, so this is as good a time as any to start a new journal.
+            mQueueJournal.setIndex(mQueueIndex, descriptions.get(position));
+            mQueueJournal.writeSnapshot(mPlaylist);
+            mQueuePublisher.setCurrentIndex(mQueueIndex);
+            mQueuePublisher.invalidate();
+        }
+
+        /**
+         * Called after every edit of the queue by controllers, i.e. anything but a new queue.
+         */
+        private void onQueueChanged() {
+            // An edit before the journal has delivered the queue replaces it: without a
+            // snapshot the journal asks for one here.
+            supersedeRestore();
+            // Edited, the queue no longer matches the place it was built from.
+            mQueueContext = null;
+            mQueueJournal.setIndex(mQueueIndex, getCurrentDescription());
+            if (mQueueJournal.needsCompaction()) {
+                mQueueJournal.writeSnapshot(mPlaylist);
+            }
+            mQueuePublisher.setCurrentIndex(mQueueIndex);
+            mQueuePublisher.invalidate();
+            // The player may have been handed an item that moved or is gone.
+            onPlayOrderChanged();
+        }
+
+        private MediaDescriptionCompat getCurrentDescription() {
+            return mQueueIndex >= 0 && mQueueIndex < mPlaylist.size()
+                    ? mPlaylist.get(mQueueIndex).getDescription()
+                    : null;
+        }
+
+        /**
+         * Starts restoring: until {@link #restore} is called, {@code head} stands in for the
+         * queue.
+         */
+        private void restoreHead(@Nullable QueueJournal.Head head) {
+            mRestoring = true;
+            mResumeItem = head != null ? head.mItem : null;
+        }
+
+        /**
+         * Puts back the queue saved by a previous instance of the service, unless it has been
+         * replaced meanwhile. Playback resumes where it was when the current item is next
+         * played, which is right away if that was asked for while restoring.
+         */
+        private void restore(@Nullable QueueJournal.State state) {
+            if (!mRestoring) {
+                return;
+            }
+            final boolean play = mPlayWhenRestored;
+            final boolean prepare = mPrepareWhenRestored;
+            final boolean queueCatalog = mQueueCatalogWhenRestored;
+            supersedeRestore();
+            if (state != null && !state.mQueue.isEmpty()) {
+                // Queue IDs and what has played are restored too, so shuffled playback goes
+                // on in the same order.
+                mPlaylist.restore(state.mQueue);
+                for (Long queueId : state.mPlayed) {
+                    mPlaylist.setPlayed(queueId);
+                }
+                mQueueIndex = Math.max(0, state.mIndex);
+                mResumeQueueId = mPlaylist.get(mQueueIndex).getQueueId();
+                mResumePositionMs = state.mPositionMs;
+                mQueuePublisher.setCurrentIndex(mQueueIndex);
+                mQueuePublisher.invalidate();
+                if (mCatalogScanned) {
+                    // Otherwise this waits for the scan, which may still find the tracks.
+                    removeUnresolvedItems();
+                }
+            } else if (queueCatalog && !setQueueFromSearch(null, null)) {
+                return;
+            }
+            if (play) {
+                onPlay();
+            } else if (prepare) {
+                onPrepare();
+            }
+        }
+
+        /**
+         * Drops the queue items whose tracks aren't in the catalog, e.g. restored from the
+         * journal after their files were deleted. The current item, if dropped, becomes the
+         * next one still queued.
+         */
+        private void removeUnresolvedItems() {
+            if (mRestoring || mPlaylist.isEmpty()) {
+                return;
+            }
+            final MusicCatalog catalog = MusicLibrary.getCatalog();
+            final List<MediaSessionCompat.QueueItem> items = mPlaylist.toList();
+            boolean currentRemoved = false;
+            int removed = 0;
+            // Backwards, so the positions still to be checked don't move.
+            for (int i = items.size() - 1; i >= 0; i--) {
+                if (catalog.getOrdinal(items.get(i).getDescription().getMediaId()) >= 0) {
+                    continue;
+                }
+                mPlaylist.remove(i);
+                removed++;
+                if (i < mQueueIndex) {
+                    mQueueIndex--;
+                } else if (i == mQueueIndex) {
+                    currentRemoved = true;
+                }
+            }
+            if (removed == 0) {
+                return;
+            }
+            Log.w(TAG, "removeUnresolvedItems: " + removed + " queue items no longer in the "
+                    + "catalog");
+            mQueueIndex = mPlaylist.isEmpty() ? -1 : Math.min(mQueueIndex, mPlaylist.size() - 1);
+            if (currentRemoved) {
+                mPreparedMedia = null;
+            }
+            mQueueContext = null;
+            mQueueJournal.setIndex(mQueueIndex, getCurrentDescription());
+            mQueueJournal.writeSnapshot(mPlaylist);
+            mQueuePublisher.setCurrentIndex(mQueueIndex);
+            mQueuePublisher.invalidate();
+            onPlayOrderChanged();
+        }
+
+        private void supersedeRestore() {
+            mRestoring = false;
+            mResumeItem = null;
+            mPlayWhenRestored = false;
+            mPrepareWhenRestored = false;
+            mQueueCatalogWhenRestored = false;
+        }
+
+        /**
+         * @return the item playback would resume with, or null if there is none.
+         */
+        private MediaDescriptionCompat getRecentItem() {
+            return mRestoring ? mResumeItem : getCurrentDescription();
+        }
+
+        /**
+         * @return the item playback would resume with, for {@link #RECENT_ROOT_ID}.
+         */
+        private List<MediaBrowserCompat.MediaItem> getRecentItems() {
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(1);
+            final MediaDescriptionCompat item = getRecentItem();
+            if (item != null) {
+                result.add(new MediaBrowserCompat.MediaItem(
+                        item, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            }
+            return result;
+        }
+
+        /**
+         * Saves the playback position, as of the last state update, in the journal.
+         */
+        private void checkpointPosition() {
+            final PlaybackStateCompat state = mLastState;
+            if (state == null || mResumePositionMs > 0) {
+                // Nothing has played since the restore, which already has the position.
+                return;
+            }
+            long position = state.getPosition();
+            if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                position += (long) ((SystemClock.elapsedRealtime()
+                        - state.getLastPositionUpdateTime()) * state.getPlaybackSpeed());
+            }
+            mQueueJournal.setPosition(Math.max(0, position));
+        }
+
+        private void onPlaybackStateChange(PlaybackStateCompat state) {
+            switch (state.getState()) {
+                case PlaybackStateCompat.STATE_PLAYING:
+                    mLastState = state;
+                    checkpointPosition();
+                    mHandler.removeCallbacks(mCheckpointRunnable);
+                    mHandler.postDelayed(mCheckpointRunnable, POSITION_CHECKPOINT_INTERVAL_MS);
+                    break;
+                case PlaybackStateCompat.STATE_PAUSED:
+                    mLastState = state;
+                    checkpointPosition();
+                    mHandler.removeCallbacks(mCheckpointRunnable);
+                    break;
+                default:
+                    // Stopped players report no position, so the last one is kept.
+                    mHandler.removeCallbacks(mCheckpointRunnable);
+                    break;
+            }
+        }
+
         private boolean isReadyToPlay() {
             return (!mPlaylist.isEmpty());
         }
+
+        /**
+         * Called when the player has moved on to the next queue item by itself, because the
+         * previous one completed.
+         */
+        private void onNextMediaStarted(MediaMetadataCompat metadata) {
+            final String mediaId = metadata.getDescription().getMediaId();
+            final int index = mPlaylist.indexOf(mNextQueueId);
+            if (index < 0
+                    || !mPlaylist.get(index).getDescription().getMediaId().equals(mediaId)) {
+                // The player moved on before it heard that the item was removed, or replaced
+                // as the next one. The session can't describe what it plays, so it stops.
+                Log.w(TAG, "onNextMediaStarted: " + mediaId + " is no longer queued next");
+                onStop();
+                return;
+            }
+            mQueueIndex = index;
+            // The player only has the track; the full metadata was prefetched with it.
+            mPreparedMedia = MusicLibrary.getMetadata(
+                    MusicService.this, metadata.getDescription().getMediaId());
+            if (mPreparedMedia == null) {
+                // Left the catalog since it was handed to the player, which still plays it.
+                mPreparedMedia = metadata;
+            }
+            mSession.setMetadata(mPreparedMedia);
+            mQueuePublisher.setCurrentIndex(mQueueIndex);
+            mQueueJournal.setIndex(mQueueIndex, mPlaylist.get(mQueueIndex).getDescription());
+            mQueueJournal.setPosition(0);
+            markCurrentPlayed();
+            updateQueueNeighbours();
+        }
+
+        /**
+         * Lets the player prepare the items a skip in either direction would play. The next
+         * item is what plays when the current one completes, which depends on the repeat mode;
+         * without repeat, playback ends with the queue. The next item's session metadata is
+         * prefetched, as it is about to be needed.
+         */
+        private void updateQueueNeighbours() {
+            if (mQueueIndex < 0 || mPlaylist.isEmpty()) {
+                mNextQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+                mPlayback.setQueueNeighbours(null, null, false);
+                return;
+            }
+            final int previousIndex = getPreviousIndex();
+            final boolean repeatCurrent = mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ONE;
+            final int nextIndex = repeatCurrent
+                    ? mQueueIndex
+                    : getNextIndex(mRepeatMode != PlaybackStateCompat.REPEAT_MODE_NONE);
+            mNextQueueId = nextIndex >= 0
+                    ? mPlaylist.get(nextIndex).getQueueId()
+                    : MediaSessionCompat.QueueItem.UNKNOWN_ID;
+            if (nextIndex >= 0 && !repeatCurrent) {
+                MusicLibrary.prefetchMetadata(MusicService.this,
+                        mPlaylist.get(nextIndex).getDescription().getMediaId());
+            }
+            mPlayback.setQueueNeighbours(
+                    previousIndex != mQueueIndex ? getQueueMedia(previousIndex) : null,
+                    nextIndex >= 0 && !repeatCurrent ? getQueueMedia(nextIndex) : null,
+                    repeatCurrent);
+        }
+
+        private void onPlayOrderChanged() {
+            if (mPreparedMedia != null) {
+                updateQueueNeighbours();
+            }
+        }
+
+        private boolean isShuffling() {
+            return mShuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE;
+        }
+
+        /**
+         * Forgets the play order, so the next one covers only the queue as it is now.
+         */
+        private void newShuffleOrder() {
+            mShuffleOrder = null;
+            mShuffleCapacity = 0;
+        }
+
+        private ShuffleOrder getShuffleOrder() {
+            final long bound = mPlaylist.getQueueIdBound();
+            if (mShuffleOrder != null && bound - mShuffleBase <= mShuffleCapacity) {
+                return mShuffleOrder;
+            }
+            long base = bound;
+            for (MediaSessionCompat.QueueItem item : mPlaylist.toList()) {
+                base = Math.min(base, item.getQueueId());
+            }
+            if (mShuffleOrder != null || mShuffleCapacity == 0
+                    || base < mShuffleBase || bound - mShuffleBase > mShuffleCapacity) {
+                // Not the order saved with the queue: new, or too small for the items added
+                // since. Those that haven't played yet are reordered, so room is left to add
+                // as many again.
+                mShuffleBase = base;
+                mShuffleCapacity = (int) Math.max(MIN_SHUFFLE_CAPACITY,
+                        Math.min(MAX_SHUFFLE_CAPACITY, 2 * (bound - base)));
+                getPreferences().edit()
+                        .putLong(PREF_SHUFFLE_BASE, mShuffleBase)
+                        .putInt(PREF_SHUFFLE_CAPACITY, mShuffleCapacity)
+                        .apply();
+            }
+            mShuffleOrder = new ShuffleOrder(mShuffleCapacity, mShuffleSeed);
+            return mShuffleOrder;
+        }
+
+        /**
+         * Counts the current item as played in this shuffle cycle, starting the next cycle if
+         * every item has already played in this one.
+         */
+        private void markCurrentPlayed() {
+            if (!isShuffling() || mQueueIndex < 0 || mQueueIndex >= mPlaylist.size()) {
+                return;
+            }
+            final long queueId = mPlaylist.get(mQueueIndex).getQueueId();
+            if (mPlaylist.isPlayed(queueId)) {
+                if (mPlaylist.getPlayedCount() < mPlaylist.size()) {
+                    return;
+                }
+                mPlaylist.clearPlayed();
+                mQueueJournal.clearPlayed();
+            }
+            mPlaylist.setPlayed(queueId);
+            mQueueJournal.setPlayed(queueId);
+        }
+
+        /**
+         * @return the queue position after the current one in play order. Once every item has
+         * played, that is the first one again if {@code wrap} is true, and -1 otherwise.
+         */
+        private int getNextIndex(boolean wrap) {
+            final int size = mPlaylist.size();
+            if (!isShuffling()) {
+                final int next = mQueueIndex + 1;
+                return next < size ? next : (wrap ? 0 : -1);
+            }
+            if (mQueueIndex < 0 || mQueueIndex >= size) {
+                return -1;
+            }
+            final boolean cycleDone = mPlaylist.getPlayedCount() >= size;
+            if (cycleDone && !wrap) {
+                return -1;
+            }
+            // Items played out of order, e.g. picked from the queue, are passed over until the
+            // next cycle.
+            final long queueId = findShuffled(mPlaylist.get(mQueueIndex).getQueueId(), 1,
+                                              !cycleDone);
+            return queueId >= 0 ? mPlaylist.indexOf(queueId) : -1;
+        }
+
+        /**
+         * @return the queue position before the current one in play order, wrapping around.
+         */
+        private int getPreviousIndex() {
+            final int size = mPlaylist.size();
+            if (!isShuffling()) {
+                return mQueueIndex > 0 ? mQueueIndex - 1 : size - 1;
+            }
+            if (mQueueIndex < 0 || mQueueIndex >= size) {
+                return -1;
+            }
+            return mPlaylist.indexOf(
+                    findShuffled(mPlaylist.get(mQueueIndex).getQueueId(), -1, false));
+        }
+
+        /**
+         * Walks the shuffle order from {@code queueId} in {@code direction} to the first item
+         * still queued, and not played in this cycle if {@code unplayed} is true. Arriving
+         * back at {@code queueId} itself counts.
+         *
+         * @return the queue ID of that item, or -1 if there is none.
+         */
+        private long findShuffled(long queueId, int direction, boolean unplayed) {
+            final ShuffleOrder order = getShuffleOrder();
+            final int capacity = order.size();
+            final int start = order.indexOf((int) (queueId - mShuffleBase));
+            for (int i = 1; i <= capacity; i++) {
+                final int step = (int) ((start + (long) direction * i + capacity) % capacity);
+                final long candidate = mShuffleBase + order.get(step);
+                if (mPlaylist.contains(candidate)
+                        && !(unplayed && mPlaylist.isPlayed(candidate))) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        // The player only needs to know which track to prepare, so no art is attached.
+        private MediaMetadataCompat getQueueMedia(int index) {
+            return MusicLibrary.getTrack(mPlaylist.get(index).getDescription().getMediaId());
+        }
+
+        /**
+         * @return one page of the queue as playable items, for the {@link #QUEUE_MEDIA_ID}
+         * node.
+         */
+        private List<MediaBrowserCompat.MediaItem> getQueueItems(int page, int pageSize) {
+            final long from = (long) page * pageSize;
+            final int size = mPlaylist.size();
+            if (from >= size) {
+                return new ArrayList<>();
+            }
+            final List<MediaSessionCompat.QueueItem> queueItems =
+                    mPlaylist.subList((int) from, (int) Math.min(size, from + pageSize));
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(queueItems.size());
+            for (MediaSessionCompat.QueueItem queueItem : queueItems) {
+                final MediaDescriptionCompat description = queueItem.getDescription();
+                final Bundle extras = description.getExtras() != null
+                        ? new Bundle(description.getExtras())
+                        : new Bundle();
+                extras.putLong(EXTRA_QUEUE_ID, queueItem.getQueueId());
+                result.add(new MediaBrowserCompat.MediaItem(
+                        new MediaDescriptionCompat.Builder()
+                                .setMediaId(description.getMediaId())
+                                .setTitle(description.getTitle())
+                                .setSubtitle(description.getSubtitle())
+                                .setDescription(description.getDescription())
+                                .setIconBitmap(description.getIconBitmap())
+                                .setIconUri(description.getIconUri())
+                                .setMediaUri(description.getMediaUri())
+                                .setExtras(extras)
+                                .build(),
+                        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            }
+            return result;
+        }
+
+        private long getActiveQueueItemId() {
+            return mQueueIndex >= 0 && mQueueIndex < mPlaylist.size()
+                    ? mPlaylist.get(mQueueIndex).getQueueId()
+                    : MediaSessionCompat.QueueItem.UNKNOWN_ID;
+        }
     }
 
     // MediaPlayerAdapter Callback: MediaPlayerAdapter state -> MusicService.
@@ -191,8 +1498,12 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         @Override
         public void onPlaybackStateChange(PlaybackStateCompat state) {
-            // Report the state to the MediaSession.
+            // Report the state to the MediaSession, along with the current queue position.
+            state = new PlaybackStateCompat.Builder(state)
+                    .setActiveQueueItemId(mCallback.getActiveQueueItemId())
+                    .build();
             mSession.setPlaybackState(state);
+            mCallback.onPlaybackStateChange(state);
 
             // Manage the started state of this service.
             switch (state.getState()) {
@@ -200,6 +1511,7 @@ public class MusicService extends MediaBrowserServiceCompat {
                     mServiceManager.moveServiceToStartedState(state);
                     break;
                 case PlaybackStateCompat.STATE_PAUSED:
+                case PlaybackStateCompat.STATE_ERROR:
                     mServiceManager.updateNotificationForPause(state);
                     break;
                 case PlaybackStateCompat.STATE_STOPPED:
@@ -208,8 +1520,15 @@ public class MusicService extends MediaBrowserServiceCompat {
             }
         }
 
+        @Override
+        public void onNextMediaStarted(MediaMetadataCompat metadata) {
+            mCallback.onNextMediaStarted(metadata);
+        }
+
         class ServiceManager {
 
+            private boolean mInForeground;
+
             private void moveServiceToStartedState(PlaybackStateCompat state) {
                 Notification notification =
                         mMediaNotificationManager.getNotification(
@@ -222,20 +1541,28 @@ public class MusicService extends MediaBrowserServiceCompat {
                     mServiceInStartedState = true;
                 }
 
+                // Already in the foreground with this very notification, e.g. after a seek.
+                if (mInForeground && mMediaNotificationManager.isPosted(notification)) {
+                    return;
+                }
                 startForeground(MediaNotificationManager.NOTIFICATION_ID, notification);
+                mInForeground = true;
+                mMediaNotificationManager.onNotificationPosted(notification);
             }
 
             private void updateNotificationForPause(PlaybackStateCompat state) {
-                stopForeground(false);
-                Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mPlayback.getCurrentMedia(), state, getSessionToken());
-                mMediaNotificationManager.getNotificationManager()
-                        .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+                if (mInForeground) {
+                    stopForeground(false);
+                    mInForeground = false;
+                }
+                mMediaNotificationManager.postNotification(
+                        mPlayback.getCurrentMedia(), state, getSessionToken());
             }
 
             private void moveServiceOutOfStartedState(PlaybackStateCompat state) {
                 stopForeground(true);
+                mInForeground = false;
+                mMediaNotificationManager.onNotificationRemoved();
                 stopSelf();
                 mServiceInStartedState = false;
             }
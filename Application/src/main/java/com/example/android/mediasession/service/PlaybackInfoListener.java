@@ -16,6 +16,7 @@
 
 package com.example.android.mediasession.service;
 
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
@@ -31,4 +32,13 @@ public abstract class PlaybackInfoListener {
 
     public void onPlaybackCompleted() {
     }
+
+    /**
+     * Called when the next media passed to
+     * {@link PlayerAdapter#setQueueNeighbours(MediaMetadataCompat, MediaMetadataCompat, boolean)}
+     * has taken over from the media that just completed, or when the current media started over
+     * because it is repeated.
+     */
+    public void onNextMediaStarted(MediaMetadataCompat metadata) {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ordered playback queue backed by an implicit treap (a randomized balanced tree ordered by
+ * position rather than by key).
+ * <p>
+ * Every item gets a queue ID from a monotonically increasing counter, so IDs are unique for
+ * the lifetime of the queue and never collide the way description hash codes can. A map from
+ * queue ID to tree node, together with subtree sizes and parent links, answers "where is this
+ * item" in O(log n). Insert, remove and move at any position are O(log n); bulk inserts cost
+ * O(k + log n) for k items.
+ * <p>
+ * Items can also be marked as played, which shuffled playback uses to play each item once per
+ * cycle. Starting a new cycle is O(1): marks only count for the cycle they were made in.
+ * <p>
+ * This class is not thread safe.
+ */
+public class PlaybackQueue {
+
+    private final HashMap<Long, Node> mNodes = new HashMap<>();
+    private final HashMap<String, ArrayDeque<Long>> mIdsByMediaId = new HashMap<>();
+    private final Random mRandom = new Random();
+    private Node mRoot;
+    private long mNextQueueId = 1;
+    private int mCycle = 1;
+    private int mPlayedCount;
+
+    public int size() {
+        return size(mRoot);
+    }
+
+    public boolean isEmpty() {
+        return mRoot == null;
+    }
+
+    /**
+     * @return the item at {@code position}.
+     * @throws IndexOutOfBoundsException if the position isn't in the queue.
+     */
+    @NonNull
+    public QueueItem get(int position) {
+        checkPosition(position, size());
+        Node node = mRoot;
+        while (true) {
+            final int leftSize = size(node.mLeft);
+            if (position < leftSize) {
+                node = node.mLeft;
+            } else if (position > leftSize) {
+                position -= leftSize + 1;
+                node = node.mRight;
+            } else {
+                return node.mItem;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the item with the given queue ID, or -1 if it isn't queued.
+     */
+    public int indexOf(long queueId) {
+        final Node node = mNodes.get(queueId);
+        if (node == null) {
+            return -1;
+        }
+        int position = size(node.mLeft);
+        for (Node child = node, parent = node.mParent;
+                parent != null;
+                child = parent, parent = parent.mParent) {
+            if (parent.mRight == child) {
+                position += size(parent.mLeft) + 1;
+            }
+        }
+        return position;
+    }
+
+    public boolean contains(long queueId) {
+        return mNodes.containsKey(queueId);
+    }
+
+    /**
+     * @return a bound on the queue IDs handed out so far: every one of them is lower.
+     */
+    public long getQueueIdBound() {
+        return mNextQueueId;
+    }
+
+    /**
+     * @return the position of the earliest added item still queued for {@code mediaId}, or -1.
+     */
+    public int indexOfMediaId(String mediaId) {
+        final ArrayDeque<Long> ids = mIdsByMediaId.get(mediaId);
+        return ids == null || ids.isEmpty() ? -1 : indexOf(ids.peekFirst());
+    }
+
+    /**
+     * Appends an item and returns it with its newly assigned queue ID.
+     */
+    public QueueItem add(@NonNull MediaDescriptionCompat description) {
+        return add(size(), description);
+    }
+
+    /**
+     * Inserts an item at {@code position} and returns it with its newly assigned queue ID.
+     */
+    public QueueItem add(int position, @NonNull MediaDescriptionCompat description) {
+        checkPosition(position, size() + 1);
+        final Node node = newNode(description);
+        final Node[] split = split(mRoot, position);
+        mRoot = detach(merge(merge(split[0], node), split[1]));
+        return node.mItem;
+    }
+
+    /**
+     * Inserts all {@code descriptions}, in order, at {@code position}. The new items are built
+     * into a balanced subtree in linear time and joined to the queue with a single split and
+     * merge.
+     */
+    public void addAll(int position, @NonNull List<MediaDescriptionCompat> descriptions) {
+        checkPosition(position, size() + 1);
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        final Node[] nodes = new Node[descriptions.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = newNode(descriptions.get(i));
+        }
+        final Node inserted = build(nodes);
+        final Node[] split = split(mRoot, position);
+        mRoot = detach(merge(merge(split[0], inserted), split[1]));
+    }
+
+    public void addAll(@NonNull List<MediaDescriptionCompat> descriptions) {
+        addAll(size(), descriptions);
+    }
+
+    /**
+     * Appends items that already have queue IDs, e.g. saved by an earlier instance of the
+     * queue. Items added later get higher IDs than all of these.
+     *
+     * @throws IllegalArgumentException if one of the IDs is already queued.
+     */
+    public void restore(@NonNull List<QueueItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        final Node[] nodes = new Node[items.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            final QueueItem item = items.get(i);
+            if (mNodes.containsKey(item.getQueueId())) {
+                throw new IllegalArgumentException("Queue ID " + item.getQueueId() + " in use");
+            }
+            nodes[i] = newNode(item);
+            mNextQueueId = Math.max(mNextQueueId, item.getQueueId() + 1);
+        }
+        mRoot = detach(merge(mRoot, build(nodes)));
+    }
+
+    /**
+     * Removes the item at {@code position} and returns it.
+     */
+    @NonNull
+    public QueueItem remove(int position) {
+        checkPosition(position, size());
+        final Node[] left = split(mRoot, position);
+        final Node[] right = split(left[1], 1);
+        final Node removed = right[0];
+        mRoot = detach(merge(left[0], right[1]));
+        forget(removed);
+        return removed.mItem;
+    }
+
+    /**
+     * Removes the item with the given queue ID.
+     *
+     * @return its former position, or -1 if it wasn't queued.
+     */
+    public int removeById(long queueId) {
+        final int position = indexOf(queueId);
+        if (position >= 0) {
+            remove(position);
+        }
+        return position;
+    }
+
+    /**
+     * Removes every item whose queue ID is in {@code queueIds}.
+     *
+     * @return the number of items removed.
+     */
+    public int removeAllById(@NonNull Collection<Long> queueIds) {
+        int removed = 0;
+        for (Long queueId : queueIds) {
+            if (removeById(queueId) >= 0) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the items in {@code [from, to)} with one pair of splits.
+     */
+    public void removeRange(int from, int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + from + ", " + to + ") of queue of size " + size());
+        }
+        final Node[] left = split(mRoot, from);
+        final Node[] right = split(left[1], to - from);
+        mRoot = detach(merge(left[0], right[1]));
+        forgetAll(right[0]);
+    }
+
+    /**
+     * Moves the item at {@code from} so that it ends up at position {@code to}.
+     */
+    public void move(int from, int to) {
+        final int size = size();
+        checkPosition(from, size);
+        checkPosition(to, size);
+        if (from == to) {
+            return;
+        }
+        final Node[] left = split(mRoot, from);
+        final Node[] right = split(left[1], 1);
+        final Node moved = right[0];
+        final Node rest = merge(left[0], right[1]);
+        final Node[] split = split(rest, to);
+        mRoot = detach(merge(merge(split[0], moved), split[1]));
+    }
+
+    public void clear() {
+        mRoot = null;
+        mNodes.clear();
+        mIdsByMediaId.clear();
+        mPlayedCount = 0;
+    }
+
+    /**
+     * Marks the item with the given queue ID as played in the current cycle.
+     *
+     * @return whether it is queued and wasn't marked yet.
+     */
+    public boolean setPlayed(long queueId) {
+        final Node node = mNodes.get(queueId);
+        if (node == null || node.mPlayedCycle == mCycle) {
+            return false;
+        }
+        node.mPlayedCycle = mCycle;
+        mPlayedCount++;
+        return true;
+    }
+
+    public boolean isPlayed(long queueId) {
+        final Node node = mNodes.get(queueId);
+        return node != null && node.mPlayedCycle == mCycle;
+    }
+
+    /**
+     * @return how many of the queued items are played in the current cycle.
+     */
+    public int getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * Starts a new cycle, in which no item has played yet.
+     */
+    public void clearPlayed() {
+        mCycle++;
+        mPlayedCount = 0;
+    }
+
+    /**
+     * @return a snapshot of the queue, in order, built in O(n).
+     */
+    @NonNull
+    public List<QueueItem> toList() {
+        return subList(0, size());
+    }
+
+    /**
+     * @return a snapshot of the items in {@code [from, to)}, built in O(log n + (to - from)).
+     */
+    @NonNull
+    public List<QueueItem> subList(int from, int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + from + ", " + to + ") of queue of size " + size());
+        }
+        final List<QueueItem> result = new ArrayList<>(to - from);
+        collect(mRoot, from, to, result);
+        return result;
+    }
+
+    private static void collect(Node node, int from, int to, List<QueueItem> out) {
+        // In-order walk that skips subtrees entirely outside the range. The tree depth is
+        // O(log n), so recursion is fine.
+        if (node == null || from >= to) {
+            return;
+        }
+        final int leftSize = size(node.mLeft);
+        if (from < leftSize) {
+            collect(node.mLeft, from, Math.min(to, leftSize), out);
+        }
+        if (from <= leftSize && leftSize < to) {
+            out.add(node.mItem);
+        }
+        if (to > leftSize + 1) {
+            collect(node.mRight, Math.max(0, from - leftSize - 1), to - leftSize - 1, out);
+        }
+    }
+
+    private Node newNode(MediaDescriptionCompat description) {
+        return newNode(new QueueItem(description, mNextQueueId++));
+    }
+
+    private Node newNode(QueueItem item) {
+        final long queueId = item.getQueueId();
+        final Node node = new Node(item, mRandom.nextInt());
+        mNodes.put(queueId, node);
+
+        final String mediaId = item.getDescription().getMediaId();
+        ArrayDeque<Long> ids = mIdsByMediaId.get(mediaId);
+        if (ids == null) {
+            ids = new ArrayDeque<>(1);
+            mIdsByMediaId.put(mediaId, ids);
+        }
+        ids.addLast(queueId);
+        return node;
+    }
+
+    private void forget(Node node) {
+        final long queueId = node.mItem.getQueueId();
+        mNodes.remove(queueId);
+        if (node.mPlayedCycle == mCycle) {
+            mPlayedCount--;
+        }
+        final String mediaId = node.mItem.getDescription().getMediaId();
+        final ArrayDeque<Long> ids = mIdsByMediaId.get(mediaId);
+        if (ids != null) {
+            ids.remove(queueId);
+            if (ids.isEmpty()) {
+                mIdsByMediaId.remove(mediaId);
+            }
+        }
+    }
+
+    private void forgetAll(Node node) {
+        if (node != null) {
+            forgetAll(node.mLeft);
+            forgetAll(node.mRight);
+            forget(node);
+        }
+    }
+
+    /**
+     * Builds a treap holding {@code nodes} in order in O(n), by giving parents the larger of
+     * their own and their children's priorities (a standard heapify on a balanced shape).
+     */
+    private static Node build(Node[] nodes) {
+        return build(nodes, 0, nodes.length);
+    }
+
+    private static Node build(Node[] nodes, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        final int middle = (from + to) >>> 1;
+        final Node node = nodes[middle];
+        node.mLeft = build(nodes, from, middle);
+        node.mRight = build(nodes, middle + 1, to);
+        heapify(node);
+        update(node);
+        return node;
+    }
+
+    private static void heapify(Node node) {
+        // Swap priorities downwards until the heap property holds.
+        while (true) {
+            Node max = node;
+            if (node.mLeft != null && node.mLeft.mPriority > max.mPriority) {
+                max = node.mLeft;
+            }
+            if (node.mRight != null && node.mRight.mPriority > max.mPriority) {
+                max = node.mRight;
+            }
+            if (max == node) {
+                return;
+            }
+            final int priority = node.mPriority;
+            node.mPriority = max.mPriority;
+            max.mPriority = priority;
+            node = max;
+        }
+    }
+
+    /**
+     * Splits {@code node} into the first {@code count} items and the rest.
+     */
+    private static Node[] split(Node node, int count) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+        final int leftSize = size(node.mLeft);
+        if (count <= leftSize) {
+            final Node[] split = split(node.mLeft, count);
+            node.mLeft = split[1];
+            update(node);
+            split[1] = node;
+            return split;
+        } else {
+            final Node[] split = split(node.mRight, count - leftSize - 1);
+            node.mRight = split[0];
+            update(node);
+            split[0] = node;
+            return split;
+        }
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.mPriority > right.mPriority) {
+            left.mRight = merge(left.mRight, right);
+            update(left);
+            return left;
+        } else {
+            right.mLeft = merge(left, right.mLeft);
+            update(right);
+            return right;
+        }
+    }
+
+    private static void update(Node node) {
+        node.mSize = 1 + size(node.mLeft) + size(node.mRight);
+        if (node.mLeft != null) {
+            node.mLeft.mParent = node;
+        }
+        if (node.mRight != null) {
+            node.mRight.mParent = node;
+        }
+    }
+
+    private static Node detach(Node root) {
+        if (root != null) {
+            root.mParent = null;
+        }
+        return root;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+
+    private static void checkPosition(int position, int size) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+        }
+    }
+
+    private static final class Node {
+        private final QueueItem mItem;
+        private int mPriority;
+        private int mSize = 1;
+        private Node mLeft;
+        private Node mRight;
+        private Node mParent;
+        // The cycle in which the item was last played, if any.
+        private int mPlayedCycle;
+
+        private Node(QueueItem item, int priority) {
+            mItem = item;
+            mPriority = priority;
+        }
+    }
+}
@@ -22,30 +22,69 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 /**
  * Abstract player implementation that handles playing music with proper handling of headphones
  * and audio focus.
+ * <p>
+ * The player runs on its own thread, so the main thread never waits on the native player.
+ * The public methods only queue a command and return; commands run in order on the player
+ * thread, where the {@code on...} methods are called. A command that supersedes one still
+ * waiting in the queue replaces it in place: of several seeks only the last one runs, and
+ * likewise for media requests, play / pause, volume and queue neighbours. That is only done
+ * if the commands queued in between have the same effect in either order, so nothing runs out
+ * of order. Audio focus changes and the "becoming noisy" broadcast are handled on the player
+ * thread too.
+ * <p>
+ * Implementations report back through a listener wrapped with {@link #postToMainThread}, so
+ * that {@link MusicService} receives updates on the main thread, in the order they were made.
  */
 public abstract class PlayerAdapter {
 
+    private static final String TAG = PlayerAdapter.class.getSimpleName();
+
     private static final float MEDIA_VOLUME_DEFAULT = 1.0f;
     private static final float MEDIA_VOLUME_DUCK = 0.2f;
 
     private static final IntentFilter AUDIO_NOISY_INTENT_FILTER =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 
+    // The only Message.what; the message carries a Command.
+    private static final int MSG_COMMAND = 0;
+
+    // Kinds of commands. Each one replaces a queued command of the same kind, and MSG_PLAY
+    // and MSG_PAUSE replace each other, unless that would reorder it with another command.
+    private static final int MSG_PLAY_FROM_MEDIA = 1;
+    private static final int MSG_SET_QUEUE_NEIGHBOURS = 2;
+    private static final int MSG_PLAY = 3;
+    private static final int MSG_PAUSE = 4;
+    private static final int MSG_STOP = 5;
+    private static final int MSG_SEEK_TO = 6;
+    private static final int MSG_SET_VOLUME = 7;
+    private static final int MSG_AUDIO_FOCUS_CHANGE = 8;
+
     private boolean mAudioNoisyReceiverRegistered = false;
     private final BroadcastReceiver mAudioNoisyReceiver =
             new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
+                    // Delivered on the player thread.
                     if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
                         if (isPlaying()) {
-                            pause();
+                            pauseNow();
                         }
                     }
                 }
@@ -54,22 +93,136 @@ public abstract class PlayerAdapter {
     private final Context mApplicationContext;
     private final AudioManager mAudioManager;
     private final AudioFocusHelper mAudioFocusHelper;
+    private final HandlerThread mPlayerThread;
+    private final Handler mPlayerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
+    // Only touched on the player thread.
     private boolean mPlayOnAudioFocus = false;
 
+    // Set on the main thread by release(); drops updates that are still on their way.
+    private volatile boolean mReleased;
+
+    // Commands sent to the player thread that haven't run yet, oldest first. Guarded by
+    // itself, as audio focus changes may be sent from other threads.
+    private final ArrayDeque<Command> mPendingCommands = new ArrayDeque<>();
+    private int mCommandCount;
+    private int mCollapsedCount;
+
     public PlayerAdapter(@NonNull Context context) {
         mApplicationContext = context.getApplicationContext();
         mAudioManager = (AudioManager) mApplicationContext.getSystemService(Context.AUDIO_SERVICE);
         mAudioFocusHelper = new AudioFocusHelper();
+
+        mPlayerThread = new HandlerThread("player", Process.THREAD_PRIORITY_AUDIO);
+        mPlayerThread.start();
+        mPlayerHandler = new Handler(mPlayerThread.getLooper(), new CommandHandler());
     }
 
-    public abstract void playFromMedia(MediaMetadataCompat metadata);
+    /**
+     * @return the looper of the player thread. Players must be created on it, so that their
+     * callbacks arrive there as well.
+     */
+    protected final Looper getPlayerLooper() {
+        return mPlayerThread.getLooper();
+    }
+
+    /**
+     * Wraps {@code listener} so that its callbacks are posted to the main thread, in order.
+     * Nothing is delivered after {@link #release()}.
+     */
+    protected final PlaybackInfoListener postToMainThread(
+            @NonNull final PlaybackInfoListener listener) {
+        return new PlaybackInfoListener() {
+            @Override
+            public void onPlaybackStateChange(final PlaybackStateCompat state) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mReleased) {
+                            listener.onPlaybackStateChange(state);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onPlaybackCompleted() {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mReleased) {
+                            listener.onPlaybackCompleted();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNextMediaStarted(final MediaMetadataCompat metadata) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mReleased) {
+                            listener.onNextMediaStarted(metadata);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    public final void playFromMedia(MediaMetadataCompat metadata) {
+        submit(MSG_PLAY_FROM_MEDIA, metadata);
+    }
+
+    /**
+     * Called on the player thread to start playing {@code metadata}.
+     */
+    protected abstract void onPlayFromMedia(MediaMetadataCompat metadata);
 
+    /**
+     * @return the media last passed to {@link #playFromMedia}, or the one that took over from
+     * it; may be called from any thread.
+     */
     public abstract MediaMetadataCompat getCurrentMedia();
 
+    /**
+     * May be called from any thread, so implementations must not query the native player.
+     */
     public abstract boolean isPlaying();
 
+    /**
+     * Tells the player which media surround the current one in the queue, so that they can be
+     * prepared ahead of time while playing. The next media is also started without a gap when
+     * the current one completes. Either may be {@code null}. With {@code repeatCurrent}, the
+     * current media starts over when it completes instead, and there should be no next media;
+     * a queue may hold the same track twice in a row, so that isn't told by the media alone.
+     */
+    public final void setQueueNeighbours(@Nullable MediaMetadataCompat previous,
+                                         @Nullable MediaMetadataCompat next,
+                                         boolean repeatCurrent) {
+        submit(MSG_SET_QUEUE_NEIGHBOURS, new QueueNeighbours(previous, next, repeatCurrent));
+    }
+
+    /**
+     * Called on the player thread with the arguments of {@link #setQueueNeighbours}.
+     * <p>
+     * The default implementation does nothing, in which case playback simply completes.
+     */
+    protected void onSetQueueNeighbours(@Nullable MediaMetadataCompat previous,
+                                        @Nullable MediaMetadataCompat next,
+                                        boolean repeatCurrent) {
+    }
+
     public final void play() {
+        submit(MSG_PLAY, null);
+    }
+
+    /**
+     * Same as {@link #play()}, but runs right away. Must be called on the player thread.
+     */
+    protected final void playNow() {
         if (mAudioFocusHelper.requestAudioFocus()) {
             registerAudioNoisyReceiver();
             onPlay();
@@ -82,6 +235,10 @@ public abstract class PlayerAdapter {
     protected abstract void onPlay();
 
     public final void pause() {
+        submit(MSG_PAUSE, null);
+    }
+
+    private void pauseNow() {
         if (!mPlayOnAudioFocus) {
             mAudioFocusHelper.abandonAudioFocus();
         }
@@ -96,6 +253,10 @@ public abstract class PlayerAdapter {
     protected abstract void onPause();
 
     public final void stop() {
+        submit(MSG_STOP, null);
+    }
+
+    private void stopNow() {
         mAudioFocusHelper.abandonAudioFocus();
         unregisterAudioNoisyReceiver();
         onStop();
@@ -107,13 +268,119 @@ public abstract class PlayerAdapter {
      */
     protected abstract void onStop();
 
-    public abstract void seekTo(long position);
+    public final void seekTo(long position) {
+        submit(MSG_SEEK_TO, position);
+    }
+
+    protected abstract void onSeekTo(long position);
+
+    public final void setVolume(float volume) {
+        submit(MSG_SET_VOLUME, volume);
+    }
+
+    protected abstract void onSetVolume(float volume);
+
+    /**
+     * Shuts the player thread down once the commands already queued, typically a
+     * {@link #stop()}, have run. Updates that haven't reached the listener yet are dropped,
+     * and the adapter can't be used anymore.
+     */
+    public final void release() {
+        mReleased = true;
+        mMainHandler.removeCallbacksAndMessages(null);
+        mPlayerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onRelease();
+            }
+        });
+        mPlayerThread.quitSafely();
+        Log.d(TAG, "release: commands=" + mCommandCount + ", collapsed=" + mCollapsedCount);
+    }
+
+    /**
+     * Called on the player thread by {@link #release()}, after the commands queued before it.
+     * <p>
+     * The default implementation does nothing.
+     */
+    protected void onRelease() {
+    }
 
-    public abstract void setVolume(float volume);
+    private void submit(int what, Object argument) {
+        synchronized (mPendingCommands) {
+            mCommandCount++;
+            if (what == MSG_STOP) {
+                // Nothing that was asked for before the stop matters anymore.
+                final Iterator<Command> commands = mPendingCommands.iterator();
+                while (commands.hasNext()) {
+                    final int pending = commands.next().mWhat;
+                    if (pending == MSG_PLAY_FROM_MEDIA || pending == MSG_PLAY
+                            || pending == MSG_SEEK_TO) {
+                        commands.remove();
+                        mCollapsedCount++;
+                    }
+                }
+            } else {
+                final Command replaced = findReplaceable(what);
+                if (replaced != null) {
+                    // As good as running the new command last, since it commutes with those
+                    // after it.
+                    replaced.mWhat = what;
+                    replaced.mArgument = argument;
+                    mCollapsedCount++;
+                    return;
+                }
+            }
+            send(new Command(what, argument));
+        }
+    }
+
+    /**
+     * @return the pending command that a new command of kind {@code what} supersedes, if that
+     * only has to move past commands it commutes with; otherwise null.
+     */
+    private Command findReplaceable(int what) {
+        final int opposite = what == MSG_PLAY ? MSG_PAUSE : (what == MSG_PAUSE ? MSG_PLAY : 0);
+        final Iterator<Command> commands = mPendingCommands.descendingIterator();
+        while (commands.hasNext()) {
+            final Command command = commands.next();
+            if (command.mWhat == what || command.mWhat == opposite) {
+                return command;
+            }
+            if (!commute(what, command.mWhat)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether commands of the two kinds have the same effect in either order.
+     */
+    private static boolean commute(int first, int second) {
+        if (first == MSG_SET_VOLUME || second == MSG_SET_VOLUME) {
+            // The volume is kept for whatever plays next; audio focus changes duck it though.
+            return first != second
+                    && first != MSG_AUDIO_FOCUS_CHANGE && second != MSG_AUDIO_FOCUS_CHANGE;
+        }
+        if (first == MSG_SET_QUEUE_NEIGHBOURS || second == MSG_SET_QUEUE_NEIGHBOURS) {
+            // Neighbours are relative to the current media, whatever its position or state.
+            final int other = first == MSG_SET_QUEUE_NEIGHBOURS ? second : first;
+            return other == MSG_PLAY || other == MSG_PAUSE || other == MSG_SEEK_TO;
+        }
+        return false;
+    }
+
+    // Called with mPendingCommands held.
+    private void send(Command command) {
+        mPendingCommands.addLast(command);
+        mPlayerHandler.obtainMessage(MSG_COMMAND, command).sendToTarget();
+    }
 
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
-            mApplicationContext.registerReceiver(mAudioNoisyReceiver, AUDIO_NOISY_INTENT_FILTER);
+            mApplicationContext.registerReceiver(
+                    mAudioNoisyReceiver, AUDIO_NOISY_INTENT_FILTER, null, mPlayerHandler);
             mAudioNoisyReceiverRegistered = true;
         }
     }
@@ -125,6 +392,87 @@ public abstract class PlayerAdapter {
         }
     }
 
+    /**
+     * Runs commands on the player thread.
+     */
+    private final class CommandHandler implements Handler.Callback {
+        @Override
+        public boolean handleMessage(Message message) {
+            if (message.what != MSG_COMMAND) {
+                return false;
+            }
+            final Command command = (Command) message.obj;
+            final int what;
+            final Object argument;
+            synchronized (mPendingCommands) {
+                if (!mPendingCommands.remove(command)) {
+                    // Dropped by a stop.
+                    return true;
+                }
+                what = command.mWhat;
+                argument = command.mArgument;
+            }
+            switch (what) {
+                case MSG_PLAY_FROM_MEDIA:
+                    onPlayFromMedia((MediaMetadataCompat) argument);
+                    break;
+                case MSG_SET_QUEUE_NEIGHBOURS:
+                    final QueueNeighbours neighbours = (QueueNeighbours) argument;
+                    onSetQueueNeighbours(neighbours.mPrevious, neighbours.mNext,
+                                         neighbours.mRepeatCurrent);
+                    break;
+                case MSG_PLAY:
+                    playNow();
+                    break;
+                case MSG_PAUSE:
+                    pauseNow();
+                    break;
+                case MSG_STOP:
+                    stopNow();
+                    break;
+                case MSG_SEEK_TO:
+                    onSeekTo((Long) argument);
+                    break;
+                case MSG_SET_VOLUME:
+                    onSetVolume((Float) argument);
+                    break;
+                case MSG_AUDIO_FOCUS_CHANGE:
+                    mAudioFocusHelper.handleAudioFocusChange((Integer) argument);
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A queued command. While it waits, a newer command may take its place.
+     */
+    private static final class Command {
+        private int mWhat;
+        private Object mArgument;
+
+        private Command(int what, Object argument) {
+            mWhat = what;
+            mArgument = argument;
+        }
+    }
+
+    private static final class QueueNeighbours {
+        private final MediaMetadataCompat mPrevious;
+        private final MediaMetadataCompat mNext;
+        private final boolean mRepeatCurrent;
+
+        private QueueNeighbours(MediaMetadataCompat previous,
+                                MediaMetadataCompat next,
+                                boolean repeatCurrent) {
+            mPrevious = previous;
+            mNext = next;
+            mRepeatCurrent = repeatCurrent;
+        }
+    }
+
     /**
      * Helper class for managing audio focus related tasks.
      */
@@ -144,28 +492,35 @@ public abstract class PlayerAdapter {
 
         @Override
         public void onAudioFocusChange(int focusChange) {
+            // May arrive on the main thread; handled in order with the other commands.
+            synchronized (mPendingCommands) {
+                send(new Command(MSG_AUDIO_FOCUS_CHANGE, focusChange));
+            }
+        }
+
+        private void handleAudioFocusChange(int focusChange) {
             switch (focusChange) {
                 case AudioManager.AUDIOFOCUS_GAIN:
                     if (mPlayOnAudioFocus && !isPlaying()) {
-                        play();
+                        playNow();
                     } else if (isPlaying()) {
-                        setVolume(MEDIA_VOLUME_DEFAULT);
+                        onSetVolume(MEDIA_VOLUME_DEFAULT);
                     }
                     mPlayOnAudioFocus = false;
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    setVolume(MEDIA_VOLUME_DUCK);
+                    onSetVolume(MEDIA_VOLUME_DUCK);
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                     if (isPlaying()) {
                         mPlayOnAudioFocus = true;
-                        pause();
+                        pauseNow();
                     }
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS:
                     mAudioManager.abandonAudioFocus(this);
                     mPlayOnAudioFocus = false;
-                    stop();
+                    stopNow();
                     break;
             }
         }
@@ -0,0 +1,741 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the play queue, the current queue position and the playback position on disk, so a
+ * new instance of the service can pick up where the last one left off.
+ * <p>
+ * The file is an append-only journal: a snapshot of the whole queue followed by one small
+ * record per edit, index change or position checkpoint. Once the records add up to more than
+ * the snapshot (and at least {@link #MIN_COMPACT_BYTES}), {@link #needsCompaction()} asks for
+ * a new snapshot, which replaces the file atomically. Each record carries a checksum, so a
+ * record torn by a crash is dropped on restore along with anything after it.
+ * <p>
+ * Records are encoded on the calling thread and written in order on a background thread,
+ * which also replays the journal on restore, so the main thread never waits for the disk.
+ * Queue items are stored with their descriptions, so restoring doesn't wait for the catalog,
+ * and with their queue IDs and whether they played in the current shuffle cycle, so shuffled
+ * playback carries on where it was.
+ * <p>
+ * Replaying is O(queue + journal), so the current item and the playback position are also
+ * kept in a tiny head file next to the journal, which {@link #readHead()} reads right away.
+ * Not thread safe: call it from the main thread.
+ */
+final class QueueJournal {
+
+    private static final String TAG = QueueJournal.class.getSimpleName();
+
+    private static final int MAGIC = 0x4d53514a; // "MSQJ"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte RECORD_SNAPSHOT = 1;
+    private static final byte RECORD_INSERT = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte RECORD_INDEX = 4;
+    private static final byte RECORD_POSITION = 5;
+    private static final byte RECORD_PLAYED = 6;
+    private static final byte RECORD_CLEAR_PLAYED = 7;
+
+    // Type, payload length and checksum around each payload.
+    private static final int RECORD_OVERHEAD_BYTES = 9;
+
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+    private static final String HEAD_SUFFIX = ".head";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * What {@link #restore} found.
+     */
+    static final class State {
+        final List<QueueItem> mQueue;
+        // Queue IDs of the items played in the current shuffle cycle.
+        final Set<Long> mPlayed;
+        final int mIndex;
+        final long mPositionMs;
+
+        private State(List<QueueItem> queue, Set<Long> played, int index, long positionMs) {
+            mQueue = queue;
+            mPlayed = played;
+            mIndex = index;
+            mPositionMs = positionMs;
+        }
+    }
+
+    /**
+     * The current queue item and the playback position in it, as of the last update.
+     */
+    static final class Head {
+        @Nullable
+        final MediaDescriptionCompat mItem;
+        final long mPositionMs;
+
+        private Head(@Nullable MediaDescriptionCompat item, long positionMs) {
+            mItem = item;
+            mPositionMs = positionMs;
+        }
+    }
+
+    /**
+     * Receives the restored journal on the main thread.
+     */
+    interface RestoreListener {
+        /**
+         * @param state the saved state, or null if there is none or the queue has been
+         *              replaced since {@link #restore} was called.
+         */
+        void onRestored(@Nullable State state);
+    }
+
+    // What the writer thread read back, and how much of the file it is made of.
+    private static final class Replay {
+        final State mState;
+        final long mSnapshotBytes;
+        final long mJournalBytes;
+
+        Replay(State state, long snapshotBytes, long journalBytes) {
+            mState = state;
+            mSnapshotBytes = snapshotBytes;
+            mJournalBytes = journalBytes;
+        }
+    }
+
+    private final File mFile;
+    private final File mHeadFile;
+    private final ThreadPoolExecutor mWriter;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // The latest head, waiting for the writer thread; null once written.
+    private final AtomicReference<byte[]> mPendingHead = new AtomicReference<>();
+
+    // What the file holds as far as the main thread knows; writes may still be queued.
+    private boolean mHasSnapshot;
+    private long mSnapshotBytes;
+    private long mJournalBytes;
+    private int mIndex = -1;
+    private long mPositionMs;
+    @Nullable
+    private MediaDescriptionCompat mItem;
+    private boolean mClosed;
+
+    QueueJournal(@NonNull File file) {
+        mFile = file;
+        mHeadFile = new File(file.getPath() + HEAD_SUFFIX);
+        mWriter = new ThreadPoolExecutor(
+                1,
+                1,
+                30,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "queue-journal");
+                    }
+                });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reads the head file, which is a few hundred bytes at most.
+     *
+     * @return the current item and position as last saved, or null if there are none.
+     */
+    @Nullable
+    Head readHead() {
+        if (!mHeadFile.isFile()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(mHeadFile));
+            try {
+                final byte[] data = new byte[(int) mHeadFile.length()];
+                in.readFully(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length - 4);
+                final DataInputStream head = new DataInputStream(new ByteArrayInputStream(data));
+                if (head.readInt() != MAGIC || head.readInt() != VERSION) {
+                    return null;
+                }
+                final long positionMs = head.readLong();
+                final List<MediaDescriptionCompat> items = new ArrayList<>(1);
+                readDescriptions(head, items);
+                if (head.readInt() != (int) crc.getValue()) {
+                    throw new IOException("Bad checksum");
+                }
+                return new Head(items.isEmpty() ? null : items.get(0), positionMs);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "readHead: ignoring " + mHeadFile + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the journal back on the writer thread, dropping a torn tail, and hands it to
+     * {@code listener} on the main thread. Call once, before anything is written; records
+     * appended before the queue is delivered are dropped, and a snapshot written meanwhile
+     * replaces it.
+     */
+    void restore(@NonNull final RestoreListener listener) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Replay replay = replay();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mClosed) {
+                            listener.onRestored(onReplayed(replay));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Called on the main thread.
+    @Nullable
+    private State onReplayed(@Nullable Replay replay) {
+        if (replay == null || mHasSnapshot) {
+            return null;
+        }
+        mHasSnapshot = true;
+        mSnapshotBytes = replay.mSnapshotBytes;
+        mJournalBytes = replay.mJournalBytes;
+        mIndex = replay.mState.mIndex;
+        mPositionMs = replay.mState.mPositionMs;
+        mItem = mIndex >= 0 ? replay.mState.mQueue.get(mIndex).getDescription() : null;
+        return replay.mState;
+    }
+
+    // Called on the writer thread.
+    @Nullable
+    private Replay replay() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        final List<QueueItem> queue = new ArrayList<>();
+        final Set<Long> played = new HashSet<>();
+        // Index and position as of the records read so far.
+        final long[] current = {-1, 0};
+        long snapshotBytes = -1;
+        long validBytes = 0;
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(TAG, "replay: ignoring " + mFile + " from another version");
+                    return null;
+                }
+                validBytes = HEADER_BYTES;
+                final CRC32 crc = new CRC32();
+                byte[] payload = new byte[256];
+                while (true) {
+                    final int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    final int length = in.readInt();
+                    if (length < 0 || length > mFile.length()) {
+                        throw new IOException("Bad record length " + length);
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        throw new IOException("Bad checksum");
+                    }
+                    apply((byte) type,
+                          new DataInputStream(new ByteArrayInputStream(payload, 0, length)),
+                          queue,
+                          played,
+                          current);
+                    validBytes += RECORD_OVERHEAD_BYTES + length;
+                    if (type == RECORD_SNAPSHOT) {
+                        snapshotBytes = RECORD_OVERHEAD_BYTES + length;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "replay: dropping torn record at " + validBytes);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "replay: dropping records from " + validBytes, e);
+        }
+        if (snapshotBytes < 0) {
+            return null;
+        }
+
+        if (validBytes < mFile.length()) {
+            // Appends have to follow the last good record.
+            truncate(validBytes);
+        }
+        final int index = (int) Math.max(-1, Math.min(current[0], queue.size() - 1));
+        return new Replay(new State(queue, played, index, current[1]),
+                          snapshotBytes,
+                          validBytes - HEADER_BYTES - snapshotBytes);
+    }
+
+    /**
+     * @return whether the journal wants {@link #writeSnapshot}, because it has grown past the
+     * snapshot or has none yet.
+     */
+    boolean needsCompaction() {
+        return !mClosed
+                && (!mHasSnapshot || mJournalBytes > Math.max(MIN_COMPACT_BYTES, mSnapshotBytes));
+    }
+
+    /**
+     * Replaces the journal with a snapshot of {@code queue}, including which items played,
+     * and the current index and position.
+     */
+    void writeSnapshot(@NonNull PlaybackQueue playbackQueue) {
+        if (mClosed) {
+            return;
+        }
+        final List<QueueItem> queue = playbackQueue.toList();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + queue.size() * 72);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            final DataOutputStream payloadOut = new DataOutputStream(payload);
+            writeItems(payloadOut, queue);
+            payloadOut.writeInt(playbackQueue.getPlayedCount());
+            for (QueueItem item : queue) {
+                if (playbackQueue.isPlayed(item.getQueueId())) {
+                    payloadOut.writeLong(item.getQueueId());
+                }
+            }
+            writeRecord(out, RECORD_SNAPSHOT, payload);
+            mSnapshotBytes = bytes.size() - HEADER_BYTES;
+
+            payload.reset();
+            payloadOut.writeInt(mIndex);
+            writeRecord(out, RECORD_INDEX, payload);
+            payload.reset();
+            payloadOut.writeLong(mPositionMs);
+            writeRecord(out, RECORD_POSITION, payload);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mHasSnapshot = true;
+        mJournalBytes = bytes.size() - HEADER_BYTES - mSnapshotBytes;
+
+        final byte[] data = bytes.toByteArray();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                replaceFile(mFile, data, true);
+            }
+        });
+    }
+
+    /**
+     * Records {@code items} inserted at {@code position}.
+     */
+    void insert(int position, @NonNull List<QueueItem> items) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(8 + items.size() * 72);
+        final DataOutputStream out = new DataOutputStream(payload);
+        try {
+            out.writeInt(position);
+            writeItems(out, items);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(RECORD_INSERT, payload);
+    }
+
+    /**
+     * Records the item at {@code position} removed.
+     */
+    void remove(int position) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+        try {
+            new DataOutputStream(payload).writeInt(position);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(RECORD_REMOVE, payload);
+    }
+
+    /**
+     * Records the item with the given queue ID as played in the current shuffle cycle.
+     */
+    void setPlayed(long queueId) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(8);
+        try {
+            new DataOutputStream(payload).writeLong(queueId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(RECORD_PLAYED, payload);
+    }
+
+    /**
+     * Records the start of a new shuffle cycle, in which nothing has played yet.
+     */
+    void clearPlayed() {
+        append(RECORD_CLEAR_PLAYED, new ByteArrayOutputStream(0));
+    }
+
+    /**
+     * Records the current queue position and the item there, if they changed.
+     */
+    void setIndex(int index, @Nullable MediaDescriptionCompat item) {
+        if (item != mItem) {
+            mItem = item;
+            updateHead();
+        }
+        if (index == mIndex) {
+            return;
+        }
+        mIndex = index;
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+        try {
+            new DataOutputStream(payload).writeInt(index);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(RECORD_INDEX, payload);
+    }
+
+    /**
+     * Records the playback position within the current item, if it changed.
+     */
+    void setPosition(long positionMs) {
+        if (positionMs == mPositionMs) {
+            return;
+        }
+        mPositionMs = positionMs;
+        updateHead();
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(8);
+        try {
+            new DataOutputStream(payload).writeLong(positionMs);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(RECORD_POSITION, payload);
+    }
+
+    /**
+     * Ignores any further calls. Pending writes still finish in the background.
+     */
+    void close() {
+        mClosed = true;
+        mWriter.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "QueueJournal{snapshot=" + mSnapshotBytes + "B, journal=" + mJournalBytes + "B}";
+    }
+
+    /**
+     * Saves the current item and position in the head file. Only the latest head is written,
+     * however often it changes while the writer thread is busy.
+     */
+    private void updateHead() {
+        if (mClosed) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mPositionMs);
+            writeDescriptions(out, mItem != null
+                    ? Collections.singletonList(mItem)
+                    : Collections.<MediaDescriptionCompat>emptyList());
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (mPendingHead.getAndSet(bytes.toByteArray()) != null) {
+            // A write is already queued and picks this one up.
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] data = mPendingHead.getAndSet(null);
+                if (data != null) {
+                    replaceFile(mHeadFile, data, false);
+                }
+            }
+        });
+    }
+
+    private void append(byte type, ByteArrayOutputStream payload) {
+        if (mClosed || !mHasSnapshot) {
+            // Without a snapshot, records have nothing to apply to; needsCompaction() says so.
+            return;
+        }
+        final ByteArrayOutputStream record =
+                new ByteArrayOutputStream(RECORD_OVERHEAD_BYTES + payload.size());
+        try {
+            writeRecord(new DataOutputStream(record), type, payload);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mJournalBytes += record.size();
+
+        final byte[] data = record.toByteArray();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                appendToFile(data);
+            }
+        });
+    }
+
+    private static void writeRecord(DataOutputStream out,
+                                    byte type,
+                                    ByteArrayOutputStream payload) throws IOException {
+        final byte[] data = payload.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, 0, data.length);
+        out.writeByte(type);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void apply(byte type,
+                              DataInputStream in,
+                              List<QueueItem> queue,
+                              Set<Long> played,
+                              long[] current) throws IOException {
+        switch (type) {
+            case RECORD_SNAPSHOT: {
+                queue.clear();
+                readItems(in, queue);
+                played.clear();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    played.add(in.readLong());
+                }
+                break;
+            }
+            case RECORD_INSERT: {
+                final int position = in.readInt();
+                final List<QueueItem> items = new ArrayList<>();
+                readItems(in, items);
+                queue.addAll(Math.max(0, Math.min(position, queue.size())), items);
+                break;
+            }
+            case RECORD_REMOVE: {
+                final int position = in.readInt();
+                if (position >= 0 && position < queue.size()) {
+                    queue.remove(position);
+                }
+                break;
+            }
+            case RECORD_INDEX:
+                current[0] = in.readInt();
+                break;
+            case RECORD_POSITION:
+                current[1] = in.readLong();
+                break;
+            case RECORD_PLAYED:
+                played.add(in.readLong());
+                break;
+            case RECORD_CLEAR_PLAYED:
+                played.clear();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void writeItems(DataOutputStream out, List<QueueItem> items)
+            throws IOException {
+        out.writeInt(items.size());
+        for (QueueItem item : items) {
+            out.writeLong(item.getQueueId());
+            writeDescription(out, item.getDescription());
+        }
+    }
+
+    private static void readItems(DataInputStream in, List<QueueItem> out) throws IOException {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final long queueId = in.readLong();
+            out.add(new QueueItem(readDescription(in), queueId));
+        }
+    }
+
+    private static void writeDescriptions(DataOutputStream out,
+                                          List<MediaDescriptionCompat> descriptions)
+            throws IOException {
+        out.writeInt(descriptions.size());
+        for (MediaDescriptionCompat description : descriptions) {
+            writeDescription(out, description);
+        }
+    }
+
+    private static void readDescriptions(DataInputStream in,
+                                         List<MediaDescriptionCompat> out) throws IOException {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            out.add(readDescription(in));
+        }
+    }
+
+    private static void writeDescription(DataOutputStream out,
+                                         MediaDescriptionCompat description)
+            throws IOException {
+        writeString(out, description.getMediaId());
+        writeString(out, description.getTitle());
+        writeString(out, description.getSubtitle());
+        writeString(out, description.getDescription());
+        final Uri iconUri = description.getIconUri();
+        writeString(out, iconUri != null ? iconUri.toString() : null);
+    }
+
+    private static MediaDescriptionCompat readDescription(DataInputStream in)
+            throws IOException {
+        final String mediaId = readString(in);
+        final String title = readString(in);
+        final String subtitle = readString(in);
+        final String description = readString(in);
+        final String iconUri = readString(in);
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .setDescription(description)
+                .setIconUri(iconUri != null ? Uri.parse(iconUri) : null)
+                .build();
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.toString());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Called on the writer thread.
+    private void appendToFile(byte[] data) {
+        try {
+            final FileOutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "appendToFile: failed to write " + mFile, e);
+        }
+    }
+
+    // Called on the writer thread. The head file isn't synced: if a crash tears it, its
+    // checksum fails and resuming just waits for the journal.
+    private static void replaceFile(File file, byte[] data, boolean sync) {
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+                if (sync) {
+                    // The rename must not overtake the data, or a crash could leave an empty
+                    // file.
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "replaceFile: failed to write " + file, e);
+            temp.delete();
+        }
+    }
+
+    private void truncate(long length) {
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "truncate: failed to truncate " + mFile, e);
+        }
+    }
+}
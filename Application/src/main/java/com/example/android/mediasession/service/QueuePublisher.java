@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+
+/**
+ * Publishes a {@link PlaybackQueue} to a {@link MediaSessionCompat} at most once per
+ * {@link #PUBLISH_DELAY_MS}.
+ * <p>
+ * Every {@code setQueue()} sends the whole queue to every controller, so a burst of edits
+ * (e.g. a client adding items one at a time) would otherwise cost O(n) IPC per edit. Instead,
+ * edits mark the queue dirty and a single publication goes out once the burst is over.
+ * <p>
+ * Only a window of the queue around the current item is published, which keeps
+ * {@code setQueue()} well under the Binder transaction limit no matter how long the queue
+ * is. The window slides as the current item moves, but only once it gets close to an edge,
+ * so skipping around doesn't republish every time. The session extras carry the window's
+ * offset ({@link #EXTRA_QUEUE_WINDOW_START}) and the full queue size
+ * ({@link #EXTRA_QUEUE_SIZE}); the full queue can be paged through the browsable
+ * {@link MusicService#QUEUE_MEDIA_ID} node.
+ * <p>
+ * Must be used from the main thread.
+ */
+public class QueuePublisher {
+
+    private static final String TAG = QueuePublisher.class.getSimpleName();
+
+    public static final String EXTRA_QUEUE_WINDOW_START =
+            "com.example.android.mediasession.QUEUE_WINDOW_START";
+    public static final String EXTRA_QUEUE_SIZE = "com.example.android.mediasession.QUEUE_SIZE";
+
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    // Roughly one frame: short enough that controllers don't notice, long enough to collapse
+    // the addQueueItem() calls a client makes in a single loop.
+    private static final long PUBLISH_DELAY_MS = 16;
+
+    private final MediaBrowserServiceCompat mService;
+    private final MediaSessionCompat mSession;
+    private final PlaybackQueue mQueue;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishNow();
+        }
+    };
+
+    private int mWindowSize = DEFAULT_WINDOW_SIZE;
+    private int mCurrentIndex = -1;
+    private boolean mPending;
+
+    // The window that was last published: [mPublishedFrom, mPublishedTo).
+    private int mPublishedFrom;
+    private int mPublishedTo;
+    private int mPublishedSize = -1;
+
+    private int mInvalidateCount;
+    private int mPublishCount;
+
+    public QueuePublisher(MediaBrowserServiceCompat service,
+                          MediaSessionCompat session,
+                          PlaybackQueue queue) {
+        mService = service;
+        mSession = session;
+        mQueue = queue;
+    }
+
+    /**
+     * Sets how many items are published at most. The queue is republished with the new size.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        if (windowSize != mWindowSize) {
+            mWindowSize = windowSize;
+            invalidate();
+        }
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Updates the position of the current item. The window is only republished if the item
+     * has moved close to (or past) an edge of the published window.
+     */
+    public void setCurrentIndex(int currentIndex) {
+        mCurrentIndex = currentIndex;
+        if (mPending || mPublishedSize < 0) {
+            return;
+        }
+
+        final int margin = mWindowSize / 4;
+        final boolean nearStart = mPublishedFrom > 0 && currentIndex - mPublishedFrom < margin;
+        final boolean nearEnd = mPublishedTo < mPublishedSize
+                && mPublishedTo - currentIndex <= margin;
+        if (nearStart || nearEnd || currentIndex < mPublishedFrom
+                || currentIndex >= mPublishedTo) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Schedules a publication of the queue, unless one is already pending.
+     */
+    public void invalidate() {
+        mInvalidateCount++;
+        if (!mPending) {
+            mPending = true;
+            mHandler.postDelayed(mPublishRunnable, PUBLISH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Publishes the queue right away, folding in any pending publication.
+     */
+    public void publishNow() {
+        mHandler.removeCallbacks(mPublishRunnable);
+        mPending = false;
+        mPublishCount++;
+
+        // Most clients show what's coming up, so most of the window comes after the current
+        // item.
+        final int size = mQueue.size();
+        final int before = mWindowSize / 4;
+        int from = Math.max(0, mCurrentIndex - before);
+        final int to = Math.min(size, from + mWindowSize);
+        from = Math.max(0, to - mWindowSize);
+
+        mPublishedFrom = from;
+        mPublishedTo = to;
+        mPublishedSize = size;
+
+        final Bundle extras = new Bundle();
+        extras.putInt(EXTRA_QUEUE_WINDOW_START, from);
+        extras.putInt(EXTRA_QUEUE_SIZE, size);
+        mSession.setExtras(extras);
+        mSession.setQueue(mQueue.subList(from, to));
+        mService.notifyChildrenChanged(MusicService.QUEUE_MEDIA_ID);
+    }
+
+    /**
+     * Drops any pending publication.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mPublishRunnable);
+        mPending = false;
+        Log.d(TAG, "release: " + mInvalidateCount + " queue changes, "
+                + mPublishCount + " publications");
+    }
+}
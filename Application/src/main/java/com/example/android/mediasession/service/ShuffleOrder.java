@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+/**
+ * A pseudo-random permutation of {@code [0, size)}, computed one element at a time. While
+ * shuffling, it orders the queue IDs of a range, offset by the start of the range.
+ * <p>
+ * The permutation is a small Feistel network over the smallest power of four covering
+ * {@code size}; values that fall outside the range are encrypted again until one lands inside
+ * ("cycle walking"). Nothing is stored per value, so creating an order is O(1) whatever the
+ * size. Because the domain is less than four times the size, {@link #get} and
+ * {@link #indexOf} take O(1) expected time too.
+ * <p>
+ * The same size and seed always give the same order, so persisting them is enough to restore
+ * it.
+ */
+final class ShuffleOrder {
+
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    private final long mSeed;
+    private final int mHalfBits;
+    private final int mHalfMask;
+
+    ShuffleOrder(int size, long seed) {
+        mSize = size;
+        mSeed = seed;
+        int halfBits = 1;
+        while ((1L << (2 * halfBits)) < size) {
+            halfBits++;
+        }
+        mHalfBits = halfBits;
+        mHalfMask = (1 << halfBits) - 1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the value at {@code step} of the order.
+     */
+    int get(int step) {
+        checkIndex(step);
+        int value = step;
+        do {
+            value = encrypt(value);
+        } while (value >= mSize);
+        return value;
+    }
+
+    /**
+     * @return the step of the order at which {@code value} comes.
+     */
+    int indexOf(int value) {
+        checkIndex(value);
+        do {
+            value = decrypt(value);
+        } while (value >= mSize);
+        return value;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+
+    private int encrypt(int value) {
+        int left = value >>> mHalfBits;
+        int right = value & mHalfMask;
+        for (int round = 0; round < ROUNDS; round++) {
+            final int next = left ^ mix(right, round);
+            left = right;
+            right = next;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private int decrypt(int value) {
+        int left = value >>> mHalfBits;
+        int right = value & mHalfMask;
+        for (int round = ROUNDS - 1; round >= 0; round--) {
+            final int previous = right ^ mix(left, round);
+            right = left;
+            left = previous;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    // The round function: any keyed hash will do, as long as it's cheap and well mixed.
+    private int mix(int half, int round) {
+        long hash = (half + 1) * 0x9E3779B97F4A7C15L + mSeed + round * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 31)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 29;
+        return (int) hash & mHalfMask;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Memory bounded cache of decoded album art, keyed by media ID and target size.
+ * <p>
+ * Bitmaps are decoded with the smallest {@code inSampleSize} that still covers the requested
+ * size and then scaled to fit it, so the cache only ever holds what is actually displayed.
+ * Sampled decodes go through a private, reused buffer ({@code inBitmap}); that buffer is never
+ * handed out, which makes it safe to overwrite while earlier results are still on screen.
+ * <p>
+ * This class is thread safe.
+ */
+public class AlbumArtCache {
+
+    private static final String TAG = AlbumArtCache.class.getSimpleName();
+
+    // Use at most 1/8th of the heap for album art.
+    private static final int MAX_HEAP_FRACTION = 8;
+
+    private final LruCache<String, Bitmap> mCache;
+
+    // Guarded by "this". Reusable target for sampled decodes.
+    private Bitmap mDecodeBuffer;
+    private long mDecodeCount;
+    private long mDecodeTimeMs;
+    private long mBufferReuseCount;
+
+    public AlbumArtCache() {
+        this((int) Math.min(Integer.MAX_VALUE,
+                            Runtime.getRuntime().maxMemory() / MAX_HEAP_FRACTION));
+    }
+
+    public AlbumArtCache(int maxSizeBytes) {
+        mCache = new LruCache<String, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the art for {@code mediaId} scaled to fit within {@code width} x {@code height},
+     * decoding {@code resId} only on a cache miss.
+     */
+    @Nullable
+    public Bitmap get(Resources resources, String mediaId, int resId, int width, int height) {
+        if (resId == 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final String key = mediaId + '@' + width + 'x' + height;
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            bitmap = decode(resources, resId, width, height);
+            if (bitmap != null) {
+                mCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the art for {@code mediaId} at the given size if it is cached, without decoding
+     * it otherwise; cheap enough for the main thread.
+     */
+    @Nullable
+    public Bitmap peek(String mediaId, int width, int height) {
+        return mCache.get(mediaId + '@' + width + 'x' + height);
+    }
+
+    /**
+     * Drops every cached bitmap, e.g. when the catalog is replaced.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public int getSizeBytes() {
+        return mCache.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AlbumArtCache{hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount()
+                + ", bytes=" + getSizeBytes() + "/" + mCache.maxSize()
+                + ", decodes=" + mDecodeCount
+                + ", decodeMs=" + mDecodeTimeMs
+                + ", bufferReuses=" + mBufferReuseCount
+                + "}";
+    }
+
+    private synchronized Bitmap decode(Resources resources, int resId, int width, int height) {
+        final long start = SystemClock.elapsedRealtime();
+
+        // Resources are decoded as raw streams so that no density scaling gets in the way
+        // of the sample size and buffer reuse below.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resources, resId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "decode: unable to read bounds of resource " + resId);
+            return null;
+        }
+        final int sourceWidth = options.outWidth;
+        final int sourceHeight = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(sourceWidth, sourceHeight, width, height);
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // Since API 19 inBitmap only needs to be large enough, not the exact same size.
+        final int sampledBytes = (sourceWidth / options.inSampleSize + 1)
+                * (sourceHeight / options.inSampleSize + 1) * 4;
+        if (mDecodeBuffer != null && mDecodeBuffer.getAllocationByteCount() >= sampledBytes) {
+            options.inBitmap = mDecodeBuffer;
+        }
+
+        Bitmap sampled;
+        try {
+            sampled = decodeStream(resources, resId, options);
+        } catch (IllegalArgumentException e) {
+            // The buffer could not be reused for this image; decode into a new one.
+            options.inBitmap = null;
+            sampled = decodeStream(resources, resId, options);
+        }
+        if (sampled == null) {
+            return null;
+        }
+        if (options.inBitmap != null && sampled == options.inBitmap) {
+            mBufferReuseCount++;
+        }
+        mDecodeBuffer = sampled;
+
+        // Fit inside the requested box, preserving aspect ratio, and never upscale.
+        final float scale = Math.min(1f, Math.min(
+                (float) width / sampled.getWidth(), (float) height / sampled.getHeight()));
+        final int targetWidth = Math.max(1, Math.round(sampled.getWidth() * scale));
+        final int targetHeight = Math.max(1, Math.round(sampled.getHeight() * scale));
+        Bitmap result = Bitmap.createScaledBitmap(sampled, targetWidth, targetHeight, true);
+        if (result == sampled) {
+            result = sampled.copy(sampled.getConfig(), false);
+        }
+
+        mDecodeCount++;
+        mDecodeTimeMs += SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    private static Bitmap decodeStream(Resources resources,
+                                       int resId,
+                                       BitmapFactory.Options options) {
+        final InputStream stream = resources.openRawResource(resId);
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "decodeStream: failed to close resource " + resId, e);
+            }
+        }
+    }
+
+    /**
+     * Largest power of two that keeps both dimensions at or above the requested size.
+     */
+    private static int calculateInSampleSize(int sourceWidth,
+                                             int sourceHeight,
+                                             int width,
+                                             int height) {
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2) >= width
+                && sourceHeight / (inSampleSize * 2) >= height) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+}
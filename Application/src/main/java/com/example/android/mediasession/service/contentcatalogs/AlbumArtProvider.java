@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.BuildConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serves album art as pre-scaled JPEG thumbnails, so that session metadata can carry an
+ * {@link android.support.v4.media.MediaMetadataCompat#METADATA_KEY_ALBUM_ART_URI} instead of
+ * a bitmap that would be copied to every controller on every update.
+ * <p>
+ * URIs look like {@code content://<authority>/art/<media ID>?size=<pixels>}; see
+ * {@link #getAlbumArtUri}. Sizes are rounded up to a multiple of {@link #SIZE_STEP_PX} and
+ * capped at {@link #MAX_SIZE_PX}, which bounds the number of distinct thumbnails.
+ * <p>
+ * Encoded thumbnails are kept in a small on-disk LRU cache, keyed by art resource and size,
+ * so tracks sharing an album share a file. A cached thumbnail is handed out as a file
+ * descriptor directly. Otherwise it is encoded on a background thread and streamed through a
+ * pipe while it's being written to the cache.
+ */
+public class AlbumArtProvider extends ContentProvider {
+
+    private static final String TAG = AlbumArtProvider.class.getSimpleName();
+
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".art";
+
+    public static final int MAX_SIZE_PX = 1024;
+    public static final int SIZE_STEP_PX = 64;
+
+    private static final String PATH_ART = "art";
+    private static final String PARAM_SIZE = "size";
+    private static final String MIME_TYPE = "image/jpeg";
+    private static final int JPEG_QUALITY = 90;
+
+    private static final String CACHE_DIR_PREFIX = "album_art_";
+    private static final long MAX_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private File mCacheDir;
+
+    /**
+     * @return the URI of the art of {@code mediaId}, scaled to fit within
+     * {@code sizePx} x {@code sizePx}.
+     */
+    @NonNull
+    public static Uri getAlbumArtUri(@NonNull String mediaId, int sizePx) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(PATH_ART)
+                // appendPath() encodes '/', so scanned file paths stay a single segment.
+                .appendPath(mediaId)
+                .appendQueryParameter(PARAM_SIZE, Integer.toString(sizePx))
+                .build();
+    }
+
+    /**
+     * @return {@code uri}, an art URI from session metadata, asking for another size.
+     */
+    @NonNull
+    public static Uri withSize(@NonNull Uri uri, int sizePx) {
+        return uri.buildUpon()
+                .clearQuery()
+                .appendQueryParameter(PARAM_SIZE, Integer.toString(sizePx))
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        // Resource IDs may change with every build, so each version gets its own cache.
+        final File parent = getContext().getCacheDir();
+        mCacheDir = new File(parent, CACHE_DIR_PREFIX + BuildConfig.VERSION_CODE);
+        final File[] siblings = parent.listFiles();
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (sibling.getName().startsWith(CACHE_DIR_PREFIX)
+                        && !sibling.equals(mCacheDir)) {
+                    deleteDirectory(sibling);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return getMediaId(uri) != null ? MIME_TYPE : null;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Album art is read only: " + uri);
+        }
+        final String mediaId = getMediaId(uri);
+        if (mediaId == null) {
+            throw new FileNotFoundException("Not an album art URI: " + uri);
+        }
+        final MusicCatalog catalog = MusicLibrary.getCatalog();
+        final int ordinal = catalog.getOrdinal(mediaId);
+        final int resId = ordinal >= 0 ? catalog.getAlbumRes(ordinal) : 0;
+        if (resId == 0) {
+            throw new FileNotFoundException("No album art for " + mediaId);
+        }
+
+        final int sizePx = getSize(uri);
+        final File file = new File(mCacheDir, getContext().getResources()
+                .getResourceEntryName(resId) + '_' + sizePx + ".jpg");
+        if (file.isFile()) {
+            // Recently used files are the last to be trimmed.
+            file.setLastModified(System.currentTimeMillis());
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        return openPipeHelper(uri, MIME_TYPE, null, new Thumbnail(mediaId, resId, sizePx, file),
+                              new ThumbnailWriter());
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri,
+                        @Nullable String[] projection,
+                        @Nullable String selection,
+                        @Nullable String[] selectionArgs,
+                        @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri,
+                      @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri,
+                      @Nullable ContentValues values,
+                      @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    private static String getMediaId(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        return segments.size() == 2 && PATH_ART.equals(segments.get(0)) ? segments.get(1) : null;
+    }
+
+    private static int getSize(Uri uri) {
+        int sizePx = MusicLibrary.METADATA_ART_SIZE_PX;
+        final String size = uri.getQueryParameter(PARAM_SIZE);
+        if (size != null) {
+            try {
+                sizePx = Integer.parseInt(size);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "getSize: ignoring invalid size in " + uri);
+            }
+        }
+        sizePx = Math.max(1, Math.min(MAX_SIZE_PX, sizePx));
+        return (sizePx + SIZE_STEP_PX - 1) / SIZE_STEP_PX * SIZE_STEP_PX;
+    }
+
+    /**
+     * Keeps the cache under {@link #MAX_CACHE_BYTES} by deleting the least recently used files.
+     */
+    private synchronized void trimCache() {
+        final File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_CACHE_BYTES; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static final class Thumbnail {
+        private final String mMediaId;
+        private final int mResId;
+        private final int mSizePx;
+        private final File mFile;
+
+        private Thumbnail(String mediaId, int resId, int sizePx, File file) {
+            mMediaId = mediaId;
+            mResId = resId;
+            mSizePx = sizePx;
+            mFile = file;
+        }
+    }
+
+    /**
+     * Encodes a thumbnail into the cache and copies it to the pipe. Runs on a background
+     * thread, while the reader waits on the other end of the pipe.
+     */
+    private class ThumbnailWriter implements PipeDataWriter<Thumbnail> {
+        @Override
+        public void writeDataToPipe(@NonNull ParcelFileDescriptor output,
+                                    @NonNull Uri uri,
+                                    @NonNull String mimeType,
+                                    @Nullable Bundle opts,
+                                    @Nullable Thumbnail thumbnail) {
+            final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            try {
+                if (!thumbnail.mFile.isFile()) {
+                    encode(thumbnail);
+                }
+                final InputStream in = new FileInputStream(thumbnail.mFile);
+                try {
+                    final byte[] buffer = new byte[16 * 1024];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Typically the reader went away; it sees a truncated image otherwise.
+                Log.w(TAG, "writeDataToPipe: failed to serve " + uri, e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "writeDataToPipe: failed to close pipe for " + uri, e);
+                }
+            }
+        }
+
+        private void encode(Thumbnail thumbnail) throws IOException {
+            // Goes through the in-memory cache, which the notification uses too.
+            final Bitmap bitmap = MusicLibrary.getAlbumArtCache().get(
+                    getContext().getResources(), thumbnail.mMediaId, thumbnail.mResId,
+                    thumbnail.mSizePx, thumbnail.mSizePx);
+            if (bitmap == null) {
+                throw new IOException("Failed to decode " + thumbnail.mResId);
+            }
+            if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+                throw new IOException("Failed to create " + mCacheDir);
+            }
+
+            // Written under a temporary name, so concurrent readers never see a partial file.
+            final File temp = File.createTempFile("thumb", ".tmp", mCacheDir);
+            try {
+                final OutputStream out = new FileOutputStream(temp);
+                try {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(thumbnail.mFile)) {
+                    throw new IOException("Failed to replace " + thumbnail.mFile);
+                }
+            } finally {
+                temp.delete();
+            }
+            trimCache();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import com.example.android.mediasession.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Browsable hierarchy over a {@link MusicCatalog}:
+ * <pre>
+ * root
+ *  +- __ALL__                  every track
+ *  +- __ARTISTS__              one node per artist
+ *  |   +- __ARTISTS__/name     the artist's tracks
+ *  +- __ALBUMS__               one node per album
+ *  |   +- __ALBUMS__/id        the album's tracks, see {@link MusicCatalog#getAlbumId}
+ *  +- __GENRES__               likewise for genres
+ * </pre>
+ * Children are served straight from the catalog's group indexes, so a page of any node costs
+ * O(page) (plus a map lookup for a group's tracks).
+ */
+public final class BrowseTree {
+
+    public static final String ROOT_ID = "root";
+    public static final String ALL_TRACKS_ID = "__ALL__";
+    public static final String ARTISTS_ID = "__ARTISTS__";
+    public static final String ALBUMS_ID = "__ALBUMS__";
+    public static final String GENRES_ID = "__GENRES__";
+
+    private static final char SEPARATOR = '/';
+
+    private BrowseTree() {
+    }
+
+    /**
+     * @return the media ID of the node listing the tracks of {@code name} in {@code category},
+     * e.g. {@code getGroupId(ARTISTS_ID, "The 126ers")}. Albums are named by their album ID.
+     */
+    public static String getGroupId(String category, String name) {
+        return category + SEPARATOR + name;
+    }
+
+    /**
+     * Returns one page of the children of {@code parentId}.
+     *
+     * @param page     Zero based page index.
+     * @param pageSize Number of items per page; must be positive.
+     * @return the children, or null if there is no such node.
+     */
+    @Nullable
+    public static List<MediaBrowserCompat.MediaItem> getChildren(@NonNull Context context,
+                                                                 @NonNull MusicCatalog catalog,
+                                                                 @NonNull String parentId,
+                                                                 int page,
+                                                                 int pageSize) {
+        switch (parentId) {
+            case ROOT_ID:
+                return getRootChildren(context, page, pageSize);
+            case ALL_TRACKS_ID:
+                return catalog.getMediaItems(page, pageSize);
+            case ARTISTS_ID:
+                return getGroups(ARTISTS_ID, catalog.getArtists(), page, pageSize);
+            case ALBUMS_ID:
+                return getAlbums(catalog.getAlbumIds(), page, pageSize);
+            case GENRES_ID:
+                return getGroups(GENRES_ID, catalog.getGenres(), page, pageSize);
+        }
+
+        final int[] ordinals = getGroupOrdinals(catalog, parentId);
+        return ordinals != null && ordinals.length > 0
+                ? catalog.getMediaItems(ordinals, page, pageSize)
+                : null;
+    }
+
+    /**
+     * @return ordinals in {@code catalog} of the tracks listed by {@code parentId}, a node made
+     * by {@link #getGroupId}, in ordinal order; null if it isn't one. The returned array is
+     * shared and must not be modified.
+     */
+    @Nullable
+    public static int[] getGroupOrdinals(@NonNull MusicCatalog catalog, @NonNull String parentId) {
+        final int separator = parentId.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        final String category = parentId.substring(0, separator);
+        final String name = parentId.substring(separator + 1);
+        switch (category) {
+            case ARTISTS_ID:
+                return catalog.getOrdinalsByArtist(name);
+            case ALBUMS_ID:
+                return catalog.getOrdinalsByAlbum(name);
+            case GENRES_ID:
+                return catalog.getOrdinalsByGenre(name);
+            default:
+                return null;
+        }
+    }
+
+    private static List<MediaBrowserCompat.MediaItem> getRootChildren(Context context,
+                                                                      int page,
+                                                                      int pageSize) {
+        final List<MediaBrowserCompat.MediaItem> nodes = new ArrayList<>(4);
+        nodes.add(createBrowsableItem(ALL_TRACKS_ID, context.getString(R.string.browse_all)));
+        nodes.add(createBrowsableItem(ARTISTS_ID, context.getString(R.string.browse_artists)));
+        nodes.add(createBrowsableItem(ALBUMS_ID, context.getString(R.string.browse_albums)));
+        nodes.add(createBrowsableItem(GENRES_ID, context.getString(R.string.browse_genres)));
+        final int from = MusicCatalog.pageStart(page, pageSize, nodes.size());
+        return new ArrayList<>(nodes.subList(from, Math.min(nodes.size(), from + pageSize)));
+    }
+
+    private static List<MediaBrowserCompat.MediaItem> getGroups(String category,
+                                                                List<String> names,
+                                                                int page,
+                                                                int pageSize) {
+        final int from = MusicCatalog.pageStart(page, pageSize, names.size());
+        final int to = Math.min(names.size(), from + pageSize);
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            final String name = names.get(i);
+            result.add(createBrowsableItem(getGroupId(category, name), name));
+        }
+        return result;
+    }
+
+    private static List<MediaBrowserCompat.MediaItem> getAlbums(List<String> albumIds,
+                                                                int page,
+                                                                int pageSize) {
+        final int from = MusicCatalog.pageStart(page, pageSize, albumIds.size());
+        final int to = Math.min(albumIds.size(), from + pageSize);
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            final String albumId = albumIds.get(i);
+            result.add(createBrowsableItem(getGroupId(ALBUMS_ID, albumId),
+                                           MusicCatalog.getAlbumTitle(albumId),
+                                           MusicCatalog.getAlbumArtist(albumId)));
+        }
+        return result;
+    }
+
+    private static MediaBrowserCompat.MediaItem createBrowsableItem(String mediaId,
+                                                                    String title) {
+        return createBrowsableItem(mediaId, title, null);
+    }
+
+    private static MediaBrowserCompat.MediaItem createBrowsableItem(String mediaId,
+                                                                    String title,
+                                                                    String subtitle) {
+        return new MediaBrowserCompat.MediaItem(
+                new MediaDescriptionCompat.Builder()
+                        .setMediaId(mediaId)
+                        .setTitle(title)
+                        .setSubtitle(subtitle)
+                        .build(),
+                MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+}
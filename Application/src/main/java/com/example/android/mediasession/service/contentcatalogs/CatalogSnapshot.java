@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Read-only view of a {@link MusicCatalog} saved in a compact binary file, used to answer
+ * browse requests on a cold start without building the catalog first.
+ * <p>
+ * The file is memory mapped, so opening it costs a few system calls regardless of its size,
+ * and a track is only turned into a {@link MediaDescriptionCompat} when a page containing it
+ * is requested. Layout (all integers big endian):
+ * <pre>
+ * header   magic, format version, source version (long), track count, string count,
+ *          and the offsets of the sections below
+ * strings  (string count + 1) offsets into the data, then the UTF-8 data; every distinct
+ *          string is stored once, so repeated artists, albums and URIs cost 4 bytes each
+ * records  one fixed-width record per track, in ordinal order: string indexes of media ID,
+ *          title, artist, album, genre, music filename and art URI (-1 for none), then the
+ *          duration in ms
+ * index    open addressing hash table from media ID to ordinal + 1 (0 for an empty slot)
+ * </pre>
+ * The source version identifies what the snapshot was written from; a snapshot with a
+ * different source version (or format version) is treated as missing.
+ * <p>
+ * This class is thread safe.
+ */
+public final class CatalogSnapshot {
+
+    private static final String TAG = CatalogSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x4d434154; // "MCAT"
+    static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+    private static final int FIELD_COUNT = 7;
+    private static final int RECORD_SIZE = FIELD_COUNT * 4 + 8;
+
+    private static final int FIELD_MEDIA_ID = 0;
+    private static final int FIELD_TITLE = 1;
+    private static final int FIELD_ARTIST = 2;
+    private static final int FIELD_ALBUM = 3;
+    private static final int FIELD_GENRE = 4;
+    private static final int FIELD_FILENAME = 5;
+    private static final int FIELD_ART_URI = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final long mSourceVersion;
+    private final int mTrackCount;
+    private final int mStringCount;
+    private final int mStringOffsetsPosition;
+    private final int mStringDataPosition;
+    private final int mRecordsPosition;
+    private final int mIndexPosition;
+    private final int mIndexSlots;
+
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format " + buffer.getInt(4));
+        }
+        mSourceVersion = buffer.getLong(8);
+        mTrackCount = buffer.getInt(16);
+        mStringCount = buffer.getInt(20);
+        mStringOffsetsPosition = buffer.getInt(24);
+        mStringDataPosition = buffer.getInt(28);
+        mRecordsPosition = buffer.getInt(32);
+        mIndexPosition = buffer.getInt(36);
+        mIndexSlots = buffer.getInt(40);
+        if (mRecordsPosition + (long) mTrackCount * RECORD_SIZE > buffer.capacity()
+                || mIndexPosition + (long) mIndexSlots * 4 > buffer.capacity()
+                || Integer.bitCount(mIndexSlots) != 1) {
+            throw new IOException("Truncated or corrupt snapshot");
+        }
+    }
+
+    /**
+     * Maps the snapshot in {@code file}.
+     *
+     * @return the snapshot, or null if it's missing, unreadable, or wasn't written from
+     * {@code sourceVersion}.
+     */
+    @Nullable
+    public static CatalogSnapshot open(@NonNull File file, long sourceVersion) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            final CatalogSnapshot snapshot;
+            try {
+                // The mapping stays valid after the channel is closed.
+                final FileChannel channel = randomAccessFile.getChannel();
+                snapshot = new CatalogSnapshot(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                randomAccessFile.close();
+            }
+            if (snapshot.mSourceVersion != sourceVersion) {
+                Log.d(TAG, "open: " + file + " is stale");
+                return null;
+            }
+            return snapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "open: failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes {@code catalog} to {@code file}. The file is replaced atomically, so concurrent
+     * readers see either the old or the new snapshot.
+     */
+    public static void write(@NonNull MusicCatalog catalog, @NonNull File file, long sourceVersion)
+            throws IOException {
+        final int trackCount = catalog.size();
+
+        // Build the string pool, storing each distinct string once.
+        final HashMap<String, Integer> stringIndexes = new HashMap<>();
+        final List<byte[]> strings = new ArrayList<>();
+        final int[] fields = new int[trackCount * FIELD_COUNT];
+        final long[] durations = new long[trackCount];
+        for (int ordinal = 0; ordinal < trackCount; ordinal++) {
+            final String[] values = {
+                    catalog.getMediaId(ordinal),
+                    catalog.getTitle(ordinal),
+                    catalog.getArtist(ordinal),
+                    catalog.getAlbum(ordinal),
+                    catalog.getGenre(ordinal),
+                    catalog.getMusicFilename(ordinal),
+                    catalog.getArtUri(ordinal)
+            };
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                final String value = values[field];
+                Integer index = -1;
+                if (value != null) {
+                    index = stringIndexes.get(value);
+                    if (index == null) {
+                        index = strings.size();
+                        stringIndexes.put(value, index);
+                        strings.add(value.getBytes(UTF_8));
+                    }
+                }
+                fields[ordinal * FIELD_COUNT + field] = index;
+            }
+            durations[ordinal] = catalog.getDuration(ordinal);
+        }
+
+        // Records are in ordinal order, which is media ID order.
+        int indexSlots = 1;
+        while (indexSlots < trackCount * 2) {
+            indexSlots <<= 1;
+        }
+        final int[] index = new int[indexSlots];
+        for (int ordinal = 0; ordinal < trackCount; ordinal++) {
+            final String mediaId = catalog.getMediaId(ordinal);
+            int slot = mix(mediaId.hashCode()) & (indexSlots - 1);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (indexSlots - 1);
+            }
+            index[slot] = ordinal + 1;
+        }
+
+        long stringDataSize = 0;
+        for (byte[] string : strings) {
+            stringDataSize += string.length;
+        }
+        final long stringOffsetsPosition = HEADER_SIZE;
+        final long stringDataPosition = stringOffsetsPosition + (strings.size() + 1) * 4L;
+        final long recordsPosition = stringDataPosition + stringDataSize;
+        final long indexPosition = recordsPosition + (long) trackCount * RECORD_SIZE;
+        if (indexPosition + indexSlots * 4L > Integer.MAX_VALUE) {
+            throw new IOException("Catalog too large for a snapshot");
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sourceVersion);
+            out.writeInt(trackCount);
+            out.writeInt(strings.size());
+            out.writeInt((int) stringOffsetsPosition);
+            out.writeInt((int) stringDataPosition);
+            out.writeInt((int) recordsPosition);
+            out.writeInt((int) indexPosition);
+            out.writeInt(indexSlots);
+            out.writeInt(0); // Reserved, pads the header to HEADER_SIZE.
+
+            int offset = 0;
+            for (byte[] string : strings) {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : strings) {
+                out.write(string);
+            }
+
+            for (int ordinal = 0; ordinal < trackCount; ordinal++) {
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    out.writeInt(fields[ordinal * FIELD_COUNT + field]);
+                }
+                out.writeLong(durations[ordinal]);
+            }
+
+            for (int slot : index) {
+                out.writeInt(slot);
+            }
+            // On disk before the rename, so a crash can't leave a renamed but empty file.
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    public long getSourceVersion() {
+        return mSourceVersion;
+    }
+
+    public int size() {
+        return mTrackCount;
+    }
+
+    /**
+     * @return the ordinal of the track with the given media ID, or -1 if it isn't in the
+     * snapshot.
+     */
+    public int getOrdinal(String mediaId) {
+        if (mediaId == null) {
+            return -1;
+        }
+        final int mask = mIndexSlots - 1;
+        int slot = mix(mediaId.hashCode()) & mask;
+        while (true) {
+            final int entry = mBuffer.getInt(mIndexPosition + slot * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            if (mediaId.equals(getField(entry - 1, FIELD_MEDIA_ID))) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public String getMediaId(int ordinal) {
+        return getField(ordinal, FIELD_MEDIA_ID);
+    }
+
+    public String getMusicFilename(int ordinal) {
+        return getField(ordinal, FIELD_FILENAME);
+    }
+
+    public long getDuration(int ordinal) {
+        checkOrdinal(ordinal);
+        return mBuffer.getLong(mRecordsPosition + ordinal * RECORD_SIZE + FIELD_COUNT * 4);
+    }
+
+    /**
+     * @return the description of a track, built from its record.
+     */
+    @NonNull
+    public MediaDescriptionCompat getDescription(int ordinal) {
+        final String artUri = getField(ordinal, FIELD_ART_URI);
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(getField(ordinal, FIELD_MEDIA_ID))
+                .setTitle(getField(ordinal, FIELD_TITLE))
+                .setSubtitle(getField(ordinal, FIELD_ARTIST))
+                .setDescription(getField(ordinal, FIELD_ALBUM))
+                .setIconUri(artUri != null ? Uri.parse(artUri) : null)
+                .build();
+    }
+
+    /**
+     * Same as {@link MusicCatalog#getMediaItems(int, int)}, reading only the records on the
+     * requested page.
+     */
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> getMediaItems(int page, int pageSize) {
+        final int from = MusicCatalog.pageStart(page, pageSize, mTrackCount);
+        final int to = Math.min(mTrackCount, from + pageSize);
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(to - from);
+        for (int ordinal = from; ordinal < to; ordinal++) {
+            result.add(new MediaBrowserCompat.MediaItem(
+                    getDescription(ordinal), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+        }
+        return result;
+    }
+
+    private String getField(int ordinal, int field) {
+        checkOrdinal(ordinal);
+        final int index = mBuffer.getInt(mRecordsPosition + ordinal * RECORD_SIZE + field * 4);
+        return index >= 0 ? getString(index) : null;
+    }
+
+    private String getString(int index) {
+        if (index >= mStringCount) {
+            throw new IllegalStateException("Corrupt snapshot: string " + index);
+        }
+        final int start = mBuffer.getInt(mStringOffsetsPosition + index * 4);
+        final int end = mBuffer.getInt(mStringOffsetsPosition + (index + 1) * 4);
+        // Absolute reads only, so concurrent readers don't share a buffer position.
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(mStringDataPosition + start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= mTrackCount) {
+            throw new IndexOutOfBoundsException("Ordinal " + ordinal + ", size " + mTrackCount);
+        }
+    }
+
+    private static int mix(int hash) {
+        // Spread String.hashCode()'s low bits, as HashMap does.
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds a {@link MusicCatalog} from the audio files under a directory.
+ * <p>
+ * The directory tree is walked on a scan thread while a pool of worker threads reads the tags
+ * and durations of new or changed files with {@link MediaMetadataRetriever}, which is by far
+ * the slow part. What was read is saved in a {@link ScanManifest}, so a rescan only opens
+ * files whose size or modification time changed.
+ * <p>
+ * A scan publishes up to two catalogs: first one built straight from the saved manifest, so
+ * the previous scan's tracks are available right away, then the result of the walk if it
+ * found anything different. Catalogs include the built-in tracks and are delivered on the
+ * main thread.
+ * <p>
+ * All public methods must be called from the main thread.
+ */
+public final class MediaScanner {
+
+    private static final String TAG = MediaScanner.class.getSimpleName();
+
+    private static final String[] AUDIO_EXTENSIONS = {
+            ".mp3", ".m4a", ".aac", ".ogg", ".oga", ".opus", ".flac", ".wav", ".mid"
+    };
+    // Keeps a single absurd tag from breaking the manifest, which stores strings as UTF.
+    private static final int MAX_TAG_LENGTH = 1024;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Receives scanned catalogs on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param catalog the scanned catalog, including the built-in tracks.
+         * @param changed whether the files differ from what the previous scan saw. False for
+         *                the catalog restored from the manifest.
+         */
+        void onCatalogScanned(@NonNull MusicCatalog catalog, boolean changed);
+    }
+
+    private final File mManifestFile;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mScanExecutor;
+    private final ThreadPoolExecutor mExtractExecutor;
+
+    // Guards against stale results after shutdown() or a newer scan().
+    private int mGeneration;
+
+    public MediaScanner(@NonNull File manifestFile, @NonNull Listener listener) {
+        mManifestFile = manifestFile;
+        mListener = listener;
+        mScanExecutor = newExecutor(1, "scan");
+        // Tag extraction is mostly I/O and native parsing; one worker per core keeps the
+        // storage busy without starving playback.
+        mExtractExecutor = newExecutor(
+                Math.max(1, Runtime.getRuntime().availableProcessors()), "scan-extract");
+    }
+
+    /**
+     * Scans {@code root} in the background. A scan that is still running is superseded:
+     * whatever it hasn't published yet is dropped.
+     */
+    public void scan(@NonNull final File root) {
+        final int generation = ++mGeneration;
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runScan(root, generation);
+            }
+        });
+    }
+
+    /**
+     * @return the version of the manifest saved by the last scan, which catalogs built from it
+     * carry as their {@link MusicCatalog#getSourceVersion source version}; 0 if there is none.
+     * Reads the manifest's header, so it shouldn't be called on the main thread.
+     */
+    public long getManifestVersion() {
+        return ScanManifest.readVersion(mManifestFile);
+    }
+
+    public void shutdown() {
+        mGeneration++;
+        mScanExecutor.shutdownNow();
+        mExtractExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void runScan(File root, int generation) {
+        final long start = SystemClock.elapsedRealtime();
+        // Only this thread writes the manifest, so the two reads see the same one.
+        final long previousVersion = ScanManifest.readVersion(mManifestFile);
+        final HashMap<String, ScanManifest.Entry> previous = ScanManifest.read(mManifestFile);
+        if (!previous.isEmpty()) {
+            publish(buildCatalog(previous, previousVersion), false, generation);
+        }
+
+        // Walk the tree, reusing manifest entries for unchanged files and reading the rest in
+        // parallel while the walk continues.
+        final HashMap<String, ScanManifest.Entry> current = new HashMap<>();
+        final List<Future<ScanManifest.Entry>> pending = new ArrayList<>();
+        final ArrayDeque<File> directories = new ArrayDeque<>();
+        directories.add(root);
+        int reused = 0;
+        while (!directories.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            final File[] children = directories.poll().listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (final File child : children) {
+                if (child.isDirectory()) {
+                    if (!child.isHidden()) {
+                        directories.add(child);
+                    }
+                    continue;
+                }
+                if (!isAudioFile(child)) {
+                    continue;
+                }
+                final ScanManifest.Entry known = previous.get(child.getPath());
+                if (known != null && known.matches(child)) {
+                    current.put(known.mPath, known);
+                    reused++;
+                    continue;
+                }
+                pending.add(mExtractExecutor.submit(new Callable<ScanManifest.Entry>() {
+                    @Override
+                    public ScanManifest.Entry call() {
+                        return extract(child);
+                    }
+                }));
+            }
+        }
+
+        for (Future<ScanManifest.Entry> future : pending) {
+            try {
+                final ScanManifest.Entry entry = future.get();
+                if (entry != null) {
+                    current.put(entry.mPath, entry);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "runScan: failed to read a file", e.getCause());
+            }
+        }
+
+        final boolean changed = pending.size() > 0 || current.size() != previous.size();
+        Log.d(TAG, "runScan: " + current.size() + " files under " + root + ", " + reused
+                + " unchanged, " + pending.size() + " read, in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        if (!changed) {
+            if (previous.isEmpty()) {
+                // Nothing restored, nothing found: still report the (built-in) catalog.
+                publish(buildCatalog(current, previousVersion), false, generation);
+            }
+            return;
+        }
+
+        long version = 0;
+        try {
+            version = ScanManifest.write(mManifestFile, current.values());
+        } catch (IOException e) {
+            // Not fatal: the next scan reads every file again.
+            Log.w(TAG, "runScan: failed to save " + mManifestFile, e);
+        }
+        publish(buildCatalog(current, version), true, generation);
+    }
+
+    private void publish(final MusicCatalog catalog, final boolean changed, final int generation) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration) {
+                    mListener.onCatalogScanned(catalog, changed);
+                }
+            }
+        });
+    }
+
+    private static boolean isAudioFile(File file) {
+        final String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the tags of {@code file}. Runs on the extraction pool.
+     *
+     * @return the entry, or null if the file can't be read as audio.
+     */
+    private static ScanManifest.Entry extract(File file) {
+        // Sizes are sampled before reading, so a file modified meanwhile is read again next time.
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getPath());
+            final String title =
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            final String albumArtist = firstNonEmpty(
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST),
+                    null);
+            final String artist = firstNonEmpty(
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST),
+                    albumArtist);
+            final String duration =
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return new ScanManifest.Entry(
+                    file.getPath(),
+                    size,
+                    lastModified,
+                    clip(firstNonEmpty(title, stripExtension(file.getName()))),
+                    clip(artist),
+                    clip(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM)),
+                    clip(albumArtist),
+                    clip(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE)),
+                    parseLong(duration));
+        } catch (RuntimeException e) {
+            // MediaMetadataRetriever throws IllegalArgumentException / RuntimeException for
+            // files it can't parse.
+            Log.w(TAG, "extract: skipping " + file, e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static MusicCatalog buildCatalog(HashMap<String, ScanManifest.Entry> entries,
+                                             long manifestVersion) {
+        final MusicCatalog.Builder builder =
+                new MusicCatalog.Builder().setSourceVersion(manifestVersion);
+        MusicLibrary.addBuiltInTracks(builder);
+        for (Map.Entry<String, ScanManifest.Entry> mapEntry : entries.entrySet()) {
+            final ScanManifest.Entry entry = mapEntry.getValue();
+            // The path is unique and stable, and doubles as the music filename.
+            builder.add(entry.mPath, entry.mTitle, entry.mArtist, entry.mAlbum,
+                        entry.mAlbumArtist, entry.mGenre, entry.mDurationMs, null, entry.mPath, 0);
+        }
+        return builder.build();
+    }
+
+    private static String firstNonEmpty(String first, String second) {
+        return first != null && !first.trim().isEmpty() ? first.trim() : second;
+    }
+
+    private static String clip(String tag) {
+        return tag != null && tag.length() > MAX_TAG_LENGTH
+                ? tag.substring(0, MAX_TAG_LENGTH) : tag;
+    }
+
+    private static String stripExtension(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
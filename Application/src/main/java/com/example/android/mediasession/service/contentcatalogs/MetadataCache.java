@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small LRU cache of fully built session metadata, keyed by media ID and art size.
+ * <p>
+ * Skipping back and forth between a few tracks would otherwise rebuild the same metadata
+ * every time. {@link #prefetch} builds an entry on a background thread, so the next queue
+ * item's metadata is ready before it's needed.
+ * <p>
+ * This class is thread safe.
+ */
+public class MetadataCache {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Builds the metadata for a track; called on a cache miss, on any thread.
+     */
+    interface Factory {
+        /**
+         * @return the metadata, or null if there is no such track.
+         */
+        @Nullable
+        MediaMetadataCompat create(Context context, String mediaId, int artSizePx);
+    }
+
+    private final Factory mFactory;
+    private final LruCache<String, MediaMetadataCompat> mCache;
+    private final ThreadPoolExecutor mPrefetchExecutor;
+
+    // Guarded by "this". Keys being prefetched, and a counter that clear() bumps so that builds
+    // started against the previous catalog aren't cached.
+    private final HashSet<String> mPrefetching = new HashSet<>();
+    private int mGeneration;
+    private int mPrefetchCount;
+
+    MetadataCache(int maxEntries, @NonNull Factory factory) {
+        mFactory = factory;
+        mCache = new LruCache<>(maxEntries);
+        mPrefetchExecutor = new ThreadPoolExecutor(
+                1,
+                1,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "metadata-prefetch");
+                    }
+                });
+        mPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the metadata of {@code mediaId} with art scaled to fit {@code artSizePx}, built
+     * on a miss; null if there is no such track.
+     */
+    @Nullable
+    public MediaMetadataCompat get(Context context, String mediaId, int artSizePx) {
+        final String key = getKey(mediaId, artSizePx);
+        final MediaMetadataCompat cached = mCache.get(key);
+        return cached != null ? cached : load(context, mediaId, artSizePx, key);
+    }
+
+    /**
+     * Builds the metadata of {@code mediaId} in the background, unless it is cached or already
+     * being built.
+     */
+    public void prefetch(Context context, final String mediaId, final int artSizePx) {
+        final String key = getKey(mediaId, artSizePx);
+        if (mediaId == null || mCache.get(key) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (!mPrefetching.add(key)) {
+                return;
+            }
+            mPrefetchCount++;
+        }
+        final Context appContext = context.getApplicationContext();
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(appContext, mediaId, artSizePx, key);
+                } finally {
+                    synchronized (MetadataCache.this) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops every entry, e.g. when the catalog is replaced.
+     */
+    public void clear() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetadataCache{hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", evictions=" + mCache.evictionCount()
+                + ", entries=" + mCache.size() + "/" + mCache.maxSize()
+                + ", prefetches=" + mPrefetchCount
+                + "}";
+    }
+
+    private MediaMetadataCompat load(Context context, String mediaId, int artSizePx, String key) {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        final MediaMetadataCompat metadata = mFactory.create(context, mediaId, artSizePx);
+        if (metadata != null) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mCache.put(key, metadata);
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private static String getKey(String mediaId, int artSizePx) {
+        return mediaId + '@' + artSizePx;
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable, indexed snapshot of the music catalog.
+ * <p>
+ * Every track is assigned an ordinal: its position in media ID order. Lookups by media ID, by
+ * ordinal, and by artist / album / genre are all answered from indexes built once in
+ * {@link Builder#build()}, so serving a page of children costs O(page) regardless of how large
+ * the catalog is.
+ * <p>
+ * Ordinals are only valid for the catalog that assigned them: a rescan builds a new catalog, in
+ * which every track after one that was added or removed has moved. Anything that outlives a
+ * single lookup, such as browse and search results or the play queue, holds media IDs and
+ * resolves them with {@link #getOrdinal} against the catalog at hand.
+ * <p>
+ * Tracks are stored column by column in arrays indexed by ordinal. Artists, albums, genres and
+ * art URIs repeat across many tracks, so each distinct value is stored once in a sorted pool
+ * and tracks only hold its position. {@link MediaDescriptionCompat} and
+ * {@link MediaMetadataCompat} objects are built on demand and never retained.
+ * <p>
+ * Albums are grouped by album ID, which combines the album's title with its album artist (or,
+ * without one, the track artist), so different albums that share a title stay apart.
+ */
+public final class MusicCatalog {
+
+    private static final int[] NO_ORDINALS = new int[0];
+    // Between the title and the artist in an album ID; sorts before any printable character,
+    // so album IDs sort by title first.
+    private static final char ALBUM_ID_SEPARATOR = '\u001f';
+
+    // Sorted, so ordinal lookups are a binary search with no per-track index overhead.
+    private final String[] mMediaIds;
+    private final String[] mTitles;
+    private final long[] mDurations;
+    private final String[] mMusicFilenames;
+    private final int[] mAlbumRes;
+
+    private final Column mArtists;
+    private final Column mAlbums;
+    private final Column mAlbumIds;
+    private final Column mGenres;
+    private final Column mArtUris;
+    private final long mSourceVersion;
+
+    // Built on first use: most sessions never search.
+    private volatile SearchIndex mSearchIndex;
+
+    private MusicCatalog(String[] mediaIds,
+                         String[] titles,
+                         long[] durations,
+                         String[] musicFilenames,
+                         int[] albumRes,
+                         Column artists,
+                         Column albums,
+                         Column albumIds,
+                         Column genres,
+                         Column artUris,
+                         long sourceVersion) {
+        mMediaIds = mediaIds;
+        mTitles = titles;
+        mDurations = durations;
+        mMusicFilenames = musicFilenames;
+        mAlbumRes = albumRes;
+        mArtists = artists;
+        mAlbums = albums;
+        mAlbumIds = albumIds;
+        mGenres = genres;
+        mArtUris = artUris;
+        mSourceVersion = sourceVersion;
+    }
+
+    public int size() {
+        return mMediaIds.length;
+    }
+
+    /**
+     * @return what the catalog was built from, as set with {@link Builder#setSourceVersion};
+     * 0 if unknown.
+     */
+    public long getSourceVersion() {
+        return mSourceVersion;
+    }
+
+    /**
+     * @return the ordinal of the track with the given media ID in this catalog, or -1 if it
+     * isn't in it.
+     */
+    public int getOrdinal(String mediaId) {
+        if (mediaId == null) {
+            return -1;
+        }
+        final int ordinal = Arrays.binarySearch(mMediaIds, mediaId);
+        return ordinal >= 0 ? ordinal : -1;
+    }
+
+    public String getMediaId(int ordinal) {
+        return mMediaIds[ordinal];
+    }
+
+    public String getTitle(int ordinal) {
+        return mTitles[ordinal];
+    }
+
+    @Nullable
+    public String getArtist(int ordinal) {
+        return mArtists.get(ordinal);
+    }
+
+    @Nullable
+    public String getAlbum(int ordinal) {
+        return mAlbums.get(ordinal);
+    }
+
+    /**
+     * @return the ID of the album the track is on, for {@link #getOrdinalsByAlbum}; null if it
+     * has no album.
+     */
+    @Nullable
+    public String getAlbumId(int ordinal) {
+        return mAlbumIds.get(ordinal);
+    }
+
+    @Nullable
+    public String getGenre(int ordinal) {
+        return mGenres.get(ordinal);
+    }
+
+    public long getDuration(int ordinal) {
+        return mDurations[ordinal];
+    }
+
+    @Nullable
+    public String getArtUri(int ordinal) {
+        return mArtUris.get(ordinal);
+    }
+
+    public String getMusicFilename(int ordinal) {
+        return mMusicFilenames[ordinal];
+    }
+
+    public int getAlbumRes(int ordinal) {
+        return mAlbumRes[ordinal];
+    }
+
+    /**
+     * @return the metadata of a track, without album art. A new instance is built on every
+     * call, so prefer the column getters where they suffice.
+     */
+    @NonNull
+    public MediaMetadataCompat getTrack(int ordinal) {
+        return newMetadataBuilder(ordinal).build();
+    }
+
+    /**
+     * @return a new description of a track, as {@link MediaMetadataCompat#getDescription()}
+     * would build it.
+     */
+    @NonNull
+    public MediaDescriptionCompat getDescription(int ordinal) {
+        final String artUri = getArtUri(ordinal);
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(mMediaIds[ordinal])
+                .setTitle(mTitles[ordinal])
+                .setSubtitle(getArtist(ordinal))
+                .setDescription(getAlbum(ordinal))
+                .setIconUri(artUri != null ? Uri.parse(artUri) : null)
+                .build();
+    }
+
+    /**
+     * @return every artist, sorted. The list is unmodifiable and supports fast random access.
+     */
+    public List<String> getArtists() {
+        return mArtists.mValueList;
+    }
+
+    /**
+     * @return the ID of every album, sorted by title. The list is unmodifiable and supports
+     * fast random access.
+     */
+    public List<String> getAlbumIds() {
+        return mAlbumIds.mValueList;
+    }
+
+    /**
+     * @return the title of the album with the given ID.
+     */
+    @NonNull
+    public static String getAlbumTitle(@NonNull String albumId) {
+        final int separator = albumId.indexOf(ALBUM_ID_SEPARATOR);
+        return separator >= 0 ? albumId.substring(0, separator) : albumId;
+    }
+
+    /**
+     * @return the artist of the album with the given ID, or null if it has none.
+     */
+    @Nullable
+    public static String getAlbumArtist(@NonNull String albumId) {
+        final int separator = albumId.indexOf(ALBUM_ID_SEPARATOR);
+        return separator >= 0 && separator < albumId.length() - 1
+                ? albumId.substring(separator + 1)
+                : null;
+    }
+
+    private static String newAlbumId(String album, String albumArtist, String artist) {
+        if (album == null) {
+            return null;
+        }
+        final String artistOfAlbum = albumArtist != null ? albumArtist : artist;
+        return album + ALBUM_ID_SEPARATOR + (artistOfAlbum != null ? artistOfAlbum : "");
+    }
+
+    /**
+     * @return every genre, sorted. The list is unmodifiable and supports fast random access.
+     */
+    public List<String> getGenres() {
+        return mGenres.mValueList;
+    }
+
+    /**
+     * @return ordinals of every track by {@code artist}, in ordinal order. The returned array
+     * is shared and must not be modified.
+     */
+    @NonNull
+    public int[] getOrdinalsByArtist(String artist) {
+        return mArtists.getOrdinals(artist);
+    }
+
+    /**
+     * @return ordinals of every track on the album with the given ID, in ordinal order. The
+     * returned array is shared and must not be modified.
+     */
+    @NonNull
+    public int[] getOrdinalsByAlbum(String albumId) {
+        return mAlbumIds.getOrdinals(albumId);
+    }
+
+    /**
+     * @return ordinals of every track in {@code genre}, in ordinal order. The returned array
+     * is shared and must not be modified.
+     */
+    @NonNull
+    public int[] getOrdinalsByGenre(String genre) {
+        return mGenres.getOrdinals(genre);
+    }
+
+    /**
+     * @return the full-text index over this catalog, building it on the first call.
+     */
+    @NonNull
+    public SearchIndex getSearchIndex() {
+        SearchIndex searchIndex = mSearchIndex;
+        if (searchIndex == null) {
+            synchronized (this) {
+                searchIndex = mSearchIndex;
+                if (searchIndex == null) {
+                    searchIndex = SearchIndex.build(this);
+                    mSearchIndex = searchIndex;
+                }
+            }
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Returns a single page of playable items in ordinal order. Only the items on the page are
+     * materialized.
+     *
+     * @param page     Zero based page index.
+     * @param pageSize Number of items per page; must be positive.
+     */
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> getMediaItems(int page, int pageSize) {
+        final int from = pageStart(page, pageSize, mMediaIds.length);
+        final int to = Math.min(mMediaIds.length, from + pageSize);
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(to - from);
+        for (int ordinal = from; ordinal < to; ordinal++) {
+            result.add(createMediaItem(ordinal));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #getMediaItems(int, int)} but restricted to the given ordinals, such as
+     * the ones returned by {@link #getOrdinalsByAlbum(String)}.
+     */
+    @NonNull
+    public List<MediaBrowserCompat.MediaItem> getMediaItems(int[] ordinals,
+                                                            int page,
+                                                            int pageSize) {
+        final int from = pageStart(page, pageSize, ordinals.length);
+        final int to = Math.min(ordinals.length, from + pageSize);
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(createMediaItem(ordinals[i]));
+        }
+        return result;
+    }
+
+    /**
+     * @return a builder pre-filled with every stored field of a track, so callers can add
+     * what the catalog doesn't keep (such as a bitmap) without copying.
+     */
+    MediaMetadataCompat.Builder newMetadataBuilder(int ordinal) {
+        final MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mMediaIds[ordinal])
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, mTitles[ordinal])
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, getArtist(ordinal))
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, getAlbum(ordinal))
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, getGenre(ordinal))
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, mDurations[ordinal]);
+        final String artUri = getArtUri(ordinal);
+        if (artUri != null) {
+            builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artUri)
+                    .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, artUri);
+        }
+        return builder;
+    }
+
+    private MediaBrowserCompat.MediaItem createMediaItem(int ordinal) {
+        return new MediaBrowserCompat.MediaItem(
+                getDescription(ordinal), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+    }
+
+    static int pageStart(int page, int pageSize, int size) {
+        if (page < 0 || pageSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid page: " + page + ", page size: " + pageSize);
+        }
+        final long from = (long) page * pageSize;
+        return from >= size ? size : (int) from;
+    }
+
+    /**
+     * A string field that repeats across tracks. Each distinct value is stored once, in sorted
+     * order, and every track holds the position of its value (or -1 if it has none). The
+     * ordinals of the tracks sharing each value are kept alongside.
+     */
+    private static final class Column {
+        private final String[] mValues;
+        private final List<String> mValueList;
+        private final int[] mValueIds;
+        private final int[][] mOrdinals;
+
+        private Column(String[] trackValues) {
+            // Distinct values, sorted; then the position of every track's value.
+            final HashMap<String, int[]> counts = new HashMap<>();
+            for (String value : trackValues) {
+                if (value == null) {
+                    continue;
+                }
+                final int[] count = counts.get(value);
+                if (count != null) {
+                    count[0]++;
+                } else {
+                    counts.put(value, new int[]{1});
+                }
+            }
+            mValues = counts.keySet().toArray(new String[counts.size()]);
+            Arrays.sort(mValues);
+            mValueList = Collections.unmodifiableList(Arrays.asList(mValues));
+
+            // Count first so every group is allocated exactly once.
+            mOrdinals = new int[mValues.length][];
+            for (int id = 0; id < mValues.length; id++) {
+                mOrdinals[id] = new int[counts.get(mValues[id])[0]];
+            }
+            final int[] fill = new int[mValues.length];
+            mValueIds = new int[trackValues.length];
+            for (int ordinal = 0; ordinal < trackValues.length; ordinal++) {
+                final String value = trackValues[ordinal];
+                final int id = value != null ? Arrays.binarySearch(mValues, value) : -1;
+                mValueIds[ordinal] = id;
+                if (id >= 0) {
+                    mOrdinals[id][fill[id]++] = ordinal;
+                }
+            }
+        }
+
+        String get(int ordinal) {
+            final int id = mValueIds[ordinal];
+            return id >= 0 ? mValues[id] : null;
+        }
+
+        int[] getOrdinals(String value) {
+            final int id = value != null ? Arrays.binarySearch(mValues, value) : -1;
+            return id >= 0 ? mOrdinals[id] : NO_ORDINALS;
+        }
+    }
+
+    /**
+     * Collects tracks and produces an immutable {@link MusicCatalog}. Ordinals are assigned in
+     * media ID order, so the same set of tracks always gets the same ordinals, but adding or
+     * removing one shifts those after it.
+     */
+    public static final class Builder {
+
+        private final List<Entry> mEntries = new ArrayList<>();
+        private long mSourceVersion;
+
+        /**
+         * @param sourceVersion Identifies what the tracks were read from, e.g. the version of
+         *                      the scan manifest, so that files derived from the catalog can be
+         *                      matched with it; 0 if unknown.
+         */
+        public Builder setSourceVersion(long sourceVersion) {
+            mSourceVersion = sourceVersion;
+            return this;
+        }
+
+        /**
+         * @param mediaId       Unique ID of the track; required.
+         * @param albumArtist   Artist of the whole album, or null if it is the track's artist.
+         * @param artUri        Album art URI shown by browsers, or null.
+         * @param albumArtResId Drawable decoded for the session and notification, or 0.
+         */
+        public Builder add(@NonNull String mediaId,
+                           String title,
+                           String artist,
+                           String album,
+                           String albumArtist,
+                           String genre,
+                           long durationMs,
+                           String artUri,
+                           String musicFilename,
+                           int albumArtResId) {
+            if (mediaId == null) {
+                throw new IllegalArgumentException("Track has no media ID");
+            }
+            mEntries.add(new Entry(mediaId, title, artist, album, albumArtist, genre, durationMs,
+                                   artUri, musicFilename, albumArtResId));
+            return this;
+        }
+
+        public MusicCatalog build() {
+            Collections.sort(mEntries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return lhs.mMediaId.compareTo(rhs.mMediaId);
+                }
+            });
+
+            final int size = mEntries.size();
+            final String[] mediaIds = new String[size];
+            final String[] titles = new String[size];
+            final long[] durations = new long[size];
+            final String[] filenames = new String[size];
+            final int[] albumRes = new int[size];
+            final String[] artists = new String[size];
+            final String[] albums = new String[size];
+            final String[] albumIds = new String[size];
+            final String[] genres = new String[size];
+            final String[] artUris = new String[size];
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                final Entry entry = mEntries.get(ordinal);
+                if (ordinal > 0 && entry.mMediaId.equals(mediaIds[ordinal - 1])) {
+                    throw new IllegalStateException("Duplicate media ID: " + entry.mMediaId);
+                }
+                mediaIds[ordinal] = entry.mMediaId;
+                titles[ordinal] = entry.mTitle;
+                durations[ordinal] = entry.mDurationMs;
+                // Scanned tracks are played from their media ID; don't keep two copies.
+                filenames[ordinal] = entry.mMediaId.equals(entry.mMusicFilename)
+                        ? entry.mMediaId : entry.mMusicFilename;
+                albumRes[ordinal] = entry.mAlbumArtResId;
+                artists[ordinal] = entry.mArtist;
+                albums[ordinal] = entry.mAlbum;
+                albumIds[ordinal] = newAlbumId(entry.mAlbum, entry.mAlbumArtist, entry.mArtist);
+                genres[ordinal] = entry.mGenre;
+                artUris[ordinal] = entry.mArtUri;
+            }
+            return new MusicCatalog(mediaIds, titles, durations, filenames, albumRes,
+                                    new Column(artists), new Column(albums),
+                                    new Column(albumIds), new Column(genres),
+                                    new Column(artUris), mSourceVersion);
+        }
+
+        private static final class Entry {
+            private final String mMediaId;
+            private final String mTitle;
+            private final String mArtist;
+            private final String mAlbum;
+            private final String mAlbumArtist;
+            private final String mGenre;
+            private final long mDurationMs;
+            private final String mArtUri;
+            private final String mMusicFilename;
+            private final int mAlbumArtResId;
+
+            private Entry(String mediaId,
+                          String title,
+                          String artist,
+                          String album,
+                          String albumArtist,
+                          String genre,
+                          long durationMs,
+                          String artUri,
+                          String musicFilename,
+                          int albumArtResId) {
+                mMediaId = mediaId;
+                mTitle = title;
+                mArtist = artist;
+                mAlbum = album;
+                mAlbumArtist = albumArtist;
+                mGenre = genre;
+                mDurationMs = durationMs;
+                mArtUri = artUri;
+                mMusicFilename = musicFilename;
+                mAlbumArtResId = albumArtResId;
+            }
+        }
+    }
+}
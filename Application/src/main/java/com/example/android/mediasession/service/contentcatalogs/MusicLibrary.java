@@ -19,28 +19,54 @@ package com.example.android.mediasession.service.contentcatalogs;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.R;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 
 public class MusicLibrary {
 
-    private static final TreeMap<String, MediaMetadataCompat> music = new TreeMap<>();
-    private static final HashMap<String, Integer> albumRes = new HashMap<>();
-    private static final HashMap<String, String> musicFileName = new HashMap<>();
+    /**
+     * Size (in pixels) of the album art attached to session metadata. Larger art is downsampled
+     * to fit.
+     */
+    public static final int METADATA_ART_SIZE_PX = 512;
+
+    // Replaced as a whole when a scan completes; see setCatalog().
+    private static volatile MusicCatalog catalog;
+    // Media ID -> absolute path of the track's downloaded copy; outlives catalog changes.
+    private static final ConcurrentHashMap<String, String> downloadedFiles =
+            new ConcurrentHashMap<>();
+    private static final AlbumArtCache albumArtCache = new AlbumArtCache();
+    // A few entries cover the current track and its queue neighbours.
+    private static final int METADATA_CACHE_SIZE = 8;
+    private static final MetadataCache metadataCache = new MetadataCache(
+            METADATA_CACHE_SIZE,
+            new MetadataCache.Factory() {
+                @Override
+                public MediaMetadataCompat create(Context context, String mediaId, int artSizePx) {
+                    return buildMetadata(context, mediaId, artSizePx);
+                }
+            });
 
     static {
-        createMediaMetadataCompat(
+        final MusicCatalog.Builder builder = new MusicCatalog.Builder();
+        addBuiltInTracks(builder);
+        catalog = builder.build();
+    }
+
+    /**
+     * Adds the tracks bundled with the app as assets.
+     */
+    static void addBuiltInTracks(MusicCatalog.Builder builder) {
+        addTrack(
+                builder,
                 "Jazz_In_Paris",
                 "Jazz in Paris",
                 "Media Right Productions",
@@ -51,7 +77,8 @@ public class MusicLibrary {
                 "jazz_in_paris.mp3",
                 R.drawable.album_jazz_blues,
                 "album_jazz_blues");
-        createMediaMetadataCompat(
+        addTrack(
+                builder,
                 "The_Coldest_Shoulder",
                 "The Coldest Shoulder",
                 "The 126ers",
@@ -65,7 +92,25 @@ public class MusicLibrary {
     }
 
     public static String getRoot() {
-        return "root";
+        return BrowseTree.ROOT_ID;
+    }
+
+    /**
+     * @return the current catalog. Callers that need a consistent view across several calls
+     * should hold on to the returned instance rather than calling this repeatedly.
+     */
+    public static MusicCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Atomically replaces the catalog, e.g. with the result of a {@link MediaScanner} scan.
+     * Callers that already hold the previous catalog keep a consistent view of it.
+     */
+    public static void setCatalog(MusicCatalog newCatalog) {
+        catalog = newCatalog;
+        metadataCache.clear();
+        albumArtCache.clear();
     }
 
     private static String getAlbumArtUri(String albumArtResName) {
@@ -73,54 +118,129 @@ public class MusicLibrary {
                 BuildConfig.APPLICATION_ID + "/drawable/" + albumArtResName;
     }
 
+    /**
+     * Plays the track from {@code path} from now on, e.g. once {@link TrackDownloader} has
+     * fetched it; null goes back to the catalog's file.
+     */
+    public static void setDownloadedFile(String mediaId, String path) {
+        if (path != null) {
+            downloadedFiles.put(mediaId, path);
+        } else {
+            downloadedFiles.remove(mediaId);
+        }
+    }
+
+    public static boolean isDownloaded(String mediaId) {
+        return downloadedFiles.containsKey(mediaId);
+    }
+
     public static String getMusicFilename(String mediaId) {
-        return musicFileName.containsKey(mediaId) ? musicFileName.get(mediaId) : null;
+        final String downloaded = downloadedFiles.get(mediaId);
+        if (downloaded != null) {
+            return downloaded;
+        }
+        final MusicCatalog current = catalog;
+        final int ordinal = current.getOrdinal(mediaId);
+        return ordinal >= 0 ? current.getMusicFilename(ordinal) : null;
     }
 
     private static int getAlbumRes(String mediaId) {
-        return albumRes.containsKey(mediaId) ? albumRes.get(mediaId) : 0;
+        final MusicCatalog current = catalog;
+        final int ordinal = current.getOrdinal(mediaId);
+        return ordinal >= 0 ? current.getAlbumRes(ordinal) : 0;
     }
 
     public static Bitmap getAlbumBitmap(Context context, String mediaId) {
-        return BitmapFactory.decodeResource(context.getResources(),
-                MusicLibrary.getAlbumRes(mediaId));
+        return getAlbumBitmap(context, mediaId, METADATA_ART_SIZE_PX, METADATA_ART_SIZE_PX);
+    }
+
+    /**
+     * Returns the album art for {@code mediaId} scaled to fit within the given size. Decoded
+     * bitmaps are shared through a memory bounded cache, so callers must not modify or recycle
+     * them.
+     */
+    public static Bitmap getAlbumBitmap(Context context, String mediaId, int width, int height) {
+        return albumArtCache.get(context.getResources(), mediaId, getAlbumRes(mediaId),
+                                 width, height);
+    }
+
+    /**
+     * Same as {@link #getAlbumBitmap(Context, String, int, int)}, but only if the bitmap is
+     * cached; null otherwise.
+     */
+    public static Bitmap getCachedAlbumBitmap(String mediaId, int width, int height) {
+        return albumArtCache.peek(mediaId, width, height);
+    }
+
+    public static AlbumArtCache getAlbumArtCache() {
+        return albumArtCache;
+    }
+
+    public static MetadataCache getMetadataCache() {
+        return metadataCache;
     }
 
     public static List<MediaBrowserCompat.MediaItem> getMediaItems() {
-        List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
-        for (MediaMetadataCompat metadata : music.values()) {
-            result.add(
-                    new MediaBrowserCompat.MediaItem(
-                            metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
-        }
-        return result;
+        final MusicCatalog current = catalog;
+        return current.getMediaItems(0, Math.max(1, current.size()));
+    }
+
+    /**
+     * Returns one page of the catalog, as requested through {@link MediaBrowserCompat#EXTRA_PAGE}
+     * and {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}. Only the requested page is built.
+     */
+    public static List<MediaBrowserCompat.MediaItem> getMediaItems(int page, int pageSize) {
+        return catalog.getMediaItems(page, pageSize);
     }
 
+    /**
+     * Returns the session metadata of {@code mediaId}. Album art is referenced by an
+     * {@link AlbumArtProvider} URI rather than attached, which keeps the metadata small enough
+     * to send to every controller. Recently used and prefetched metadata is served from a
+     * cache; the returned object is shared.
+     */
     public static MediaMetadataCompat getMetadata(Context context, String mediaId) {
-        MediaMetadataCompat metadataWithoutBitmap = music.get(mediaId);
-        Bitmap albumArt = getAlbumBitmap(context, mediaId);
-
-        // Since MediaMetadataCompat is immutable, we need to create a copy to set the album art.
-        // We don't set it initially on all items so that they don't take unnecessary memory.
-        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
-        for (String key :
-                new String[]{
-                        MediaMetadataCompat.METADATA_KEY_MEDIA_ID,
-                        MediaMetadataCompat.METADATA_KEY_ALBUM,
-                        MediaMetadataCompat.METADATA_KEY_ARTIST,
-                        MediaMetadataCompat.METADATA_KEY_GENRE,
-                        MediaMetadataCompat.METADATA_KEY_TITLE
-                }) {
-            builder.putString(key, metadataWithoutBitmap.getString(key));
+        return metadataCache.get(context, mediaId, METADATA_ART_SIZE_PX);
+    }
+
+    /**
+     * Builds the metadata of {@code mediaId} in the background, so that a later
+     * {@link #getMetadata} call for it returns right away.
+     */
+    public static void prefetchMetadata(Context context, String mediaId) {
+        metadataCache.prefetch(context, mediaId, METADATA_ART_SIZE_PX);
+    }
+
+    /**
+     * @return the metadata of {@code mediaId} without album art, which is cheap to build; null
+     * if there is no such track.
+     */
+    public static MediaMetadataCompat getTrack(String mediaId) {
+        final MusicCatalog current = catalog;
+        final int ordinal = current.getOrdinal(mediaId);
+        return ordinal >= 0 ? current.getTrack(ordinal) : null;
+    }
+
+    private static MediaMetadataCompat buildMetadata(Context context,
+                                                     String mediaId,
+                                                     int artSizePx) {
+        final MusicCatalog current = catalog;
+        final int ordinal = current.getOrdinal(mediaId);
+        if (ordinal < 0) {
+            return null;
+        }
+        final MediaMetadataCompat.Builder builder = current.newMetadataBuilder(ordinal);
+        if (current.getAlbumRes(ordinal) != 0) {
+            // Controllers load the thumbnail only if and when they display it.
+            final String artUri = AlbumArtProvider.getAlbumArtUri(mediaId, artSizePx).toString();
+            builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artUri)
+                    .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, artUri);
         }
-        builder.putLong(
-                MediaMetadataCompat.METADATA_KEY_DURATION,
-                metadataWithoutBitmap.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
-        builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt);
         return builder.build();
     }
 
-    private static void createMediaMetadataCompat(
+    private static void addTrack(
+            MusicCatalog.Builder builder,
             String mediaId,
             String title,
             String artist,
@@ -131,24 +251,16 @@ public class MusicLibrary {
             String musicFilename,
             int albumArtResId,
             String albumArtResName) {
-        music.put(
+        builder.add(
                 mediaId,
-                new MediaMetadataCompat.Builder()
-                        .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
-                        .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                        .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
-                        .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
-                                 TimeUnit.MILLISECONDS.convert(duration, durationUnit))
-                        .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
-                        .putString(
-                                MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
-                                getAlbumArtUri(albumArtResName))
-                        .putString(
-                                MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI,
-                                getAlbumArtUri(albumArtResName))
-                        .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                        .build());
-        albumRes.put(mediaId, albumArtResId);
-        musicFileName.put(mediaId, musicFilename);
+                title,
+                artist,
+                album,
+                null,
+                genre,
+                TimeUnit.MILLISECONDS.convert(duration, durationUnit),
+                getAlbumArtUri(albumArtResName),
+                musicFilename,
+                albumArtResId);
     }
 }
\ No newline at end of file
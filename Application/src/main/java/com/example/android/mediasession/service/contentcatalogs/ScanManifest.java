@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * What {@link MediaScanner} learned about every file in its last scan, keyed by path. A file
+ * whose size and modification time still match its entry doesn't need its tags read again.
+ * <p>
+ * Each write gives the manifest a new random version, which catalogs built from it carry, so
+ * that whatever is derived from a catalog can tell whether it is still current.
+ */
+final class ScanManifest {
+
+    private static final String TAG = ScanManifest.class.getSimpleName();
+
+    private static final int MAGIC = 0x4d534d46; // "MSMF"
+    private static final int VERSION = 3;
+
+    private static final Random sRandom = new Random();
+
+    private ScanManifest() {
+    }
+
+    /**
+     * Tags of one scanned file, together with the size and modification time they were read
+     * at.
+     */
+    static final class Entry {
+        final String mPath;
+        final long mSize;
+        final long mLastModified;
+        final String mTitle;
+        final String mArtist;
+        final String mAlbum;
+        final String mAlbumArtist;
+        final String mGenre;
+        final long mDurationMs;
+
+        Entry(String path,
+              long size,
+              long lastModified,
+              String title,
+              String artist,
+              String album,
+              String albumArtist,
+              String genre,
+              long durationMs) {
+            mPath = path;
+            mSize = size;
+            mLastModified = lastModified;
+            mTitle = title;
+            mArtist = artist;
+            mAlbum = album;
+            mAlbumArtist = albumArtist;
+            mGenre = genre;
+            mDurationMs = durationMs;
+        }
+
+        boolean matches(File file) {
+            return file.length() == mSize && file.lastModified() == mLastModified;
+        }
+    }
+
+    /**
+     * @return the entries saved in {@code file}, or an empty map if it is missing or can't be
+     * read (which only costs a full rescan).
+     */
+    @NonNull
+    static HashMap<String, Entry> read(File file) {
+        final HashMap<String, Entry> entries = new HashMap<>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(TAG, "read: ignoring incompatible manifest " + file);
+                    return entries;
+                }
+                in.readLong();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final Entry entry = new Entry(
+                            in.readUTF(),
+                            in.readLong(),
+                            in.readLong(),
+                            readString(in),
+                            readString(in),
+                            readString(in),
+                            readString(in),
+                            readString(in),
+                            in.readLong());
+                    entries.put(entry.mPath, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "read: failed to read " + file, e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads only the header of {@code file}.
+     *
+     * @return the version it was written with, or 0 if it is missing or can't be read.
+     */
+    static long readVersion(File file) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return 0;
+                }
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "readVersion: failed to read " + file, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Replaces {@code file} with {@code entries}, atomically.
+     *
+     * @return the new version of the manifest, never 0.
+     */
+    static long write(File file, Collection<Entry> entries) throws IOException {
+        long version;
+        do {
+            version = sRandom.nextLong();
+        } while (version == 0);
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(version);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.mPath);
+                out.writeLong(entry.mSize);
+                out.writeLong(entry.mLastModified);
+                writeString(out, entry.mTitle);
+                writeString(out, entry.mArtist);
+                writeString(out, entry.mAlbum);
+                writeString(out, entry.mAlbumArtist);
+                writeString(out, entry.mGenre);
+                out.writeLong(entry.mDurationMs);
+            }
+            // On disk before the rename, so a crash can't leave a renamed but empty file.
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        return version;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the title, artist, album and genre of every track in a
+ * {@link MusicCatalog}.
+ * <p>
+ * Text is split into tokens on anything that isn't a letter or a digit, lower cased and
+ * accent folded ("beyonce" matches "Beyonc&eacute;"). Every query token matches indexed terms
+ * it is a prefix of, so partial input such as "cold sho" already finds "The Coldest Shoulder";
+ * whole term matches rank higher than prefix matches. Tokens shorter than
+ * {@link #MIN_PREFIX_LENGTH} only match whole terms, and are ignored if there is none, since as
+ * prefixes they would match most of the catalog.
+ * <p>
+ * Terms are kept sorted, so the terms matching a prefix are a contiguous range of term IDs found
+ * by binary search, and the number of tracks behind that range is known in O(1). A query only
+ * walks the postings of its most selective token; the other tokens are checked against the
+ * handful of terms of each candidate track.
+ * <p>
+ * Immutable and thread safe once built.
+ */
+public final class SearchIndex {
+
+    public static final int FIELD_TITLE = 1;
+    public static final int FIELD_ARTIST = 1 << 1;
+    public static final int FIELD_ALBUM = 1 << 2;
+    public static final int FIELD_GENRE = 1 << 3;
+    public static final int FIELD_ALL = FIELD_TITLE | FIELD_ARTIST | FIELD_ALBUM | FIELD_GENRE;
+
+    public static final int MIN_PREFIX_LENGTH = 2;
+
+    private static final int FIELD_COUNT = 4;
+    // Indexed by field bit, i.e. FIELD_TITLE first.
+    private static final int[] FIELD_WEIGHTS = {4, 3, 2, 1};
+
+    // A track term entry is (term ID << FIELD_BITS) | fields the term occurs in.
+    private static final int FIELD_BITS = 4;
+    private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+
+    private final String[] mTerms;
+    // Tracks containing mTerms[t] are mPostings[mPostingStart[t] .. mPostingStart[t + 1]).
+    private final int[] mPostingStart;
+    private final int[] mPostings;
+    // Terms of track o are mTrackTerms[mTrackTermStart[o] .. mTrackTermStart[o + 1]).
+    private final int[] mTrackTermStart;
+    private final int[] mTrackTerms;
+
+    private SearchIndex(String[] terms,
+                        int[] postingStart,
+                        int[] postings,
+                        int[] trackTermStart,
+                        int[] trackTerms) {
+        mTerms = terms;
+        mPostingStart = postingStart;
+        mPostings = postings;
+        mTrackTermStart = trackTermStart;
+        mTrackTerms = trackTerms;
+    }
+
+    /**
+     * Indexes every track of {@code catalog}. Linear in the amount of indexed text, plus sorting
+     * the distinct terms.
+     */
+    static SearchIndex build(MusicCatalog catalog) {
+        final int size = catalog.size();
+        final HashMap<String, Integer> provisionalIds = new HashMap<>();
+        final List<String> provisionalTerms = new ArrayList<>();
+        final HashMap<Integer, Integer> trackFields = new HashMap<>();
+        final int[] trackTermStart = new int[size + 1];
+        int[] trackTerms = new int[Math.max(16, size * 4)];
+        int count = 0;
+
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            trackFields.clear();
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                for (String token : tokenize(getField(catalog, ordinal, field))) {
+                    Integer id = provisionalIds.get(token);
+                    if (id == null) {
+                        id = provisionalTerms.size();
+                        provisionalIds.put(token, id);
+                        provisionalTerms.add(token);
+                    }
+                    final Integer fields = trackFields.get(id);
+                    trackFields.put(id, (fields != null ? fields : 0) | (1 << field));
+                }
+            }
+
+            trackTermStart[ordinal] = count;
+            if (count + trackFields.size() > trackTerms.length) {
+                trackTerms = Arrays.copyOf(
+                        trackTerms, Math.max(trackTerms.length * 2, count + trackFields.size()));
+            }
+            for (Map.Entry<Integer, Integer> entry : trackFields.entrySet()) {
+                trackTerms[count++] = (entry.getKey() << FIELD_BITS) | entry.getValue();
+            }
+        }
+        trackTermStart[size] = count;
+
+        // Renumber terms in sorted order so that prefixes map to ranges of term IDs.
+        final String[] terms = provisionalTerms.toArray(new String[provisionalTerms.size()]);
+        Arrays.sort(terms);
+        final int[] remap = new int[terms.length];
+        for (int provisional = 0; provisional < remap.length; provisional++) {
+            remap[provisional] = Arrays.binarySearch(terms, provisionalTerms.get(provisional));
+        }
+
+        final int[] postingStart = new int[terms.length + 1];
+        for (int i = 0; i < count; i++) {
+            final int term = remap[trackTerms[i] >>> FIELD_BITS];
+            trackTerms[i] = (term << FIELD_BITS) | (trackTerms[i] & FIELD_MASK);
+            postingStart[term + 1]++;
+        }
+        for (int term = 0; term < terms.length; term++) {
+            postingStart[term + 1] += postingStart[term];
+        }
+        final int[] postings = new int[count];
+        final int[] fill = Arrays.copyOf(postingStart, terms.length);
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            for (int i = trackTermStart[ordinal]; i < trackTermStart[ordinal + 1]; i++) {
+                postings[fill[trackTerms[i] >>> FIELD_BITS]++] = ordinal;
+            }
+        }
+
+        return new SearchIndex(terms, postingStart, postings, trackTermStart,
+                               Arrays.copyOf(trackTerms, count));
+    }
+
+    // Field index i is the field with bit (1 << i).
+    private static String getField(MusicCatalog catalog, int ordinal, int field) {
+        switch (field) {
+            case 0:
+                return catalog.getTitle(ordinal);
+            case 1:
+                return catalog.getArtist(ordinal);
+            case 2:
+                return catalog.getAlbum(ordinal);
+            default:
+                return catalog.getGenre(ordinal);
+        }
+    }
+
+    public int getTermCount() {
+        return mTerms.length;
+    }
+
+    /**
+     * Searches every field for {@code text}.
+     */
+    @NonNull
+    public int[] search(String text, int limit) {
+        return search(new Query().add(text, FIELD_ALL), limit);
+    }
+
+    /**
+     * @return ordinals, in the catalog this index was built from, of up to {@code limit} tracks
+     * matching every token of {@code query}, best matches first. Ties are broken by ordinal.
+     */
+    @NonNull
+    public int[] search(@NonNull Query query, int limit) {
+        final List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < query.mTexts.size(); i++) {
+            for (String text : tokenize(query.mTexts.get(i))) {
+                final Token token = resolve(text, query.mFields.get(i));
+                if (token == null) {
+                    continue;
+                }
+                if (token.mFrom == token.mTo) {
+                    // Nothing starts with this token, so nothing can match every token.
+                    return new int[0];
+                }
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        // Only the postings of the token matching the fewest tracks are walked.
+        Token driver = tokens.get(0);
+        for (Token token : tokens) {
+            if (token.mPostingCount < driver.mPostingCount) {
+                driver = token;
+            }
+        }
+
+        // A single term's postings are in ordinal order, so once the results are full of
+        // perfect scores nothing later can displace them.
+        final boolean singleTerm = driver.mTo - driver.mFrom == 1;
+        int maxScore = 0;
+        for (Token token : tokens) {
+            maxScore += maxScore(token);
+        }
+
+        final TopResults top = new TopResults(limit);
+        final BitSet seen = singleTerm ? null : new BitSet(mTrackTermStart.length - 1);
+        for (int p = mPostingStart[driver.mFrom]; p < mPostingStart[driver.mTo]; p++) {
+            final int ordinal = mPostings[p];
+            if (seen != null) {
+                if (seen.get(ordinal)) {
+                    continue;
+                }
+                seen.set(ordinal);
+            }
+
+            int score = 0;
+            for (Token token : tokens) {
+                final int tokenScore = score(ordinal, token);
+                if (tokenScore == 0) {
+                    score = 0;
+                    break;
+                }
+                score += tokenScore;
+            }
+            if (score > 0) {
+                top.offer(score, ordinal);
+                if (singleTerm && top.isFull() && top.getMinScore() == maxScore) {
+                    break;
+                }
+            }
+        }
+        return top.toOrdinals();
+    }
+
+    /**
+     * Builds a query from the arguments of {@code onPlayFromSearch()} / {@code onSearch()},
+     * honouring {@link MediaStore#EXTRA_MEDIA_FOCUS} and the artist, album, genre and title
+     * extras when present.
+     *
+     * @return the query, or null if it is empty (which means "play anything").
+     */
+    @Nullable
+    public static Query newQuery(@Nullable String text, @Nullable Bundle extras) {
+        final Query query = new Query();
+        final String focus = extras != null ? extras.getString(MediaStore.EXTRA_MEDIA_FOCUS) : null;
+        if (focus != null) {
+            final String artist = extras.getString(MediaStore.EXTRA_MEDIA_ARTIST);
+            final String album = extras.getString(MediaStore.EXTRA_MEDIA_ALBUM);
+            final String genre = extras.getString(MediaStore.EXTRA_MEDIA_GENRE);
+            final String title = extras.getString(MediaStore.EXTRA_MEDIA_TITLE);
+            switch (focus) {
+                case MediaStore.Audio.Genres.ENTRY_CONTENT_TYPE:
+                    query.add(genre, FIELD_GENRE);
+                    break;
+                case MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE:
+                    query.add(artist, FIELD_ARTIST);
+                    break;
+                case MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE:
+                    query.add(album, FIELD_ALBUM).add(artist, FIELD_ARTIST);
+                    break;
+                case MediaStore.Audio.Media.ENTRY_CONTENT_TYPE:
+                    query.add(title, FIELD_TITLE).add(album, FIELD_ALBUM)
+                            .add(artist, FIELD_ARTIST);
+                    break;
+            }
+        }
+        if (query.mTexts.isEmpty()) {
+            // Unstructured, or a focus we don't know: search everything.
+            query.add(text, FIELD_ALL);
+        }
+        return query.isEmpty() ? null : query;
+    }
+
+    /**
+     * Lower cases {@code text}, strips accents and splits it into tokens.
+     */
+    static List<String> tokenize(@Nullable String text) {
+        final List<String> tokens = new ArrayList<>(4);
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        final String folded =
+                isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        final StringBuilder token = new StringBuilder();
+        for (int i = 0; i < folded.length(); i++) {
+            final char c = folded.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                // A combining accent left over by the decomposition; drop it.
+                continue;
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the terms {@code text} matches, or null if it should be ignored.
+     */
+    @Nullable
+    private Token resolve(String text, int fields) {
+        final int from = lowerBound(text);
+        final int exact = from < mTerms.length && mTerms[from].equals(text) ? from : -1;
+        final int to;
+        if (text.length() >= MIN_PREFIX_LENGTH) {
+            to = lowerBound(text + Character.MAX_VALUE);
+        } else if (exact >= 0) {
+            to = exact + 1;
+        } else {
+            return null;
+        }
+        return new Token(from, to, exact, fields, mPostingStart[to] - mPostingStart[from]);
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mTerms.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mTerms[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return how well {@code token} matches track {@code ordinal}: the weight of the best field
+     * it occurs in, doubled for a whole term match, or 0 if it doesn't match.
+     */
+    private int score(int ordinal, Token token) {
+        int best = 0;
+        for (int i = mTrackTermStart[ordinal]; i < mTrackTermStart[ordinal + 1]; i++) {
+            final int term = mTrackTerms[i] >>> FIELD_BITS;
+            final int fields = mTrackTerms[i] & token.mFields;
+            if (term < token.mFrom || term >= token.mTo || fields == 0) {
+                continue;
+            }
+            int weight = FIELD_WEIGHTS[Integer.numberOfTrailingZeros(fields)];
+            if (term == token.mExact) {
+                weight *= 2;
+            }
+            best = Math.max(best, weight);
+        }
+        return best;
+    }
+
+    private static int maxScore(Token token) {
+        final int weight = FIELD_WEIGHTS[Integer.numberOfTrailingZeros(token.mFields)];
+        return token.mExact >= 0 ? weight * 2 : weight;
+    }
+
+    /**
+     * A search query: every token of every added text must match, each in the fields it was
+     * added with.
+     */
+    public static final class Query {
+        private final List<String> mTexts = new ArrayList<>(2);
+        private final List<Integer> mFields = new ArrayList<>(2);
+
+        public Query add(@Nullable String text, int fields) {
+            if (text != null && !tokenize(text).isEmpty() && (fields & FIELD_ALL) != 0) {
+                mTexts.add(text);
+                mFields.add(fields & FIELD_ALL);
+            }
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return mTexts.isEmpty();
+        }
+
+        /**
+         * @return a string that is the same for two queries exactly when they match the same
+         * tracks, e.g. to cache results by.
+         */
+        @NonNull
+        public String getKey() {
+            final StringBuilder key = new StringBuilder();
+            for (int i = 0; i < mTexts.size(); i++) {
+                key.append(mFields.get(i)).append(':');
+                for (String token : tokenize(mTexts.get(i))) {
+                    key.append(token).append(' ');
+                }
+                key.append(';');
+            }
+            return key.toString();
+        }
+    }
+
+    private static final class Token {
+        // Matching terms are [mFrom, mTo); mExact is the term equal to the token, or -1.
+        private final int mFrom;
+        private final int mTo;
+        private final int mExact;
+        private final int mFields;
+        private final int mPostingCount;
+
+        private Token(int from, int to, int exact, int fields, int postingCount) {
+            mFrom = from;
+            mTo = to;
+            mExact = exact;
+            mFields = fields;
+            mPostingCount = postingCount;
+        }
+    }
+
+    /**
+     * Keeps the best {@code limit} (score, ordinal) pairs in a min-heap, so ranking costs
+     * O(candidates * log limit) rather than sorting every candidate.
+     */
+    private static final class TopResults {
+        private final long[] mHeap;
+        private int mSize;
+
+        private TopResults(int limit) {
+            mHeap = new long[limit];
+        }
+
+        void offer(int score, int ordinal) {
+            // Higher scores, then lower ordinals, compare greater.
+            final long key = ((long) score << 32) | (Integer.MAX_VALUE - ordinal);
+            if (mSize < mHeap.length) {
+                mHeap[mSize] = key;
+                siftUp(mSize++);
+            } else if (key > mHeap[0]) {
+                mHeap[0] = key;
+                siftDown(0);
+            }
+        }
+
+        boolean isFull() {
+            return mSize == mHeap.length;
+        }
+
+        int getMinScore() {
+            return mSize == 0 ? 0 : (int) (mHeap[0] >>> 32);
+        }
+
+        int[] toOrdinals() {
+            final long[] keys = Arrays.copyOf(mHeap, mSize);
+            Arrays.sort(keys);
+            final int[] ordinals = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                ordinals[i] = Integer.MAX_VALUE - (int) keys[mSize - 1 - i];
+            }
+            return ordinals;
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                if (mHeap[parent] <= mHeap[index]) {
+                    return;
+                }
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                final int left = index * 2 + 1;
+                if (left >= mSize) {
+                    return;
+                }
+                int smallest = left;
+                if (left + 1 < mSize && mHeap[left + 1] < mHeap[left]) {
+                    smallest = left + 1;
+                }
+                if (mHeap[index] <= mHeap[smallest]) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            final long tmp = mHeap[a];
+            mHeap[a] = mHeap[b];
+            mHeap[b] = tmp;
+        }
+    }
+}
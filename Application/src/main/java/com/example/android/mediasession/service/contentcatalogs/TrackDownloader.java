@@ -0,0 +1,834 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads tracks for offline playback.
+ * <p>
+ * Each track is split into fixed-size chunks that are fetched with HTTP range requests over a
+ * bounded pool of connections, shared by all downloads, and written in place into a partial
+ * file. A small state file next to it records which chunks are on disk, so a download that
+ * fails or is cut short by the process dying carries on where it stopped: {@link #restore()}
+ * resumes every unfinished download, and chunk retries continue from the last byte received.
+ * If the server's copy changes in between (its ETag or length differ) the download starts
+ * over.
+ * <p>
+ * A finished file is checked against the SHA-256 given with the request, or else the one the
+ * server sends in a {@code Digest} header, then registered with
+ * {@link MusicLibrary#setDownloadedFile}, so players open it from local storage from then on.
+ * <p>
+ * All public methods must be called from the main thread.
+ */
+public final class TrackDownloader {
+
+    private static final String TAG = TrackDownloader.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String INDEX_FILENAME = "downloads.index";
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int STATE_MAGIC = 0x4d53444c; // "MSDL"
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * Receives the outcome of downloads on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param success whether the track was downloaded, verified and registered. After a
+         *                failure, downloading it again resumes from what was fetched.
+         */
+        void onDownloadFinished(@NonNull String mediaId, boolean success);
+    }
+
+    private final File mDirectory;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Every thread of this pool holds at most one connection.
+    private final ThreadPoolExecutor mConnectionExecutor;
+    // Restores state and verifies finished files, without holding up a connection.
+    private final ThreadPoolExecutor mControlExecutor;
+
+    // Only touched on the main thread.
+    private final HashMap<String, Download> mDownloads = new HashMap<>();
+
+    // Guarded by itself. Media ID -> name of the downloaded file.
+    private final HashMap<String, String> mIndex = new HashMap<>();
+
+    private volatile boolean mShutdown;
+
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicInteger mChunkCount = new AtomicInteger();
+    private final AtomicInteger mRetryCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private final AtomicInteger mChecksumFailureCount = new AtomicInteger();
+
+    // Guarded by "mConnectionStats"; the time with at least one connection open, which
+    // throughput is measured against.
+    private final Object mConnectionStats = new Object();
+    private int mActiveConnections;
+    private int mPeakConnections;
+    private long mBusySince;
+    private long mBusyMs;
+
+    /**
+     * @param directory      where downloaded files and their state are kept.
+     * @param maxConnections how many chunks may be fetched at once, across all downloads.
+     */
+    public TrackDownloader(@NonNull File directory,
+                           int maxConnections,
+                           int connectTimeoutMs,
+                           int readTimeoutMs,
+                           @NonNull Listener listener) {
+        mDirectory = directory;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mListener = listener;
+        mConnectionExecutor = newExecutor(maxConnections, "download");
+        mControlExecutor = newExecutor(1, "download-control");
+    }
+
+    /**
+     * Registers the tracks downloaded by earlier sessions with {@link MusicLibrary} and resumes
+     * the downloads that didn't finish.
+     */
+    public void restore() {
+        execute(mControlExecutor, new Runnable() {
+            @Override
+            public void run() {
+                readIndex();
+                final File[] files = mDirectory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (!file.getName().endsWith(STATE_SUFFIX)) {
+                        continue;
+                    }
+                    final Download download = readState(file);
+                    if (download == null) {
+                        // Torn or stale: the chunks it listed can't be trusted.
+                        file.delete();
+                        getPartFile(file).delete();
+                        continue;
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            start(download);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads a track, or resumes downloading it.
+     *
+     * @param url    where the track is fetched from.
+     * @param sha256 the expected SHA-256 of the file in hex, or null to use whatever the
+     *               server declares.
+     * @return false if the track is already downloaded or being downloaded.
+     */
+    public boolean download(@NonNull String mediaId,
+                            @NonNull String url,
+                            @Nullable String sha256) {
+        if (MusicLibrary.isDownloaded(mediaId)) {
+            return false;
+        }
+        return start(new Download(mediaId, url,
+                                  sha256 != null ? sha256.toLowerCase(Locale.US) : null));
+    }
+
+    public void shutdown() {
+        // Chunks on disk stay recorded in the state files; restore() carries on with them.
+        mShutdown = true;
+        mConnectionExecutor.shutdownNow();
+        mControlExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public String toString() {
+        final long bytes = mByteCount.get();
+        final long busyMs;
+        final int peak;
+        synchronized (mConnectionStats) {
+            busyMs = mBusyMs + (mActiveConnections > 0
+                    ? SystemClock.elapsedRealtime() - mBusySince : 0);
+            peak = mPeakConnections;
+        }
+        return "TrackDownloader{completed=" + mCompletedCount.get()
+                + ", failed=" + mFailedCount.get()
+                + ", checksumFailures=" + mChecksumFailureCount.get()
+                + ", chunks=" + mChunkCount.get()
+                + ", retries=" + mRetryCount.get()
+                + ", bytes=" + bytes
+                + ", throughput=" + (busyMs > 0 ? bytes * 1000 / busyMs / 1024 : 0) + "KB/s"
+                + ", peakConnections=" + peak + "/" + mConnectionExecutor.getMaximumPoolSize()
+                + "}";
+    }
+
+    private boolean start(final Download download) {
+        if (mShutdown || mDownloads.containsKey(download.mMediaId)) {
+            return false;
+        }
+        mDownloads.put(download.mMediaId, download);
+        execute(mConnectionExecutor, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe(download);
+                } catch (IOException e) {
+                    fail(download, e);
+                    return;
+                }
+                scheduleChunks(download);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Asks the server for the track's length, validator and digest, and starts over if they
+     * don't match what the partial file was fetched with.
+     */
+    private void probe(Download download) throws IOException {
+        final HttpURLConnection connection = openConnection(download.mUrl);
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            connection.setRequestProperty("Want-Digest", "SHA-256");
+            final int code = connection.getResponseCode();
+            final long length;
+            final boolean ranges;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                length = parseTotalLength(connection.getHeaderField("Content-Range"));
+                ranges = true;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                length = connection.getContentLength();
+                ranges = false;
+            } else {
+                throw new IOException("HTTP " + code + " from " + download.mUrl);
+            }
+            if (length <= 0) {
+                throw new IOException("No length from " + download.mUrl);
+            }
+            String validator = connection.getHeaderField("ETag");
+            if (validator == null) {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+            final String digest = parseSha256(connection.getHeaderField("Digest"));
+
+            synchronized (download) {
+                final boolean changed = download.mLength != length
+                        || !equal(download.mValidator, validator);
+                if (changed || !ranges) {
+                    // Without range support every attempt starts from the first byte.
+                    download.reset(length, validator, ranges ? CHUNK_SIZE : (int) length);
+                }
+                if (download.mSha256 == null) {
+                    download.mSha256 = digest;
+                }
+            }
+            createDirectory();
+            final RandomAccessFile file = new RandomAccessFile(download.mPartFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+            writeState(download);
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    private void scheduleChunks(final Download download) {
+        final int chunkCount;
+        final BitSet done;
+        synchronized (download) {
+            chunkCount = download.getChunkCount();
+            done = (BitSet) download.mDone.clone();
+        }
+        // One extra count keeps the download from finishing before all chunks are queued.
+        download.mPending.set(chunkCount - done.cardinality() + 1);
+        for (int i = done.nextClearBit(0); i < chunkCount; i = done.nextClearBit(i + 1)) {
+            final int chunk = i;
+            execute(mConnectionExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!download.mFailed) {
+                            fetchChunk(download, chunk);
+                        }
+                    } catch (IOException e) {
+                        download.mFailed = true;
+                        Log.w(TAG, "fetchChunk: " + download.mMediaId + " chunk " + chunk
+                                + " failed: " + e);
+                    }
+                    onChunkSettled(download);
+                }
+            });
+        }
+        onChunkSettled(download);
+    }
+
+    private void onChunkSettled(final Download download) {
+        if (download.mPending.decrementAndGet() != 0 || mShutdown) {
+            return;
+        }
+        execute(mControlExecutor, new Runnable() {
+            @Override
+            public void run() {
+                if (download.mFailed) {
+                    fail(download, new IOException("Chunks failed"));
+                } else {
+                    complete(download);
+                }
+            }
+        });
+    }
+
+    private void fetchChunk(Download download, int chunk) throws IOException {
+        final long start;
+        final long end;
+        final boolean whole;
+        final String validator;
+        synchronized (download) {
+            start = (long) chunk * download.mChunkSize;
+            end = Math.min(start + download.mChunkSize, download.mLength) - 1;
+            whole = start == 0 && end == download.mLength - 1;
+            validator = download.mValidator;
+        }
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        for (int attempt = 1; ; attempt++) {
+            final HttpURLConnection connection = openConnection(download.mUrl);
+            try {
+                connection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+                if (validator != null && validator.startsWith("\"")) {
+                    // A strong ETag: the server sends everything if the track changed.
+                    connection.setRequestProperty("If-Range", validator);
+                }
+                final int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK && whole) {
+                    position = 0;
+                } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    if (code == HttpURLConnection.HTTP_OK) {
+                        // Changed on the server; what was fetched before can't be used.
+                        download.mStale = true;
+                        attempt = MAX_ATTEMPTS;
+                    }
+                    throw new IOException("HTTP " + code + " from " + download.mUrl);
+                }
+
+                final InputStream in = connection.getInputStream();
+                final RandomAccessFile out = new RandomAccessFile(download.mPartFile, "rw");
+                try {
+                    out.seek(position);
+                    while (position <= end) {
+                        if (mShutdown || download.mFailed) {
+                            return;
+                        }
+                        final int count = in.read(buffer, 0,
+                                (int) Math.min(buffer.length, end - position + 1));
+                        if (count < 0) {
+                            throw new IOException("Response from " + download.mUrl
+                                    + " ended early");
+                        }
+                        out.write(buffer, 0, count);
+                        position += count;
+                        download.mByteCount.addAndGet(count);
+                        mByteCount.addAndGet(count);
+                    }
+                    // The chunk must be on disk before the state file says it is.
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                    in.close();
+                }
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || mShutdown) {
+                    throw e;
+                }
+                // Resume from where it stopped.
+                Log.w(TAG, "fetchChunk: retrying " + download.mMediaId + " from " + position
+                        + ": " + e);
+                mRetryCount.incrementAndGet();
+                sleep(RETRY_DELAY_MS * attempt);
+                continue;
+            } finally {
+                closeConnection(connection);
+            }
+            break;
+        }
+
+        mChunkCount.incrementAndGet();
+        synchronized (download) {
+            download.mDone.set(chunk);
+        }
+        writeState(download);
+    }
+
+    private void complete(Download download) {
+        try {
+            final String sha256 = computeSha256(download.mPartFile);
+            if (download.mSha256 == null) {
+                Log.w(TAG, "complete: no checksum for " + download.mMediaId + ", accepting "
+                        + sha256);
+            } else if (!download.mSha256.equals(sha256)) {
+                mChecksumFailureCount.incrementAndGet();
+                download.mStale = true;
+                throw new IOException("Checksum mismatch, expected " + download.mSha256
+                        + ", got " + sha256);
+            }
+
+            final File file = new File(mDirectory, download.mKey + getExtension(download.mUrl));
+            if (!download.mPartFile.renameTo(file)) {
+                throw new IOException("Failed to rename to " + file);
+            }
+            download.mStateFile.delete();
+            synchronized (mIndex) {
+                mIndex.put(download.mMediaId, file.getName());
+                writeIndex();
+            }
+            MusicLibrary.setDownloadedFile(download.mMediaId, file.getPath());
+        } catch (IOException e) {
+            fail(download, e);
+            return;
+        }
+
+        mCompletedCount.incrementAndGet();
+        final long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - download.mStartTime);
+        Log.d(TAG, "complete: " + download.mMediaId + ", " + download.mLength + " bytes, "
+                + download.mByteCount.get() + " fetched in " + elapsedMs + "ms ("
+                + download.mByteCount.get() * 1000 / elapsedMs / 1024 + "KB/s); " + this);
+        finish(download, true);
+    }
+
+    private void fail(Download download, IOException e) {
+        Log.w(TAG, "fail: " + download.mMediaId + ": " + e);
+        mFailedCount.incrementAndGet();
+        if (download.mStale) {
+            download.mStateFile.delete();
+            download.mPartFile.delete();
+        }
+        finish(download, false);
+    }
+
+    private void finish(final Download download, final boolean success) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDownloads.remove(download.mMediaId);
+                mListener.onDownloadFinished(download.mMediaId, success);
+            }
+        });
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+        synchronized (mConnectionStats) {
+            if (mActiveConnections++ == 0) {
+                mBusySince = SystemClock.elapsedRealtime();
+            }
+            mPeakConnections = Math.max(mPeakConnections, mActiveConnections);
+        }
+        return connection;
+    }
+
+    private void closeConnection(HttpURLConnection connection) {
+        connection.disconnect();
+        synchronized (mConnectionStats) {
+            if (--mActiveConnections == 0) {
+                mBusyMs += SystemClock.elapsedRealtime() - mBusySince;
+            }
+        }
+    }
+
+    private void writeState(Download download) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (download) {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(download.mMediaId);
+            out.writeUTF(download.mUrl);
+            out.writeLong(download.mLength);
+            out.writeUTF(download.mValidator != null ? download.mValidator : "");
+            out.writeUTF(download.mSha256 != null ? download.mSha256 : "");
+            out.writeInt(download.mChunkSize);
+            final byte[] done = download.mDone.toByteArray();
+            out.writeInt(done.length);
+            out.write(done);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            replace(download.mStateFile, bytes.toByteArray());
+        }
+    }
+
+    @Nullable
+    private Download readState(File stateFile) {
+        try {
+            final byte[] bytes = readFully(stateFile);
+            if (bytes.length < 8) {
+                return null;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                return null;
+            }
+            final String mediaId = in.readUTF();
+            final String url = in.readUTF();
+            final long length = in.readLong();
+            final String validator = in.readUTF();
+            final String sha256 = in.readUTF();
+            final int chunkSize = in.readInt();
+            final byte[] done = new byte[in.readInt()];
+            in.readFully(done);
+            if (in.readLong() != crc.getValue()) {
+                return null;
+            }
+            final Download download = new Download(mediaId, url,
+                                                   sha256.isEmpty() ? null : sha256);
+            if (!download.mStateFile.equals(stateFile)) {
+                return null;
+            }
+            download.mLength = length;
+            download.mValidator = validator.isEmpty() ? null : validator;
+            download.mChunkSize = chunkSize;
+            download.mDone = BitSet.valueOf(done);
+            return download;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "readState: discarding " + stateFile + ": " + e);
+            return null;
+        }
+    }
+
+    private void readIndex() {
+        final File indexFile = new File(mDirectory, INDEX_FILENAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+        synchronized (mIndex) {
+            try {
+                final DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(readFully(indexFile)));
+                for (int count = in.readInt(); count > 0; count--) {
+                    mIndex.put(in.readUTF(), in.readUTF());
+                }
+            } catch (IOException e) {
+                // The files themselves are still there; downloading again finds them gone
+                // from the index and fetches them.
+                Log.w(TAG, "readIndex: failed to read " + indexFile, e);
+            }
+            for (Map.Entry<String, String> entry : mIndex.entrySet()) {
+                final File file = new File(mDirectory, entry.getValue());
+                if (file.isFile()) {
+                    MusicLibrary.setDownloadedFile(entry.getKey(), file.getPath());
+                }
+            }
+        }
+    }
+
+    // Called with the index lock held.
+    private void writeIndex() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(mIndex.size());
+        for (Map.Entry<String, String> entry : mIndex.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        replace(new File(mDirectory, INDEX_FILENAME), bytes.toByteArray());
+    }
+
+    private void replace(File file, byte[] data) throws IOException {
+        createDirectory();
+        final File temp = new File(mDirectory,
+                file.getName() + TEMP_SUFFIX + Thread.currentThread().getId());
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+    }
+
+    private void execute(ThreadPoolExecutor executor, Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile.
+        }
+    }
+
+    private File getPartFile(File stateFile) {
+        final String name = stateFile.getName();
+        return new File(mDirectory,
+                name.substring(0, name.length() - STATE_SUFFIX.length()) + PART_SUFFIX);
+    }
+
+    /**
+     * A track being downloaded. Its fields describe the partial file and are guarded by the
+     * download itself.
+     */
+    private final class Download {
+        final String mMediaId;
+        final String mUrl;
+        final String mKey;
+        final File mPartFile;
+        final File mStateFile;
+        final long mStartTime = SystemClock.elapsedRealtime();
+        final AtomicInteger mPending = new AtomicInteger();
+        final AtomicLong mByteCount = new AtomicLong();
+        volatile boolean mFailed;
+        // Set when the partial file must not be resumed.
+        volatile boolean mStale;
+
+        @Nullable
+        String mSha256;
+        long mLength = -1;
+        @Nullable
+        String mValidator;
+        int mChunkSize;
+        BitSet mDone = new BitSet();
+
+        Download(String mediaId, String url, @Nullable String sha256) {
+            mMediaId = mediaId;
+            mUrl = url;
+            mSha256 = sha256;
+            mKey = getKey(mediaId);
+            mPartFile = new File(mDirectory, mKey + PART_SUFFIX);
+            mStateFile = new File(mDirectory, mKey + STATE_SUFFIX);
+        }
+
+        int getChunkCount() {
+            return (int) ((mLength + mChunkSize - 1) / mChunkSize);
+        }
+
+        void reset(long length, @Nullable String validator, int chunkSize) {
+            mLength = length;
+            mValidator = validator;
+            mChunkSize = chunkSize;
+            mDone = new BitSet();
+        }
+    }
+
+    private static String getKey(String mediaId) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(mediaId.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String computeSha256(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the SHA-256 of a {@code Digest: SHA-256=<base64>} header in hex, or null.
+     */
+    @Nullable
+    private static String parseSha256(@Nullable String header) {
+        if (header == null) {
+            return null;
+        }
+        for (String part : header.split(",")) {
+            final int equals = part.indexOf('=');
+            if (equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase("SHA-256")) {
+                try {
+                    final byte[] bytes = Base64.decode(part.substring(equals + 1).trim(),
+                                                       Base64.DEFAULT);
+                    return bytes.length == 32 ? toHex(bytes) : null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the total length from a {@code Content-Range: bytes a-b/total} header, or -1.
+     */
+    private static long parseTotalLength(@Nullable String contentRange) {
+        final int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the extension of the URL's file name, if it looks like one, so the file type is
+     * still apparent on disk.
+     */
+    private static String getExtension(String url) {
+        final int query = url.indexOf('?');
+        final String path = query >= 0 ? url.substring(0, query) : url;
+        final int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return "";
+        }
+        final String extension = path.substring(dot).toLowerCase(Locale.US);
+        return extension.matches("\\.[a-z0-9]{1,5}") ? extension : "";
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // shutdown() interrupts the pool.
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -22,8 +22,14 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.support.v4.app.NotificationCompat;
@@ -35,11 +41,14 @@ import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.os.BuildCompat;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.example.android.mediasession.R;
 import com.example.android.mediasession.service.MusicService;
 import com.example.android.mediasession.service.PlaybackInfoListener;
+import com.example.android.mediasession.service.contentcatalogs.MusicCatalog;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
 import com.example.android.mediasession.ui.MainActivity;
 
@@ -47,6 +56,15 @@ import com.example.android.mediasession.ui.MainActivity;
 /**
  * Keeps track of a notification and updates it automatically for a given MediaSession. This is
  * required so that the music service don't get killed during playback.
+ * <p>
+ * Only what's visible in the notification (the media item, play/pause and which skip actions
+ * are enabled) decides whether it changed. Anything else, e.g. a position update, reuses the
+ * last notification. Builders are kept per action layout and only get their text and art
+ * replaced, and {@link NotificationManager#notify} is called at most once per
+ * {@link #MIN_NOTIFY_INTERVAL_MS}.
+ * <p>
+ * Album art that isn't decoded yet is loaded in the background: the notification goes out
+ * without it first and is updated, if it is still shown, once the art is ready.
  */
 public class MediaNotificationManager {
 
@@ -56,6 +74,14 @@ public class MediaNotificationManager {
     private static final String CHANNEL_ID = "com.example.android.musicplayer.channel";
     private static final int REQUEST_CODE = 501;
 
+    // The system drops updates to a notification that arrive faster than a few per second.
+    private static final long MIN_NOTIFY_INTERVAL_MS = 250;
+
+    // Bits of the action layout, which picks the builder to use.
+    private static final int LAYOUT_PREVIOUS = 1;
+    private static final int LAYOUT_PLAYING = 1 << 1;
+    private static final int LAYOUT_NEXT = 1 << 2;
+
     private final MusicService mService;
 
     private final NotificationCompat.Action mPlayAction;
@@ -63,10 +89,53 @@ public class MediaNotificationManager {
     private final NotificationCompat.Action mNextAction;
     private final NotificationCompat.Action mPrevAction;
     private final NotificationManager mNotificationManager;
+    private final int mLargeIconWidth;
+    private final int mLargeIconHeight;
+    private final PendingIntent mContentIntent;
+    private final PendingIntent mStopIntent;
+    private final SparseArray<NotificationCompat.Builder> mBuilders = new SparseArray<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Notification pending = mPendingNotification;
+            mPendingNotification = null;
+            if (pending != null) {
+                notifyNow(pending);
+            }
+        }
+    };
+
+    // The last rendered model and its notification. The album art comes from the catalog, so
+    // a rescan may change it even if the media ID stays the same.
+    private String mMediaId;
+    private CharSequence mTitle;
+    private CharSequence mSubtitle;
+    private Uri mIconUri;
+    private MusicCatalog mCatalog;
+    private int mLayout = -1;
+    private Notification mNotification;
+
+    private Bitmap mCurrentLargeIcon;
+    private LargeIconTask mLargeIconTask;
+
+    private Notification mPostedNotification;
+    private Notification mPendingNotification;
+    private long mLastNotifyAt;
+
+    private int mBuildCount;
+    private int mPostCount;
+    private int mUnchangedCount;
+    private int mCoalescedCount;
 
     public MediaNotificationManager(MusicService service) {
         mService = service;
 
+        mLargeIconWidth = mService.getResources()
+                .getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        mLargeIconHeight = mService.getResources()
+                .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+
         mNotificationManager =
                 (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -98,6 +167,14 @@ public class MediaNotificationManager {
                         MediaButtonReceiver.buildMediaButtonPendingIntent(
                                 mService,
                                 PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
+        mContentIntent = createContentIntent();
+        mStopIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(
+                mService, PlaybackStateCompat.ACTION_STOP);
+
+        // Create the (mandatory) notification channel when running on Android Oreo.
+        if (isAndroidOOrHigher()) {
+            createChannel();
+        }
 
         // Cancel all notifications to handle the case where the Service was killed and
         // restarted by the system.
@@ -105,33 +182,197 @@ public class MediaNotificationManager {
     }
 
     public void onDestroy() {
-        Log.d(TAG, "onDestroy: ");
+        cancelLargeIconTask();
+        mHandler.removeCallbacks(mNotifyRunnable);
+        mPendingNotification = null;
+        Log.d(TAG, "onDestroy: " + this);
     }
 
     public NotificationManager getNotificationManager() {
         return mNotificationManager;
     }
 
+    /**
+     * @return the notification for {@code metadata} and {@code state}. This is the same
+     * instance as last time unless something visible changed.
+     */
     public Notification getNotification(MediaMetadataCompat metadata,
                                         @NonNull PlaybackStateCompat state,
                                         MediaSessionCompat.Token token) {
-        boolean isPlaying = state.getState() == PlaybackStateCompat.STATE_PLAYING;
-        MediaDescriptionCompat description = metadata.getDescription();
-        NotificationCompat.Builder builder =
-                buildNotification(state, token, isPlaying, description);
-        return builder.build();
+        final MediaDescriptionCompat description = metadata.getDescription();
+        final String mediaId = description.getMediaId();
+        final Uri iconUri = description.getIconUri();
+        final MusicCatalog catalog = MusicLibrary.getCatalog();
+        final int layout = getLayout(state);
+        final boolean artChanged = mNotification == null
+                || !TextUtils.equals(mediaId, mMediaId)
+                || !(iconUri == null ? mIconUri == null : iconUri.equals(mIconUri))
+                || catalog != mCatalog;
+        if (!artChanged
+                && layout == mLayout
+                && TextUtils.equals(description.getTitle(), mTitle)
+                && TextUtils.equals(description.getSubtitle(), mSubtitle)) {
+            return mNotification;
+        }
+
+        NotificationCompat.Builder builder = mBuilders.get(layout);
+        if (builder == null) {
+            builder = buildNotification(token, layout);
+            mBuilders.put(layout, builder);
+        }
+        if (artChanged) {
+            // The album art is only looked up when it may have changed, and decoded off the
+            // main thread if it isn't cached.
+            cancelLargeIconTask();
+            mCurrentLargeIcon = MusicLibrary.getCachedAlbumBitmap(
+                    mediaId, mLargeIconWidth, mLargeIconHeight);
+            if (mCurrentLargeIcon == null && mediaId != null) {
+                mLargeIconTask = new LargeIconTask(mediaId, catalog);
+                mLargeIconTask.execute();
+            }
+        }
+        builder.setContentTitle(description.getTitle())
+                .setContentText(description.getSubtitle())
+                .setLargeIcon(mCurrentLargeIcon);
+
+        mMediaId = mediaId;
+        mTitle = description.getTitle();
+        mSubtitle = description.getSubtitle();
+        mIconUri = iconUri;
+        mCatalog = catalog;
+        mLayout = layout;
+        mNotification = builder.build();
+        mBuildCount++;
+        return mNotification;
     }
 
-    private NotificationCompat.Builder buildNotification(@NonNull PlaybackStateCompat state,
-                                                         MediaSessionCompat.Token token,
-                                                         boolean isPlaying,
-                                                         MediaDescriptionCompat description) {
+    /**
+     * Shows the notification for {@code metadata} and {@code state} without making the service
+     * foreground. Nothing is posted if the notification didn't change, and updates that come
+     * in quick succession are coalesced into the last one.
+     */
+    public void postNotification(MediaMetadataCompat metadata,
+                                 @NonNull PlaybackStateCompat state,
+                                 MediaSessionCompat.Token token) {
+        final Notification notification = getNotification(metadata, state, token);
+        if (notification == mPostedNotification && mPendingNotification == null) {
+            mUnchangedCount++;
+            return;
+        }
+        post(notification);
+    }
 
-        // Create the (mandatory) notification channel when running on Android Oreo.
-        if (isAndroidOOrHigher()) {
-            createChannel();
+    private void post(Notification notification) {
+        final long wait = mLastNotifyAt + MIN_NOTIFY_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait <= 0 && mPendingNotification == null) {
+            notifyNow(notification);
+            return;
+        }
+        if (mPendingNotification != null) {
+            mCoalescedCount++;
+        } else {
+            mHandler.postDelayed(mNotifyRunnable, Math.max(0, wait));
+        }
+        mPendingNotification = notification;
+    }
+
+    /**
+     * Records that the service posted {@code notification} itself, e.g. with
+     * {@code startForeground()}. Any pending update is dropped since it's now out of date.
+     */
+    public void onNotificationPosted(Notification notification) {
+        cancelPending();
+        mPostedNotification = notification;
+        mLastNotifyAt = SystemClock.elapsedRealtime();
+        mPostCount++;
+    }
+
+    /**
+     * @return whether {@code notification} is the one currently shown.
+     */
+    public boolean isPosted(Notification notification) {
+        return notification == mPostedNotification;
+    }
+
+    /**
+     * Records that the notification was taken down, so the next one is posted no matter what.
+     */
+    public void onNotificationRemoved() {
+        cancelPending();
+        mPostedNotification = null;
+    }
+
+    public int getBuildCount() {
+        return mBuildCount;
+    }
+
+    public int getPostCount() {
+        return mPostCount;
+    }
+
+    @Override
+    public String toString() {
+        return "MediaNotificationManager{built=" + mBuildCount
+                + ", posted=" + mPostCount
+                + ", unchanged=" + mUnchangedCount
+                + ", coalesced=" + mCoalescedCount
+                + "}";
+    }
+
+    private void notifyNow(Notification notification) {
+        mNotificationManager.notify(NOTIFICATION_ID, notification);
+        mPostedNotification = notification;
+        mLastNotifyAt = SystemClock.elapsedRealtime();
+        mPostCount++;
+    }
+
+    private void cancelLargeIconTask() {
+        if (mLargeIconTask != null) {
+            mLargeIconTask.cancel(false);
+            mLargeIconTask = null;
+        }
+    }
+
+    /**
+     * Puts {@code largeIcon} into the current notification, posting it again if it is shown or
+     * about to be.
+     */
+    private void onLargeIconLoaded(Bitmap largeIcon) {
+        final Notification previous = mNotification;
+        final boolean shown = previous == mPostedNotification
+                || previous == mPendingNotification;
+        mCurrentLargeIcon = largeIcon;
+        mNotification = mBuilders.get(mLayout).setLargeIcon(largeIcon).build();
+        mBuildCount++;
+        if (shown) {
+            post(mNotification);
         }
+    }
 
+    private void cancelPending() {
+        if (mPendingNotification != null) {
+            mHandler.removeCallbacks(mNotifyRunnable);
+            mPendingNotification = null;
+            mCoalescedCount++;
+        }
+    }
+
+    private static int getLayout(@NonNull PlaybackStateCompat state) {
+        int layout = 0;
+        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
+            layout |= LAYOUT_PREVIOUS;
+        }
+        if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            layout |= LAYOUT_PLAYING;
+        }
+        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
+            layout |= LAYOUT_NEXT;
+        }
+        return layout;
+    }
+
+    private NotificationCompat.Builder buildNotification(MediaSessionCompat.Token token,
+                                                         int layout) {
         NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
         builder.setStyle(
                 new MediaStyle()
@@ -139,41 +380,67 @@ public class MediaNotificationManager {
                         .setShowActionsInCompactView(0, 1, 2)
                         // For backwards compatibility with Android L and earlier.
                         .setShowCancelButton(true)
-                        .setCancelButtonIntent(
-                                MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                        mService,
-                                        PlaybackStateCompat.ACTION_STOP)))
+                        .setCancelButtonIntent(mStopIntent))
                 .setColor(ContextCompat.getColor(mService, R.color.notification_bg))
                 .setSmallIcon(R.drawable.ic_stat_image_audiotrack)
                 // Pending intent that is fired when user clicks on notification.
-                .setContentIntent(createContentIntent())
-                // Title - Usually Song name.
-                .setContentTitle(description.getTitle())
-                // Subtitle - Usually Artist name.
-                .setContentText(description.getSubtitle())
-                .setLargeIcon(MusicLibrary.getAlbumBitmap(mService, description.getMediaId()))
+                .setContentIntent(mContentIntent)
                 // When notification is deleted (when playback is paused and notification can be
                 // deleted) fire MediaButtonPendingIntent with ACTION_STOP.
-                .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(
-                        mService, PlaybackStateCompat.ACTION_STOP))
+                .setDeleteIntent(mStopIntent)
                 // Show controls on lock screen even when user hides sensitive content.
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
 
-        // If skip to next action is enabled.
-        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
+        // If skip to previous action is enabled.
+        if ((layout & LAYOUT_PREVIOUS) != 0) {
             builder.addAction(mPrevAction);
         }
 
-        builder.addAction(isPlaying ? mPauseAction : mPlayAction);
+        builder.addAction((layout & LAYOUT_PLAYING) != 0 ? mPauseAction : mPlayAction);
 
-        // If skip to prev action is enabled.
-        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
+        // If skip to next action is enabled.
+        if ((layout & LAYOUT_NEXT) != 0) {
             builder.addAction(mNextAction);
         }
 
         return builder;
     }
 
+    /**
+     * Decodes the album art of a media item for the notification, off the main thread.
+     */
+    private class LargeIconTask extends AsyncTask<Void, Void, Bitmap> {
+        private final String mTaskMediaId;
+        private final MusicCatalog mTaskCatalog;
+
+        LargeIconTask(String mediaId, MusicCatalog catalog) {
+            mTaskMediaId = mediaId;
+            mTaskCatalog = catalog;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            return MusicLibrary.getAlbumBitmap(
+                    mService, mTaskMediaId, mLargeIconWidth, mLargeIconHeight);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mLargeIconTask != this) {
+                return;
+            }
+            mLargeIconTask = null;
+            // Dropped if the notification moved on to other media, or a rescan replaced the
+            // catalog the art was decoded from.
+            if (bitmap != null
+                    && TextUtils.equals(mTaskMediaId, mMediaId)
+                    && mTaskCatalog == mCatalog
+                    && mTaskCatalog == MusicLibrary.getCatalog()) {
+                onLargeIconLoaded(bitmap);
+            }
+        }
+    }
+
     // Does nothing on versions of Android earlier than O.
     @RequiresApi(Build.VERSION_CODES.O)
     private void createChannel() {
@@ -207,8 +474,9 @@ public class MediaNotificationManager {
     private PendingIntent createContentIntent() {
         Intent openUI = new Intent(mService, MainActivity.class);
         openUI.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        // Created once and reused, so it must survive across notifications.
         return PendingIntent.getActivity(
-                mService, REQUEST_CODE, openUI, PendingIntent.FLAG_CANCEL_CURRENT);
+                mService, REQUEST_CODE, openUI, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,608 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server that {@link android.media.MediaPlayer} streams remote media through, so
+ * that what it has fetched once is kept in a {@link SegmentCache}.
+ * <p>
+ * {@link #getProxyUrl} maps a remote URL to one on the loopback interface. Requests for it,
+ * including the range requests MediaPlayer makes to seek, are served segment by segment:
+ * cached segments from disk, and runs of missing ones with a single range request upstream,
+ * cached as they stream through. So replays and seeks back don't touch the network, and a
+ * seek forward only fetches from where it lands.
+ * <p>
+ * An upstream request that fails part way is resumed from where it stopped a few times
+ * before the client's request fails. The upstream server must support range requests for
+ * anything but reading from the start. Every request after the first for a piece of media
+ * carries the ETag or Last-Modified date it was first fetched with in {@code If-Range}; if
+ * the server answers with the whole media instead, it has changed, so the cache drops it and
+ * the client's request fails, to start over with the new one.
+ * <p>
+ * Only serves one request per connection, which is all MediaPlayer needs.
+ */
+final class CachingProxy {
+
+    private static final String TAG = CachingProxy.class.getSimpleName();
+
+    private static final int MAX_CONNECTIONS = 8;
+    // A run of missing segments fetched with one upstream request is capped at this many, so
+    // a request that's abandoned early doesn't leave a large transfer behind.
+    private static final int MAX_SEGMENTS_PER_FETCH = 16;
+    private static final int MAX_UPSTREAM_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 500;
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+    private final SegmentCache mCache;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    // Proxy path -> remote URL, read by connection threads; and back, guarded by "this".
+    private final ConcurrentHashMap<String, String> mUrls = new ConcurrentHashMap<>();
+    private final HashMap<String, String> mTokens = new HashMap<>();
+    private int mNextToken;
+
+    private ServerSocket mServerSocket;
+    private ThreadPoolExecutor mConnectionExecutor;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mRetryCount = new AtomicInteger();
+    private final AtomicLong mCacheBytes = new AtomicLong();
+    private final AtomicLong mNetworkBytes = new AtomicLong();
+
+    /**
+     * Thrown when writing to the client fails, which ends its request rather than being
+     * retried like an upstream failure.
+     */
+    private static final class ClientGoneException extends IOException {
+        ClientGoneException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Thrown when the media has changed upstream since parts of it were cached. Not retried
+     * either: the client has been sent some of the old media.
+     */
+    private static final class MediaChangedException extends IOException {
+        MediaChangedException(String message) {
+            super(message);
+        }
+    }
+
+    CachingProxy(@NonNull SegmentCache cache, int connectTimeoutMs, int readTimeoutMs) {
+        mCache = cache;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * @return the URL to stream {@code url} from through this proxy. Starts the proxy if it
+     * isn't running.
+     */
+    synchronized String getProxyUrl(@NonNull String url) throws IOException {
+        if (mServerSocket == null) {
+            start();
+        }
+        String token = mTokens.get(url);
+        if (token == null) {
+            token = Integer.toString(mNextToken++);
+            mTokens.put(url, token);
+            mUrls.put(token, url);
+        }
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + token;
+    }
+
+    /**
+     * Stops accepting connections and abandons the ones being served.
+     */
+    synchronized void shutdown() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "shutdown: failed to close server socket", e);
+        }
+        mServerSocket = null;
+        mConnectionExecutor.shutdownNow();
+        mConnectionExecutor = null;
+        Log.d(TAG, "shutdown: " + this);
+    }
+
+    @Override
+    public String toString() {
+        return "CachingProxy{requests=" + mRequestCount.get()
+                + ", cacheBytes=" + mCacheBytes.get()
+                + ", networkBytes=" + mNetworkBytes.get()
+                + ", retries=" + mRetryCount.get()
+                + ", " + mCache
+                + "}";
+    }
+
+    private void start() throws IOException {
+        final ServerSocket serverSocket =
+                new ServerSocket(0, MAX_CONNECTIONS, InetAddress.getByName("127.0.0.1"));
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                0,
+                MAX_CONNECTIONS,
+                30,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        mServerSocket = serverSocket;
+        mConnectionExecutor = executor;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket, executor);
+            }
+        }, "stream-proxy").start();
+    }
+
+    private void accept(ServerSocket serverSocket, ThreadPoolExecutor executor) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown().
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "accept: too many connections");
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            final HashMap<String, String> headers = new HashMap<>();
+            final String[] requestLine = readRequest(in, headers);
+            if (requestLine == null) {
+                return;
+            }
+            mRequestCount.incrementAndGet();
+            final boolean head = "HEAD".equals(requestLine[0]);
+            final String url = requestLine[1].length() > 1
+                    ? mUrls.get(requestLine[1].substring(1))
+                    : null;
+            if ((!head && !"GET".equals(requestLine[0])) || url == null) {
+                writeStatus(out, url == null ? "404 Not Found" : "405 Method Not Allowed");
+                return;
+            }
+            serve(url, headers.get("range"), head, out);
+        } catch (ClientGoneException e) {
+            // MediaPlayer closes connections whenever it seeks.
+        } catch (MediaChangedException e) {
+            Log.w(TAG, "serve: " + e.getMessage());
+        } catch (IOException e) {
+            Log.w(TAG, "serve: request failed", e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(String url, String range, boolean head, OutputStream out)
+            throws IOException {
+        final String key = SegmentCache.getKey(url);
+        SegmentCache.Info info = mCache.getInfo(key);
+        if (info == null) {
+            // Fetching the first segment also tells the length and content type.
+            info = fetch(url, key, null, 0, 0, 0, -1, null);
+        }
+
+        long start = 0;
+        long end = info.mLength - 1;
+        if (range != null) {
+            final long[] bounds = parseRange(range, info.mLength);
+            if (bounds == null) {
+                writeStatus(out, "416 Range Not Satisfiable");
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+        }
+
+        final StringBuilder response = new StringBuilder();
+        response.append(range != null ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK")
+                .append("\r\nAccept-Ranges: bytes\r\nConnection: close\r\nContent-Length: ")
+                .append(end - start + 1);
+        if (range != null) {
+            response.append("\r\nContent-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(info.mLength);
+        }
+        if (info.mContentType != null) {
+            response.append("\r\nContent-Type: ").append(info.mContentType);
+        }
+        response.append("\r\n\r\n");
+        writeToClient(out, response.toString().getBytes("ISO-8859-1"), 0, response.length());
+        // Empty media has no segments; a length of 0 would otherwise be taken as unknown and
+        // fetched again.
+        if (head || info.mLength == 0) {
+            flushToClient(out);
+            return;
+        }
+
+        final int segmentSize = mCache.getSegmentSize();
+        final int lastSegment = (int) (end / segmentSize);
+        int segment = (int) (start / segmentSize);
+        while (segment <= lastSegment) {
+            if (copyCachedSegment(key, segment, start, end, out)) {
+                segment++;
+                continue;
+            }
+            // Fetch the run of missing segments from here in one go.
+            int runEnd = segment;
+            while (runEnd < lastSegment
+                    && runEnd - segment + 1 < MAX_SEGMENTS_PER_FETCH
+                    && mCache.getSegment(key, runEnd + 1) == null) {
+                runEnd++;
+            }
+            fetch(url, key, info, segment, runEnd, start, end, out);
+            segment = runEnd + 1;
+        }
+        flushToClient(out);
+    }
+
+    /**
+     * Copies the part of a cached segment within {@code [start, end]} to the client.
+     *
+     * @return false if the segment isn't cached.
+     */
+    private boolean copyCachedSegment(String key, int segment, long start, long end,
+                                      OutputStream out) throws IOException {
+        final File file = mCache.getSegment(key, segment);
+        if (file == null) {
+            return false;
+        }
+        final InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            // Evicted since the lookup.
+            return false;
+        }
+        try {
+            final long segmentStart = (long) segment * mCache.getSegmentSize();
+            final long from = Math.max(start, segmentStart);
+            final long to = Math.min(end, segmentStart + file.length() - 1);
+            skipFully(in, from - segmentStart);
+            final byte[] buffer = new byte[16 * 1024];
+            long remaining = to - from + 1;
+            while (remaining > 0) {
+                final int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    throw new IOException("Cached segment " + file + " is short");
+                }
+                writeToClient(out, buffer, 0, count);
+                remaining -= count;
+                mCacheBytes.addAndGet(count);
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Fetches segments {@code first} to {@code last} with one range request, caching each as
+     * it completes. Whatever part of them is within {@code [clientStart, clientEnd]} is copied
+     * to {@code out}, if it isn't null.
+     *
+     * @param known what is cached about the media, or null if nothing is yet.
+     * @return the media's length, content type and validator, as reported by the server.
+     */
+    private SegmentCache.Info fetch(String url, String key, @Nullable SegmentCache.Info known,
+                                    int first, int last,
+                                    long clientStart, long clientEnd, OutputStream out)
+            throws IOException {
+        long length = known != null ? known.mLength : 0;
+        String validator = known != null ? known.mValidator : null;
+        final int segmentSize = mCache.getSegmentSize();
+        final long rangeStart = (long) first * segmentSize;
+        long rangeEnd = (long) (last + 1) * segmentSize - 1;
+        if (length > 0) {
+            rangeEnd = Math.min(rangeEnd, length - 1);
+        }
+
+        final byte[] segmentData = new byte[segmentSize];
+        int segment = first;
+        int filled = 0;
+        long position = rangeStart;
+        SegmentCache.Info info = null;
+        for (int attempt = 1; position <= rangeEnd; attempt++) {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setConnectTimeout(mConnectTimeoutMs);
+                connection.setReadTimeout(mReadTimeoutMs);
+                connection.setRequestProperty("Range", "bytes=" + position + "-" + rangeEnd);
+                if (validator != null) {
+                    // Continuing media fetched before: only the same version will do.
+                    connection.setRequestProperty("If-Range", validator);
+                }
+                final int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    final long total = parseTotalLength(connection.getHeaderField("Content-Range"));
+                    if (total < 0) {
+                        throw new IOException("Bad Content-Range from " + url);
+                    }
+                    if (length > 0 && total != length) {
+                        // Without a validator, all there is to go by.
+                        mCache.remove(key);
+                        throw new MediaChangedException(url + " changed length, starting over");
+                    }
+                    info = new SegmentCache.Info(total, connection.getContentType(),
+                                                 getValidator(connection));
+                } else if (code == HttpURLConnection.HTTP_OK && length > 0) {
+                    // The whole media in answer to a range: with If-Range, it's a new version
+                    // of the media; without, the server dropped range support.
+                    mCache.remove(key);
+                    throw new MediaChangedException(url + " changed, starting over");
+                } else if (code == HttpURLConnection.HTTP_OK && position == 0) {
+                    // No range support; fine as long as we want the start anyway.
+                    info = new SegmentCache.Info(connection.getContentLength(),
+                                                 connection.getContentType(),
+                                                 getValidator(connection));
+                } else if (code == 416 && length == 0) {
+                    // Empty media.
+                    info = new SegmentCache.Info(0, connection.getContentType(), null);
+                    mCache.putInfo(key, info);
+                    return info;
+                } else {
+                    throw new IOException("HTTP " + code + " from " + url);
+                }
+                if (info.mLength < 0) {
+                    throw new IOException("No length from " + url);
+                }
+                if (length == 0) {
+                    length = info.mLength;
+                    validator = info.mValidator;
+                    rangeEnd = Math.min(rangeEnd, length - 1);
+                    mCache.putInfo(key, info);
+                }
+
+                final InputStream in = connection.getInputStream();
+                try {
+                    while (position <= rangeEnd) {
+                        final int count = in.read(segmentData, filled,
+                                (int) Math.min(segmentSize - filled, rangeEnd - position + 1));
+                        if (count < 0) {
+                            throw new IOException("Response from " + url + " ended early");
+                        }
+                        final long from = Math.max(position, clientStart);
+                        final long to = Math.min(position + count - 1, clientEnd);
+                        if (out != null && from <= to) {
+                            writeToClient(out, segmentData, filled + (int) (from - position),
+                                          (int) (to - from + 1));
+                        }
+                        mNetworkBytes.addAndGet(count);
+                        filled += count;
+                        position += count;
+                        if (filled == segmentSize || position > rangeEnd) {
+                            mCache.putSegment(key, segment, segmentData, filled);
+                            segment++;
+                            filled = 0;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (ClientGoneException | MediaChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_UPSTREAM_ATTEMPTS) {
+                    throw e;
+                }
+                // Resume from where it stopped; the segment filled so far is kept.
+                Log.w(TAG, "fetch: retrying " + url + " from " + position + ": " + e);
+                mRetryCount.incrementAndGet();
+                sleep(RETRY_DELAY_MS * attempt);
+            } finally {
+                connection.disconnect();
+            }
+        }
+        return info != null ? info : mCache.getInfo(key);
+    }
+
+    /**
+     * @return the response's strong ETag or, without one, its Last-Modified date; null if it
+     * has neither. Weak ETags can't be used with If-Range.
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        final String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Reads the request line and headers, with header names lower cased.
+     *
+     * @return the method and path, or null if the request is malformed.
+     */
+    private static String[] readRequest(InputStream in, HashMap<String, String> headers)
+            throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+            }
+        }
+        return new String[]{parts[0], parts[1]};
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (line.size() >= MAX_HEADER_BYTES) {
+                throw new IOException("Request header too long");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    /**
+     * @return the first and last byte of a {@code Range} header of the form
+     * {@code bytes=first-[last]} or {@code bytes=-suffix}, or null if it can't be satisfied.
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                first = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1
+                        ? length - 1
+                        : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return first <= last && first < length ? new long[]{first, last} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the total length from a {@code Content-Range: bytes first-last/total} header,
+     * or -1.
+     */
+    private static long parseTotalLength(String contentRange) {
+        final int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        final String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        writeToClient(out, response.getBytes("ISO-8859-1"), 0, response.length());
+        flushToClient(out);
+    }
+
+    private static void writeToClient(OutputStream out, byte[] data, int offset, int count)
+            throws ClientGoneException {
+        try {
+            out.write(data, offset, count);
+        } catch (IOException e) {
+            throw new ClientGoneException(e);
+        }
+    }
+
+    private static void flushToClient(OutputStream out) throws ClientGoneException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new ClientGoneException(e);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Failed to skip " + count + " bytes");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // shutdown() interrupts connections it abandons.
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -29,62 +29,184 @@ import com.example.android.mediasession.service.PlayerAdapter;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
 import com.example.android.mediasession.ui.MainActivity;
 
+import java.io.IOException;
+
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
  * so that {@link MainActivity} can control music playback.
+ * <p>
+ * Apart from the constructor and the getters, everything here runs on the player thread,
+ * which is also where the {@link MediaPlayer}s are created and deliver their callbacks.
  */
-public final class MediaPlayerAdapter extends PlayerAdapter {
+public class MediaPlayerAdapter extends PlayerAdapter {
+
+    private static final String TAG = MediaPlayerAdapter.class.getSimpleName();
 
     private final Context mContext;
+    private final MediaPlayerPool mMediaPlayerPool;
+    private final PlaybackStateThrottle mStateThrottle;
     private MediaPlayer mMediaPlayer;
+    private boolean mMediaPlayerPrepared;
+    private boolean mPlayWhenPrepared;
+    private int mPrepareGeneration;
+    private float mVolume = 1.0f;
     private String mFilename;
     private PlaybackInfoListener mPlaybackInfoListener;
-    private MediaMetadataCompat mCurrentMedia;
-    private int mState;
+    // Written on the player thread, read from any thread.
+    private volatile MediaMetadataCompat mCurrentMedia;
+    private volatile int mState;
+    private String mErrorMessage;
+    // Set when the media changes, so that the next state goes out even if only the position
+    // differs from the last one.
+    private boolean mMediaChanged;
+
+    // getAvailableActions() only depends on mState.
+    private int mActionsState = -1;
+    private long mActions;
     private boolean mCurrentMediaPlayedToCompletion;
 
-    // Work-around for a MediaPlayer bug related to the behavior of MediaPlayer.seekTo()
-    // while not playing.
-    private int mSeekWhileNotPlaying = -1;
+    // Queue neighbours of the current media, kept warm in mMediaPlayerPool. The next one is
+    // also chained to the current player so it starts without a gap (see
+    // MediaPlayer.setNextMediaPlayer()).
+    private String mPreviousFilename;
+    private String mNextFilename;
+    private MediaMetadataCompat mNextMedia;
+    private MediaPlayer mChainedMediaPlayer;
+    // Whether the current media starts over when it completes, rather than the next one.
+    private boolean mRepeatCurrent;
+
+    // Skip-to-audio latency: from a request for new media until MediaPlayer.start().
+    private long mSkipRequestedAt;
+    private int mSkipCount;
+    private long mTotalSkipLatencyMs;
+    private long mMaxSkipLatencyMs;
+
+    // Seeks on the current player; also supplies the position while one is under way.
+    private final SeekScheduler mSeeks;
 
     public MediaPlayerAdapter(Context context, PlaybackInfoListener listener) {
         super(context);
         mContext = context.getApplicationContext();
-        mPlaybackInfoListener = listener;
+        mPlaybackInfoListener = postToMainThread(listener);
+        mStateThrottle = new PlaybackStateThrottle(
+                getPlayerLooper(),
+                new PlaybackStateThrottle.Sink() {
+                    @Override
+                    public void publish(PlaybackStateCompat state) {
+                        mPlaybackInfoListener.onPlaybackStateChange(state);
+                    }
+                });
+        mSeeks = new SeekScheduler(new SeekScheduler.Seeker() {
+            @Override
+            public void seekTo(int positionMs) {
+                mMediaPlayer.seekTo(positionMs);
+            }
+        });
+        mMediaPlayerPool = new MediaPlayerPool(
+                new MediaPlayerPool.DataSourceOpener() {
+                    @Override
+                    public void open(MediaPlayer mediaPlayer, String filename)
+                            throws IOException {
+                        setDataSource(mediaPlayer, filename);
+                    }
+                },
+                new MediaPlayerPool.OnWarmListener() {
+                    @Override
+                    public void onWarm(String filename) {
+                        if (filename.equals(mNextFilename)) {
+                            chainNextMediaPlayer();
+                        }
+                    }
+                });
     }
 
     /**
-     * Once the {@link MediaPlayer} is released, it can't be used again, and another one has to be
-     * created. In the onStop() method of the {@link MainActivity} the {@link MediaPlayer} is
-     * released. Then in the onStart() of the {@link MainActivity} a new {@link MediaPlayer}
-     * object has to be created. That's why this method is private, and called by load(int) and
-     * not the constructor.
+     * Makes {@code mediaPlayer} the current player. Listeners are (re)attached for a new
+     * generation, so callbacks still queued for whatever was current before are ignored.
      */
-    private void initializeMediaPlayer() {
-        if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mediaPlayer) {
-                    mPlaybackInfoListener.onPlaybackCompleted();
-
-                    // Set the state to "paused" because it most closely matches the state
-                    // in MediaPlayer with regards to available state transitions compared
-                    // to "stop".
-                    // Paused allows: seekTo(), start(), pause(), stop()
-                    // Stop allows: stop()
-                    setNewState(PlaybackStateCompat.STATE_PAUSED);
+    private void setCurrentMediaPlayer(MediaPlayer mediaPlayer, boolean prepared) {
+        mMediaPlayer = mediaPlayer;
+        mMediaPlayerPrepared = prepared;
+        mSeeks.reset(prepared);
+
+        final int generation = ++mPrepareGeneration;
+        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                if (mp != mMediaPlayer || generation != mPrepareGeneration) {
+                    return;
                 }
-            });
-        }
+                onMediaPlayerPrepared();
+            }
+        });
+        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (mp != mMediaPlayer || generation != mPrepareGeneration) {
+                    // An error from a player we no longer care about.
+                    return true;
+                }
+                onMediaPlayerError("MediaPlayer error " + what + " (" + extra + ")");
+                return true;
+            }
+        });
+        mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mp) {
+                if (mp != mMediaPlayer || generation != mPrepareGeneration) {
+                    return;
+                }
+                if (mSeeks.onSeekComplete()) {
+                    // Report the position now that the player has settled on it.
+                    setNewState(mState);
+                }
+            }
+        });
+        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                if (mp != mMediaPlayer || generation != mPrepareGeneration) {
+                    return;
+                }
+                mPlaybackInfoListener.onPlaybackCompleted();
+
+                if (mChainedMediaPlayer != null) {
+                    // MediaPlayer has already started the next player, so all that's left is
+                    // to catch up with it.
+                    advanceToNextMedia();
+                    return;
+                }
+                if (mRepeatCurrent) {
+                    // A player can't be chained to itself, but once completed it simply starts
+                    // over.
+                    mPlaybackInfoListener.onNextMediaStarted(mCurrentMedia);
+                    mMediaChanged = true;
+                    mMediaPlayer.start();
+                    setNewState(PlaybackStateCompat.STATE_PLAYING);
+                    return;
+                }
+
+                // Set the state to "paused" because it most closely matches the state
+                // in MediaPlayer with regards to available state transitions compared
+                // to "stop".
+                // Paused allows: seekTo(), start(), pause(), stop()
+                // Stop allows: stop()
+                setNewState(PlaybackStateCompat.STATE_PAUSED);
+            }
+        });
     }
 
     // Implements PlaybackControl.
     @Override
-    public void playFromMedia(MediaMetadataCompat metadata) {
+    protected void onPlayFromMedia(MediaMetadataCompat metadata) {
         mCurrentMedia = metadata;
-        final String mediaId = metadata.getDescription().getMediaId();
-        playFile(MusicLibrary.getMusicFilename(mediaId));
+        final String filename = getMusicFilename(metadata);
+        if (filename == null) {
+            // The track isn't in the catalog (any more), e.g. because its file was deleted.
+            onMediaPlayerError("No such track");
+            return;
+        }
+        playFile(filename);
     }
 
     @Override
@@ -92,6 +214,96 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         return mCurrentMedia;
     }
 
+    @Override
+    protected void onSetQueueNeighbours(MediaMetadataCompat previous,
+                                        MediaMetadataCompat next,
+                                        boolean repeatCurrent) {
+        final String previousFilename = getMusicFilename(previous);
+        final String nextFilename = repeatCurrent ? null : getMusicFilename(next);
+        mRepeatCurrent = repeatCurrent;
+
+        if (nextFilename == null || !nextFilename.equals(mNextFilename)) {
+            unchainNextMediaPlayer();
+        }
+        mPreviousFilename = previousFilename;
+        mNextFilename = nextFilename;
+        mNextMedia = nextFilename != null ? next : null;
+
+        mMediaPlayerPool.retainOnly(previousFilename, nextFilename);
+        // Paused or stopped, players would be held for skips that may never come; they're
+        // warmed once playback starts.
+        if (mState == PlaybackStateCompat.STATE_PLAYING
+                || mState == PlaybackStateCompat.STATE_BUFFERING
+                || mState == PlaybackStateCompat.STATE_CONNECTING) {
+            warmQueueNeighbours();
+        }
+    }
+
+    private void warmQueueNeighbours() {
+        // The next item goes first: it's needed for gapless playback as well as for skips. It
+        // gets its own player even if it's the current track again, as the current player
+        // isn't in the pool.
+        if (mNextFilename != null) {
+            mMediaPlayerPool.warm(mNextFilename);
+        }
+        if (mPreviousFilename != null && !mPreviousFilename.equals(mFilename)) {
+            mMediaPlayerPool.warm(mPreviousFilename);
+        }
+        chainNextMediaPlayer();
+    }
+
+    private static String getMusicFilename(MediaMetadataCompat metadata) {
+        return metadata == null
+                ? null
+                : MusicLibrary.getMusicFilename(metadata.getDescription().getMediaId());
+    }
+
+    /**
+     * Hands the prepared next player to the current one, so MediaPlayer starts it the moment
+     * the current media completes.
+     */
+    private void chainNextMediaPlayer() {
+        if (!mMediaPlayerPrepared || mChainedMediaPlayer != null) {
+            return;
+        }
+        final MediaPlayer next = mMediaPlayerPool.peek(mNextFilename);
+        if (next != null && next != mMediaPlayer) {
+            mMediaPlayer.setNextMediaPlayer(next);
+            mChainedMediaPlayer = next;
+        }
+    }
+
+    private void unchainNextMediaPlayer() {
+        if (mChainedMediaPlayer != null) {
+            if (mMediaPlayerPrepared) {
+                mMediaPlayer.setNextMediaPlayer(null);
+            }
+            mChainedMediaPlayer = null;
+        }
+    }
+
+    private void advanceToNextMedia() {
+        final MediaPlayer completed = mMediaPlayer;
+        final String completedFilename = mFilename;
+        final MediaPlayer next = mMediaPlayerPool.take(mNextFilename);
+        mChainedMediaPlayer = null;
+
+        setCurrentMediaPlayer(next, true);
+        mFilename = mNextFilename;
+        mCurrentMedia = mNextMedia;
+        mNextFilename = null;
+        mNextMedia = null;
+
+        // The completed player becomes the previous queue item; rewound, it's as good as
+        // freshly prepared.
+        completed.seekTo(0);
+        mMediaPlayerPool.put(completedFilename, completed);
+
+        mPlaybackInfoListener.onNextMediaStarted(mCurrentMedia);
+        mMediaChanged = true;
+        setNewState(PlaybackStateCompat.STATE_PLAYING);
+    }
+
     private void playFile(String filename) {
         boolean mediaChanged = (mFilename == null || !filename.equals(mFilename));
         if (mCurrentMediaPlayedToCompletion) {
@@ -102,34 +314,102 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         }
         if (!mediaChanged) {
             if (!isPlaying()) {
-                play();
+                playNow();
             }
             return;
-        } else {
-            release();
         }
 
+        mSkipRequestedAt = SystemClock.elapsedRealtime();
+        mMediaChanged = true;
+        mPlayWhenPrepared = true;
+        releaseCurrentMediaPlayer(true);
         mFilename = filename;
 
-        initializeMediaPlayer();
+        final MediaPlayer warm = mMediaPlayerPool.take(filename);
+        if (warm != null) {
+            // A queue neighbour that is already prepared: skipping is just a swap and start().
+            setCurrentMediaPlayer(warm, true);
+            onMediaPlayerPrepared();
+            return;
+        }
 
+        setCurrentMediaPlayer(mMediaPlayerPool.obtain(), false);
         try {
-            AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
-            mMediaPlayer.setDataSource(
-                    assetFileDescriptor.getFileDescriptor(),
-                    assetFileDescriptor.getStartOffset(),
-                    assetFileDescriptor.getLength());
+            setDataSource(mMediaPlayer, mFilename);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to open file: " + mFilename, e);
+            Log.e(TAG, "playFile: failed to open file: " + mFilename, e);
+            onMediaPlayerError("Failed to open file: " + mFilename);
+            return;
         }
 
+        setNewState(isRemote(mFilename)
+                            ? PlaybackStateCompat.STATE_CONNECTING
+                            : PlaybackStateCompat.STATE_BUFFERING);
+        mMediaPlayer.prepareAsync();
+    }
+
+    private void onMediaPlayerPrepared() {
+        mMediaPlayerPrepared = true;
+        mMediaPlayer.setVolume(mVolume, mVolume);
+        mSeeks.resume();
+        chainNextMediaPlayer();
+
+        if (mPlayWhenPrepared) {
+            playNow();
+        }
+        if (mState != PlaybackStateCompat.STATE_PLAYING) {
+            // Either paused while preparing, or audio focus was denied.
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+        }
+    }
+
+    private void onMediaPlayerError(String message) {
+        // The player is in its error state and can't be recovered; drop it so that the next
+        // request for the same media starts from scratch.
+        releaseCurrentMediaPlayer(false);
+        mFilename = null;
+        mErrorMessage = message;
+        setNewState(PlaybackStateCompat.STATE_ERROR);
+        mErrorMessage = null;
+    }
+
+    static boolean isRemote(String filename) {
+        return filename.startsWith("http://") || filename.startsWith("https://");
+    }
+
+    /**
+     * Points {@code mediaPlayer} at {@code filename}, the music filename of a catalog track.
+     * Called on the player thread, for the current media as well as for queue neighbours.
+     */
+    protected void setDataSource(MediaPlayer mediaPlayer, String filename) throws IOException {
+        if (filename.startsWith("/") || isRemote(filename)) {
+            // Scanned tracks are referenced by absolute path; bundled ones are assets.
+            mediaPlayer.setDataSource(filename);
+            return;
+        }
+        final AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(filename);
         try {
-            mMediaPlayer.prepare();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to open file: " + mFilename, e);
+            mediaPlayer.setDataSource(
+                    assetFileDescriptor.getFileDescriptor(),
+                    assetFileDescriptor.getStartOffset(),
+                    assetFileDescriptor.getLength());
+        } finally {
+            assetFileDescriptor.close();
         }
+    }
 
-        play();
+    /**
+     * @return fraction of media changes that found a prepared player in the pool.
+     */
+    public float getPoolHitRate() {
+        return mMediaPlayerPool.getHitRate();
+    }
+
+    /**
+     * @return average time from a request for new media until its audio started.
+     */
+    public long getAverageSkipLatencyMs() {
+        return mSkipCount == 0 ? 0 : mTotalSkipLatencyMs / mSkipCount;
     }
 
     @Override
@@ -137,40 +417,112 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         // Regardless of whether or not the MediaPlayer has been created / started, the state must
         // be updated, so that MediaNotificationManager can take down the notification.
         setNewState(PlaybackStateCompat.STATE_STOPPED);
-        release();
+        Log.d(TAG, "onStop: " + mMediaPlayerPool + ", " + mStateThrottle + ", " + mSeeks
+                + ", skips=" + mSkipCount
+                + ", avgSkipLatencyMs=" + getAverageSkipLatencyMs()
+                + ", maxSkipLatencyMs=" + mMaxSkipLatencyMs);
+        releasePlayers();
     }
 
-    private void release() {
+    private void releasePlayers() {
+        unchainNextMediaPlayer();
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
         }
+        mMediaPlayerPrepared = false;
+        mMediaPlayerPool.release();
+        mStateThrottle.reset();
+        mPreviousFilename = null;
+        mNextFilename = null;
+        mNextMedia = null;
+        mRepeatCurrent = false;
+    }
+
+    /**
+     * Gives up the current player. If it is still usable, it's rewound and kept warm in the
+     * pool, since it's likely to become a queue neighbour of whatever plays next.
+     */
+    private void releaseCurrentMediaPlayer(boolean keepWarm) {
+        unchainNextMediaPlayer();
+        if (mMediaPlayer != null) {
+            if (keepWarm && mMediaPlayerPrepared && mFilename != null) {
+                if (mMediaPlayer.isPlaying()) {
+                    mMediaPlayer.pause();
+                }
+                mMediaPlayer.seekTo(0);
+                mMediaPlayerPool.put(mFilename, mMediaPlayer);
+            } else {
+                mMediaPlayerPool.recycle(mMediaPlayer);
+            }
+            mMediaPlayer = null;
+        }
+        mMediaPlayerPrepared = false;
+        mSeeks.reset(false);
     }
 
     @Override
     public boolean isPlaying() {
-        return mMediaPlayer != null && mMediaPlayer.isPlaying();
+        return mState == PlaybackStateCompat.STATE_PLAYING;
     }
 
     @Override
     protected void onPlay() {
+        if (mMediaPlayer != null && !mMediaPlayerPrepared) {
+            // Still preparing; playback starts as soon as it's done.
+            mPlayWhenPrepared = true;
+            return;
+        }
         if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
             mMediaPlayer.start();
+            if (mSkipRequestedAt > 0) {
+                final long latency = SystemClock.elapsedRealtime() - mSkipRequestedAt;
+                mSkipRequestedAt = 0;
+                mSkipCount++;
+                mTotalSkipLatencyMs += latency;
+                mMaxSkipLatencyMs = Math.max(mMaxSkipLatencyMs, latency);
+                Log.d(TAG, "onPlay: audio started " + latency + "ms after request");
+            }
             setNewState(PlaybackStateCompat.STATE_PLAYING);
         }
     }
 
     @Override
     protected void onPause() {
+        if (mMediaPlayer != null && !mMediaPlayerPrepared) {
+            mPlayWhenPrepared = false;
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+            return;
+        }
         if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
             mMediaPlayer.pause();
             setNewState(PlaybackStateCompat.STATE_PAUSED);
         }
     }
 
+    /**
+     * @return playback state updates that reached the session.
+     */
+    public int getSentStateCount() {
+        return mStateThrottle.getSentCount();
+    }
+
+    /**
+     * @return playback state updates that were dropped as duplicates or coalesced.
+     */
+    public int getSuppressedStateCount() {
+        return mStateThrottle.getSuppressedCount();
+    }
+
     // This is the main reducer for the player state machine.
     private void setNewState(@PlaybackStateCompat.State int newPlayerState) {
+        final boolean started = newPlayerState == PlaybackStateCompat.STATE_PLAYING
+                && mState != PlaybackStateCompat.STATE_PLAYING;
         mState = newPlayerState;
+        if (started) {
+            // E.g. resumed after a pause, with the neighbours set meanwhile.
+            warmQueueNeighbours();
+        }
 
         // Whether playback goes to completion, or whether it is stopped, the
         // mCurrentMediaPlayedToCompletion is set to true.
@@ -178,16 +530,18 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
             mCurrentMediaPlayedToCompletion = true;
         }
 
-        // Work around for MediaPlayer.getCurrentPosition() when it changes while not playing.
+        // While a seek is under way, or after one while not playing, the player's own
+        // position can't be trusted yet.
         final long reportPosition;
-        if (mSeekWhileNotPlaying >= 0) {
-            reportPosition = mSeekWhileNotPlaying;
+        final int seekPosition = mSeeks.getPosition();
+        if (seekPosition >= 0) {
+            reportPosition = seekPosition;
 
             if (mState == PlaybackStateCompat.STATE_PLAYING) {
-                mSeekWhileNotPlaying = -1;
+                mSeeks.onPlaybackStarted();
             }
         } else {
-            reportPosition = mMediaPlayer == null ? 0 : mMediaPlayer.getCurrentPosition();
+            reportPosition = mMediaPlayerPrepared ? mMediaPlayer.getCurrentPosition() : 0;
         }
 
         final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder();
@@ -196,7 +550,13 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                               reportPosition,
                               1.0f,
                               SystemClock.elapsedRealtime());
-        mPlaybackInfoListener.onPlaybackStateChange(stateBuilder.build());
+        if (mState == PlaybackStateCompat.STATE_ERROR) {
+            stateBuilder.setErrorMessage(PlaybackStateCompat.ERROR_CODE_APP_ERROR, mErrorMessage);
+        }
+        // Seeks report the current state again; the throttle keeps that from flooding
+        // controllers while state transitions still go out right away.
+        mStateThrottle.submit(stateBuilder.build(), mMediaChanged);
+        mMediaChanged = false;
     }
 
     /**
@@ -207,10 +567,18 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
      */
     @PlaybackStateCompat.Actions
     private long getAvailableActions() {
+        if (mActionsState == mState) {
+            return mActions;
+        }
         long actions = PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
+                       | PlaybackStateCompat.ACTION_PREPARE_FROM_MEDIA_ID
                        | PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH
+                       | PlaybackStateCompat.ACTION_PREPARE_FROM_SEARCH
                        | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
-                       | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS;
+                       | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+                       | PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM
+                       | PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE
+                       | PlaybackStateCompat.ACTION_SET_REPEAT_MODE;
         switch (mState) {
             case PlaybackStateCompat.STATE_STOPPED:
                 actions |= PlaybackStateCompat.ACTION_PLAY
@@ -231,26 +599,25 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                            | PlaybackStateCompat.ACTION_STOP
                            | PlaybackStateCompat.ACTION_PAUSE;
         }
+        mActionsState = mState;
+        mActions = actions;
         return actions;
     }
 
     @Override
-    public void seekTo(long position) {
-        if (mMediaPlayer != null) {
-            if (!mMediaPlayer.isPlaying()) {
-                mSeekWhileNotPlaying = (int) position;
-            }
-            mMediaPlayer.seekTo((int) position);
-
-            // Set the state (to the current state) because the position changed and should
-            // be reported to clients.
-            setNewState(mState);
+    protected void onSeekTo(long position) {
+        if (mMediaPlayer == null) {
+            return;
         }
+        // Not reported here: the state goes out once the seek completes, and further seeks
+        // made meanwhile are coalesced.
+        mSeeks.seekTo((int) position);
     }
 
     @Override
-    public void setVolume(float volume) {
-        if (mMediaPlayer != null) {
+    protected void onSetVolume(float volume) {
+        mVolume = volume;
+        if (mMediaPlayerPrepared) {
             mMediaPlayer.setVolume(volume, volume);
         }
     }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Small pool of {@link MediaPlayer}s used by {@link MediaPlayerAdapter}.
+ * <p>
+ * "Warm" players are prepared (or preparing) for a specific file, typically the queue items
+ * around the one that is playing, so that skipping to them only needs a {@code start()}.
+ * Players that are no longer needed are {@code reset()} and kept idle for reuse instead of
+ * being released, which avoids re-creating the native player on every skip.
+ * <p>
+ * Must only be used from the player thread, which is also where its players are created and
+ * deliver their callbacks.
+ */
+final class MediaPlayerPool {
+
+    private static final String TAG = MediaPlayerPool.class.getSimpleName();
+
+    private static final int MAX_IDLE_PLAYERS = 2;
+
+    /**
+     * Sets the data source of a player for a given file.
+     */
+    interface DataSourceOpener {
+        void open(MediaPlayer mediaPlayer, String filename) throws IOException;
+    }
+
+    /**
+     * Notified when a warm player has finished preparing.
+     */
+    interface OnWarmListener {
+        void onWarm(String filename);
+    }
+
+    private final DataSourceOpener mOpener;
+    private final OnWarmListener mOnWarmListener;
+    private final HashMap<String, WarmPlayer> mWarmPlayers = new HashMap<>();
+    private final ArrayDeque<MediaPlayer> mIdlePlayers = new ArrayDeque<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mCreateCount;
+    private int mReuseCount;
+
+    MediaPlayerPool(DataSourceOpener opener, OnWarmListener onWarmListener) {
+        mOpener = opener;
+        mOnWarmListener = onWarmListener;
+    }
+
+    /**
+     * Starts preparing a player for {@code filename}, unless one is already warm.
+     */
+    void warm(final String filename) {
+        if (filename == null || mWarmPlayers.containsKey(filename)) {
+            return;
+        }
+
+        final WarmPlayer warmPlayer = new WarmPlayer(obtain());
+        mWarmPlayers.put(filename, warmPlayer);
+        warmPlayer.mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mediaPlayer) {
+                if (mWarmPlayers.get(filename) != warmPlayer) {
+                    return;
+                }
+                warmPlayer.mPrepared = true;
+                mOnWarmListener.onWarm(filename);
+            }
+        });
+        warmPlayer.mMediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                if (mWarmPlayers.get(filename) == warmPlayer) {
+                    Log.w(TAG, "warm: error " + what + " (" + extra + ") for " + filename);
+                    mWarmPlayers.remove(filename);
+                    recycle(warmPlayer.mMediaPlayer);
+                }
+                return true;
+            }
+        });
+
+        try {
+            mOpener.open(warmPlayer.mMediaPlayer, filename);
+            warmPlayer.mMediaPlayer.prepareAsync();
+        } catch (Exception e) {
+            // Not fatal: the file is prepared on demand instead.
+            Log.w(TAG, "warm: failed to open file: " + filename, e);
+            mWarmPlayers.remove(filename);
+            recycle(warmPlayer.mMediaPlayer);
+        }
+    }
+
+    /**
+     * Hands a player that is already prepared for {@code filename} back to the pool, e.g. the
+     * one that was playing before a skip, so it stays warm.
+     */
+    void put(String filename, MediaPlayer preparedPlayer) {
+        final WarmPlayer existing = mWarmPlayers.remove(filename);
+        if (existing != null) {
+            recycle(existing.mMediaPlayer);
+        }
+        final WarmPlayer warmPlayer = new WarmPlayer(preparedPlayer);
+        warmPlayer.mPrepared = true;
+        preparedPlayer.setOnPreparedListener(null);
+        preparedPlayer.setOnErrorListener(null);
+        mWarmPlayers.put(filename, warmPlayer);
+    }
+
+    /**
+     * @return the prepared player for {@code filename}, or null if there isn't one yet. The
+     * player stays in the pool.
+     */
+    MediaPlayer peek(String filename) {
+        final WarmPlayer warmPlayer = filename != null ? mWarmPlayers.get(filename) : null;
+        return warmPlayer != null && warmPlayer.mPrepared ? warmPlayer.mMediaPlayer : null;
+    }
+
+    /**
+     * Removes and returns the prepared player for {@code filename}, or returns null (a miss) if
+     * it isn't prepared. The caller owns the returned player.
+     */
+    MediaPlayer take(String filename) {
+        final WarmPlayer warmPlayer = mWarmPlayers.remove(filename);
+        if (warmPlayer != null && warmPlayer.mPrepared) {
+            mHitCount++;
+            return warmPlayer.mMediaPlayer;
+        }
+        mMissCount++;
+        if (warmPlayer != null) {
+            // Still preparing; the caller will prepare it from scratch with its own listeners.
+            recycle(warmPlayer.mMediaPlayer);
+        }
+        return null;
+    }
+
+    /**
+     * Recycles every warm player except those for the given files.
+     */
+    void retainOnly(String filename, String otherFilename) {
+        final Iterator<Map.Entry<String, WarmPlayer>> iterator =
+                mWarmPlayers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, WarmPlayer> entry = iterator.next();
+            if (!entry.getKey().equals(filename) && !entry.getKey().equals(otherFilename)) {
+                iterator.remove();
+                recycle(entry.getValue().mMediaPlayer);
+            }
+        }
+    }
+
+    /**
+     * @return an idle player, reusing one that was reset if possible.
+     */
+    MediaPlayer obtain() {
+        final MediaPlayer idle = mIdlePlayers.poll();
+        if (idle != null) {
+            mReuseCount++;
+            return idle;
+        }
+        mCreateCount++;
+        return new MediaPlayer();
+    }
+
+    /**
+     * Returns a player the caller no longer needs. {@code reset()} also recovers players that
+     * are in the error state.
+     */
+    void recycle(MediaPlayer mediaPlayer) {
+        mediaPlayer.reset();
+        mediaPlayer.setOnPreparedListener(null);
+        mediaPlayer.setOnErrorListener(null);
+        mediaPlayer.setOnCompletionListener(null);
+        mediaPlayer.setOnSeekCompleteListener(null);
+        if (mIdlePlayers.size() < MAX_IDLE_PLAYERS) {
+            mIdlePlayers.add(mediaPlayer);
+        } else {
+            mediaPlayer.release();
+        }
+    }
+
+    void release() {
+        for (WarmPlayer warmPlayer : mWarmPlayers.values()) {
+            warmPlayer.mMediaPlayer.release();
+        }
+        mWarmPlayers.clear();
+        for (MediaPlayer idle : mIdlePlayers) {
+            idle.release();
+        }
+        mIdlePlayers.clear();
+    }
+
+    /**
+     * @return fraction of {@link #take(String)} calls that found a prepared player.
+     */
+    float getHitRate() {
+        final int total = mHitCount + mMissCount;
+        return total == 0 ? 0f : (float) mHitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "MediaPlayerPool{hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", hitRate=" + getHitRate()
+                + ", created=" + mCreateCount
+                + ", reused=" + mReuseCount
+                + ", warm=" + mWarmPlayers.keySet()
+                + ", idle=" + mIdlePlayers.size()
+                + "}";
+    }
+
+    private static final class WarmPlayer {
+        private final MediaPlayer mMediaPlayer;
+        private boolean mPrepared;
+
+        private WarmPlayer(MediaPlayer mediaPlayer) {
+            mMediaPlayer = mediaPlayer;
+        }
+    }
+}
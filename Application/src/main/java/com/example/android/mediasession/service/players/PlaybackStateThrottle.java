@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+/**
+ * Filters the {@link PlaybackStateCompat}s reported by {@link MediaPlayerAdapter} before they
+ * go out to the session, where every update is an IPC to every controller.
+ * <p>
+ * <ul>
+ * <li>Updates that controllers can't tell apart from the last one sent (same state, actions
+ * and error, and a position that matches the last one extrapolated to now) are dropped.</li>
+ * <li>Updates that only move the position, e.g. while scrubbing, go out at most once per
+ * {@link #MIN_POSITION_INTERVAL_MS}. The latest one is always sent at the end of the interval,
+ * so the final position is never lost.</li>
+ * <li>Everything else, in particular state transitions, goes out immediately and replaces any
+ * pending position update.</li>
+ * </ul>
+ * Must be used from the thread of the looper it's created with.
+ */
+final class PlaybackStateThrottle {
+
+    static final long MIN_POSITION_INTERVAL_MS = 250;
+
+    // Positions within this distance of the extrapolated one count as unchanged.
+    private static final long POSITION_TOLERANCE_MS = 50;
+
+    /**
+     * Receives the updates that make it through.
+     */
+    interface Sink {
+        void publish(PlaybackStateCompat state);
+    }
+
+    private final Sink mSink;
+    private final Handler mHandler;
+    private final Runnable mPublishPendingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final PlaybackStateCompat pending = mPending;
+            mPending = null;
+            if (pending != null) {
+                send(pending);
+            }
+        }
+    };
+
+    private PlaybackStateCompat mLastSent;
+    private long mLastSentAt;
+    private PlaybackStateCompat mPending;
+
+    private int mSentCount;
+    private int mDuplicateCount;
+    private int mCoalescedCount;
+
+    PlaybackStateThrottle(Looper looper, Sink sink) {
+        mHandler = new Handler(looper);
+        mSink = sink;
+    }
+
+    /**
+     * Publishes {@code state} now, later, or not at all, as described above.
+     *
+     * @param immediate sends the update right away even if only the position changed, e.g.
+     *                  because the media item changed underneath an unchanged state.
+     */
+    void submit(PlaybackStateCompat state, boolean immediate) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastSent == null || immediate || !sameExceptPosition(mLastSent, state)) {
+            send(state);
+            return;
+        }
+
+        if (samePosition(mLastSent, state, now)) {
+            mDuplicateCount++;
+            if (mPending != null) {
+                // The position went back to what was last sent; the pending update is stale.
+                mHandler.removeCallbacks(mPublishPendingRunnable);
+                mPending = null;
+                mCoalescedCount++;
+            }
+            return;
+        }
+
+        final long wait = mLastSentAt + MIN_POSITION_INTERVAL_MS - now;
+        if (wait <= 0 && mPending == null) {
+            send(state);
+            return;
+        }
+        if (mPending != null) {
+            mCoalescedCount++;
+        } else {
+            mHandler.postDelayed(mPublishPendingRunnable, Math.max(0, wait));
+        }
+        mPending = state;
+    }
+
+    /**
+     * Drops any pending update and forgets what was last sent, so the next update goes out
+     * unconditionally.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mPublishPendingRunnable);
+        mPending = null;
+        mLastSent = null;
+    }
+
+    int getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return updates that were never sent, either because they were duplicates or because a
+     * later position update replaced them.
+     */
+    int getSuppressedCount() {
+        return mDuplicateCount + mCoalescedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackStateThrottle{sent=" + mSentCount
+                + ", duplicates=" + mDuplicateCount
+                + ", coalesced=" + mCoalescedCount
+                + "}";
+    }
+
+    private void send(PlaybackStateCompat state) {
+        if (mPending != null) {
+            mHandler.removeCallbacks(mPublishPendingRunnable);
+            mPending = null;
+            mCoalescedCount++;
+        }
+        mLastSent = state;
+        mLastSentAt = SystemClock.elapsedRealtime();
+        mSentCount++;
+        mSink.publish(state);
+    }
+
+    private static boolean sameExceptPosition(PlaybackStateCompat a, PlaybackStateCompat b) {
+        return a.getState() == b.getState()
+                && a.getActions() == b.getActions()
+                && a.getPlaybackSpeed() == b.getPlaybackSpeed()
+                && a.getErrorCode() == b.getErrorCode()
+                && TextUtils.equals(a.getErrorMessage(), b.getErrorMessage());
+    }
+
+    /**
+     * Compares positions the way a controller sees them: while playing, {@code last} keeps
+     * advancing from its update time at its playback speed.
+     */
+    private static boolean samePosition(PlaybackStateCompat last,
+                                        PlaybackStateCompat state,
+                                        long now) {
+        return Math.abs(projectedPosition(last, now) - projectedPosition(state, now))
+                <= POSITION_TOLERANCE_MS;
+    }
+
+    private static long projectedPosition(PlaybackStateCompat state, long now) {
+        if (state.getState() != PlaybackStateCompat.STATE_PLAYING) {
+            return state.getPosition();
+        }
+        final long elapsed = now - state.getLastPositionUpdateTime();
+        return state.getPosition() + (long) (elapsed * state.getPlaybackSpeed());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+/**
+ * Keeps at most one {@code MediaPlayer.seekTo()} in flight for {@link MediaPlayerAdapter}.
+ * <p>
+ * While a seek is in flight, further seeks wait in a single slot where each one replaces the
+ * last, so a burst of seeks (a controller scrubbing, say) costs at most two native seeks: the
+ * first, and whichever came last. Seeks made before the player is prepared wait in the same
+ * slot until {@link #resume()}.
+ * <p>
+ * Until the player catches up, {@link #getPosition()} reports where it is headed. Because
+ * {@code MediaPlayer.getCurrentPosition()} may keep returning the old position after a seek
+ * while not playing, the target of the last seek also stands until playback starts.
+ * <p>
+ * Must be used from the player thread.
+ */
+final class SeekScheduler {
+
+    /**
+     * Issues the native seek.
+     */
+    interface Seeker {
+        void seekTo(int positionMs);
+    }
+
+    private static final int NONE = -1;
+
+    private final Seeker mSeeker;
+    private boolean mReady;
+    private int mInFlight = NONE;
+    private int mPending = NONE;
+    private int mSettled = NONE;
+
+    private int mRequestCount;
+    private int mIssuedCount;
+
+    SeekScheduler(Seeker seeker) {
+        mSeeker = seeker;
+    }
+
+    /**
+     * Seeks to {@code positionMs} now if nothing is in flight, or once the seek in flight
+     * completes, unless a later call replaces it.
+     */
+    void seekTo(int positionMs) {
+        mRequestCount++;
+        mSettled = NONE;
+        if (!mReady || mInFlight != NONE) {
+            mPending = positionMs;
+            return;
+        }
+        issue(positionMs);
+    }
+
+    /**
+     * Call from {@code OnSeekCompleteListener}.
+     *
+     * @return whether the player has settled, i.e. there is no further seek to issue, and the
+     * new position should be reported.
+     */
+    boolean onSeekComplete() {
+        if (mInFlight == NONE) {
+            // A seek not issued through here, such as a rewind before the player was current.
+            return false;
+        }
+        if (mPending != NONE) {
+            final int next = mPending;
+            mPending = NONE;
+            issue(next);
+            return false;
+        }
+        mSettled = mInFlight;
+        mInFlight = NONE;
+        return true;
+    }
+
+    /**
+     * Marks the player as prepared, issuing any seek made while it wasn't.
+     */
+    void resume() {
+        mReady = true;
+        if (mInFlight == NONE && mPending != NONE) {
+            final int next = mPending;
+            mPending = NONE;
+            issue(next);
+        }
+    }
+
+    /**
+     * Call when playback starts: from then on the player's own position is accurate again.
+     */
+    void onPlaybackStarted() {
+        mSettled = NONE;
+    }
+
+    /**
+     * Forgets everything, for a new player. {@code ready} is whether it is already prepared.
+     */
+    void reset(boolean ready) {
+        mReady = ready;
+        mInFlight = NONE;
+        mPending = NONE;
+        mSettled = NONE;
+    }
+
+    /**
+     * @return the position the player is at or headed to, or -1 if the player's own position
+     * can be trusted.
+     */
+    int getPosition() {
+        if (mPending != NONE) {
+            return mPending;
+        }
+        return mInFlight != NONE ? mInFlight : mSettled;
+    }
+
+    @Override
+    public String toString() {
+        return "SeekScheduler{requests=" + mRequestCount
+                + ", issued=" + mIssuedCount
+                + ", coalesced=" + (mRequestCount - mIssuedCount - (mPending != NONE ? 1 : 0))
+                + "}";
+    }
+
+    private void issue(int positionMs) {
+        mInFlight = positionMs;
+        mIssuedCount++;
+        mSeeker.seekTo(positionMs);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk LRU cache of remote media for {@link CachingProxy}, split into fixed-size segments
+ * so that any byte range can be served from whatever parts have been fetched before.
+ * <p>
+ * Each segment is a file named after the media URL's hash and the segment's index, next to a
+ * small file with the media's length, content type and validator. All files count towards a byte
+ * budget; once it's exceeded, the least recently used files are deleted. The access order
+ * survives restarts through the files' modification times.
+ * <p>
+ * This class is thread safe.
+ */
+final class SegmentCache {
+
+    private static final String TAG = SegmentCache.class.getSimpleName();
+
+    private static final String INFO_SUFFIX = ".info";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * What is known about a piece of media as a whole.
+     */
+    static final class Info {
+        final long mLength;
+        @Nullable
+        final String mContentType;
+        // The strong ETag or, without one, the Last-Modified date the segments were fetched
+        // with, for If-Range; null if the server sent neither.
+        @Nullable
+        final String mValidator;
+
+        Info(long length, @Nullable String contentType, @Nullable String validator) {
+            mLength = length;
+            mContentType = contentType;
+            mValidator = validator;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final int mSegmentSize;
+
+    // Guarded by "this". File name -> size, least recently used first.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    private boolean mLoaded;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    SegmentCache(@NonNull File directory, long maxBytes, int segmentSize) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mSegmentSize = segmentSize;
+    }
+
+    int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * @return the key under which {@code url} is cached.
+     */
+    static String getKey(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            final StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached segment, or null. The file may be evicted at any time, so it must
+     * be opened right away, and a failure to open it treated as a miss.
+     */
+    @Nullable
+    File getSegment(String key, int index) {
+        final String name = key + '_' + index;
+        synchronized (this) {
+            load();
+            if (mEntries.get(name) == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        final File file = new File(mDirectory, name);
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Caches the first {@code length} bytes of {@code data} as segment {@code index}.
+     */
+    void putSegment(String key, int index, byte[] data, int length) {
+        put(key + '_' + index, data, length);
+    }
+
+    @Nullable
+    Info getInfo(String key) {
+        final String name = key + INFO_SUFFIX;
+        synchronized (this) {
+            load();
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new FileInputStream(new File(mDirectory, name)));
+            try {
+                final long length = in.readLong();
+                final String contentType = in.readBoolean() ? in.readUTF() : null;
+                final String validator = in.readBoolean() ? in.readUTF() : null;
+                return new Info(length, contentType, validator);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Evicted meanwhile; it's fetched again.
+            return null;
+        }
+    }
+
+    void putInfo(String key, Info info) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(info.mLength);
+            out.writeBoolean(info.mContentType != null);
+            if (info.mContentType != null) {
+                out.writeUTF(info.mContentType);
+            }
+            out.writeBoolean(info.mValidator != null);
+            if (info.mValidator != null) {
+                out.writeUTF(info.mValidator);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        put(key + INFO_SUFFIX, bytes.toByteArray(), bytes.size());
+    }
+
+    /**
+     * Drops the info and every segment cached under {@code key}, e.g. because the media has
+     * changed upstream.
+     */
+    synchronized void remove(String key) {
+        load();
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            // Keys are hashes of the same length, so this is only this key's files.
+            if (entry.getKey().startsWith(key)) {
+                new File(mDirectory, entry.getKey()).delete();
+                mTotalBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentCache{hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount
+                + ", bytes=" + mTotalBytes + "/" + mMaxBytes
+                + "}";
+    }
+
+    private void put(String name, byte[] data, int length) {
+        // Written under a temporary name, so concurrent readers never see a partial file.
+        final File file = new File(mDirectory, name);
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX + Thread.currentThread().getId());
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Failed to create " + mDirectory);
+            }
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data, 0, length);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "put: failed to cache " + name, e);
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            load();
+            final Long previous = mEntries.put(name, (long) length);
+            mTotalBytes += length - (previous != null ? previous : 0);
+            trim();
+        }
+    }
+
+    // Called with the lock held.
+    private void trim() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            mEvictionCount++;
+            iterator.remove();
+        }
+    }
+
+    // Called with the lock held. Lists the directory on first use rather than in the
+    // constructor, so creating the cache doesn't touch the disk.
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().contains(TEMP_SUFFIX)) {
+                // Left behind by a crash.
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+        trim();
+    }
+}
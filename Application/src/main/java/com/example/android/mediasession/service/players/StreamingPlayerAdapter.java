@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.service.PlaybackInfoListener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link MediaPlayerAdapter} that streams music from a media server over HTTP.
+ * <p>
+ * Bundled tracks are fetched from the server by their asset name, resolved against the
+ * server's base URL; tracks with an {@code http(s)} URL are fetched from there, and scanned
+ * files are still played from disk. Everything fetched goes through a {@link CachingProxy},
+ * so replays and seeks back are served from a byte-budgeted on-disk cache.
+ */
+public final class StreamingPlayerAdapter extends MediaPlayerAdapter {
+
+    private static final String TAG = StreamingPlayerAdapter.class.getSimpleName();
+
+    private static final String CACHE_DIR = "stream_cache";
+    private static final long MAX_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int SEGMENT_BYTES = 256 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    private final String mServerUrl;
+    private final CachingProxy mProxy;
+
+    /**
+     * @param serverUrl base URL that bundled tracks' asset names are resolved against.
+     */
+    public StreamingPlayerAdapter(Context context,
+                                  PlaybackInfoListener listener,
+                                  @NonNull String serverUrl) {
+        super(context, listener);
+        mServerUrl = serverUrl;
+        mProxy = new CachingProxy(
+                new SegmentCache(new File(context.getCacheDir(), CACHE_DIR),
+                                 MAX_CACHE_BYTES,
+                                 SEGMENT_BYTES),
+                CONNECT_TIMEOUT_MS,
+                READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param serverUrl base URL that bundled tracks are resolved against, or null if there is
+     *                  no server.
+     * @return the URL a track is fetched from, or null if it's on local storage or there is no
+     * server to fetch it from.
+     */
+    @Nullable
+    public static String getRemoteUrl(@Nullable String serverUrl, @NonNull String filename) {
+        if (filename.startsWith("/")) {
+            return null;
+        }
+        if (isRemote(filename)) {
+            return filename;
+        }
+        if (serverUrl == null) {
+            return null;
+        }
+        return (serverUrl.endsWith("/") ? serverUrl : serverUrl + '/')
+                + Uri.encode(filename, "/");
+    }
+
+    @Override
+    protected void setDataSource(MediaPlayer mediaPlayer, String filename) throws IOException {
+        final String url = getRemoteUrl(mServerUrl, filename);
+        if (url == null) {
+            super.setDataSource(mediaPlayer, filename);
+            return;
+        }
+        mediaPlayer.setDataSource(mProxy.getProxyUrl(url));
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        Log.d(TAG, "onStop: " + mProxy);
+    }
+
+    @Override
+    protected void onRelease() {
+        mProxy.shutdown();
+    }
+}
@@ -17,6 +17,11 @@
 package com.example.android.mediasession.ui;
 
 import android.content.Context;
+import android.content.DialogInterface;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaBrowserCompat;
@@ -24,21 +29,34 @@ import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.text.InputType;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.android.mediasession.R;
 import com.example.android.mediasession.client.MediaBrowserHelper;
 import com.example.android.mediasession.service.MusicService;
-import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.contentcatalogs.BrowseTree;
+import com.example.android.mediasession.service.contentcatalogs.AlbumArtProvider;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = MainActivity.class.getSimpleName();
+
     private ImageView mAlbumArt;
     private TextView mTitleTextView;
     private TextView mArtistTextView;
@@ -46,8 +64,10 @@ public class MainActivity extends AppCompatActivity {
     private MediaSeekBar mSeekBarAudio;
 
     private MediaBrowserHelper mMediaBrowserHelper;
+    private AlbumArtTask mAlbumArtTask;
 
     private boolean mIsPlaying;
+    private String mMediaId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -80,6 +100,92 @@ public class MainActivity extends AppCompatActivity {
         super.onStop();
         mSeekBarAudio.disconnectController();
         mMediaBrowserHelper.onStop();
+        cancelAlbumArtTask();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_scan:
+                // Without a directory, the service rescans the one it scanned last.
+                mMediaBrowserHelper.sendCommand(MusicService.COMMAND_SCAN, null, null);
+                return true;
+            case R.id.action_download:
+                if (mMediaId != null) {
+                    final Bundle extras = new Bundle();
+                    extras.putStringArrayList(MusicService.EXTRA_MEDIA_IDS,
+                                              new ArrayList<>(Collections.singletonList(mMediaId)));
+                    mMediaBrowserHelper.sendCommand(MusicService.COMMAND_DOWNLOAD, extras, null);
+                }
+                return true;
+            case R.id.action_stream_server:
+                showStreamServerDialog();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showStreamServerDialog() {
+        final EditText url = new EditText(this);
+        url.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        url.setHint(R.string.stream_server_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_stream_server)
+                .setView(url)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String text = url.getText().toString().trim();
+                        final Bundle extras = new Bundle();
+                        extras.putString(MusicService.EXTRA_STREAM_SERVER_URL,
+                                         text.isEmpty() ? null : text);
+                        mMediaBrowserHelper.sendCommand(
+                                MusicService.COMMAND_SET_STREAM_SERVER, extras, null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void cancelAlbumArtTask() {
+        if (mAlbumArtTask != null) {
+            mAlbumArtTask.cancel(false);
+            mAlbumArtTask = null;
+        }
+    }
+
+    /**
+     * Loads album art from the URI in the session metadata, off the main thread.
+     */
+    private class AlbumArtTask extends AsyncTask<Uri, Void, Bitmap> {
+        @Override
+        protected Bitmap doInBackground(Uri... uris) {
+            try {
+                final InputStream in = getContentResolver().openInputStream(uris[0]);
+                try {
+                    return BitmapFactory.decodeStream(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "AlbumArtTask: failed to load " + uris[0], e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mAlbumArtTask == this) {
+                mAlbumArt.setImageBitmap(bitmap);
+                mAlbumArtTask = null;
+            }
+        }
     }
 
     /**
@@ -123,20 +229,23 @@ public class MainActivity extends AppCompatActivity {
             mSeekBarAudio.setMediaController(mediaController);
         }
 
+        @NonNull
+        @Override
+        protected String getSubscriptionMediaId(@NonNull String rootMediaId) {
+            // The root only holds browsable categories; this sample plays every track.
+            return BrowseTree.ALL_TRACKS_ID;
+        }
+
         @Override
         protected void onChildrenLoaded(@NonNull String parentId,
                                         @NonNull List<MediaBrowserCompat.MediaItem> children) {
             super.onChildrenLoaded(parentId, children);
 
-            final MediaControllerCompat mediaController = getMediaController();
-
-            // Queue up all media items for this simple sample.
-            for (final MediaBrowserCompat.MediaItem mediaItem : children) {
-                mediaController.addQueueItem(mediaItem.getDescription());
-            }
-
-            // Call prepare now so pressing play just works.
-            mediaController.getTransportControls().prepare();
+            // Call prepare now so pressing play just works. An empty search keeps the queue
+            // the service already has, restored from its last run, and only queues up all
+            // media items if there is none; enqueueing them on every connect would grow the
+            // saved queue each time the app is opened.
+            getMediaController().getTransportControls().prepareFromSearch("", null);
         }
     }
 
@@ -161,13 +270,22 @@ public class MainActivity extends AppCompatActivity {
             if (mediaMetadata == null) {
                 return;
             }
+            mMediaId = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
             mTitleTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
             mArtistTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
-            mAlbumArt.setImageBitmap(MusicLibrary.getAlbumBitmap(
-                    MainActivity.this,
-                    mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)));
+            cancelAlbumArtTask();
+            final String artUri =
+                    mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+            if (artUri == null) {
+                mAlbumArt.setImageBitmap(null);
+                return;
+            }
+            // The art view fills the width of the screen.
+            final int artSize = getResources().getDisplayMetrics().widthPixels;
+            mAlbumArtTask = new AlbumArtTask();
+            mAlbumArtTask.execute(AlbumArtProvider.withSize(Uri.parse(artUri), artSize));
         }
 
         @Override
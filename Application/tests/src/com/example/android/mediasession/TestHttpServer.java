@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP server on the loopback interface for tests of code that streams or downloads media.
+ * <p>
+ * Serves byte arrays by path, one request per connection, with single range requests and
+ * {@code If-Range} unless range support is turned off. Responses can be throttled, and cut
+ * off part way to make clients retry.
+ */
+public final class TestHttpServer {
+
+    private static final int WRITE_SIZE = 4 * 1024;
+
+    private final ServerSocket mServerSocket;
+
+    // All guarded by "this".
+    private final HashMap<String, Resource> mResources = new HashMap<>();
+    private final List<String> mRanges = new ArrayList<>();
+    private final List<String> mIfRanges = new ArrayList<>();
+    private boolean mRangesSupported = true;
+    private long mWriteDelayMs;
+    private long mFailAfterBytes;
+    private int mFailuresLeft;
+    private int mRequestCount;
+    private int mActiveCount;
+
+    private static final class Resource {
+        final byte[] mBody;
+        final Map<String, String> mHeaders;
+
+        Resource(byte[] body, Map<String, String> headers) {
+            mBody = body;
+            mHeaders = headers;
+        }
+    }
+
+    public TestHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "test-http-server").start();
+    }
+
+    /**
+     * Serves {@code body} at {@code path}, replacing whatever was there.
+     *
+     * @return the URL to fetch it from.
+     */
+    public String put(String path, byte[] body) {
+        return put(path, body, new HashMap<String, String>());
+    }
+
+    /**
+     * Same as {@link #put(String, byte[])}, with extra response headers such as
+     * {@code ETag}, which is also what {@code If-Range} is checked against.
+     */
+    public synchronized String put(String path, byte[] body, Map<String, String> headers) {
+        mResources.put(path, new Resource(body, headers));
+        return getUrl(path);
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Without range support every request is answered with the whole body.
+     */
+    public synchronized void setRangesSupported(boolean supported) {
+        mRangesSupported = supported;
+    }
+
+    /**
+     * Sleeps {@code delayMs} between writes of a few KB, to keep responses in flight.
+     */
+    public synchronized void setWriteDelayMs(long delayMs) {
+        mWriteDelayMs = delayMs;
+    }
+
+    /**
+     * Closes the connection after {@code bytes} of the body of each of the next {@code count}
+     * responses longer than that.
+     */
+    public synchronized void failAfter(long bytes, int count) {
+        mFailAfterBytes = bytes;
+        mFailuresLeft = count;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the {@code Range} header of every request so far, null where there was none.
+     */
+    public synchronized List<String> getRanges() {
+        return new ArrayList<>(mRanges);
+    }
+
+    /**
+     * @return the {@code If-Range} header of every request so far, null where there was none.
+     */
+    public synchronized List<String> getIfRanges() {
+        return new ArrayList<>(mIfRanges);
+    }
+
+    /**
+     * Waits until no connection is open, e.g. for a client that was shut down to let go.
+     */
+    public synchronized void awaitIdle(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mActiveCount > 0 && System.currentTimeMillis() < deadline) {
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    public synchronized void resetCounts() {
+        mRequestCount = 0;
+        mRanges.clear();
+        mIfRanges.clear();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                mActiveCount++;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away.
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Nothing to do.
+                        }
+                        synchronized (TestHttpServer.this) {
+                            mActiveCount--;
+                            TestHttpServer.this.notifyAll();
+                        }
+                    }
+                }
+            }, "test-http-connection").start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        final HashMap<String, String> requestHeaders = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                requestHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                   line.substring(colon + 1).trim());
+            }
+        }
+        final String path = requestLine.split(" ")[1];
+        final String range = requestHeaders.get("range");
+        final String ifRange = requestHeaders.get("if-range");
+
+        final Resource resource;
+        final boolean rangesSupported;
+        final long writeDelayMs;
+        synchronized (this) {
+            mRequestCount++;
+            mRanges.add(range);
+            mIfRanges.add(ifRange);
+            resource = mResources.get(path);
+            rangesSupported = mRangesSupported;
+            writeDelayMs = mWriteDelayMs;
+        }
+        if (resource == null) {
+            write(out, "HTTP/1.1 404 Not Found\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+            return;
+        }
+
+        final int length = resource.mBody.length;
+        final boolean useRange = range != null && rangesSupported
+                && (ifRange == null || ifRange.equals(resource.mHeaders.get("ETag")));
+        long first = 0;
+        long last = length - 1;
+        if (useRange) {
+            final long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                write(out, "HTTP/1.1 416 Range Not Satisfiable\r\nConnection: close\r\n"
+                        + "Content-Range: bytes */" + length + "\r\nContent-Length: 0\r\n\r\n");
+                return;
+            }
+            first = bounds[0];
+            last = bounds[1];
+        }
+
+        long failAfter = -1;
+        synchronized (this) {
+            if (mFailuresLeft > 0 && last - first + 1 > mFailAfterBytes) {
+                mFailuresLeft--;
+                failAfter = mFailAfterBytes;
+            }
+        }
+
+        final StringBuilder response = new StringBuilder(useRange
+                ? "HTTP/1.1 206 Partial Content\r\n"
+                : "HTTP/1.1 200 OK\r\n");
+        response.append("Connection: close\r\nContent-Type: audio/mpeg\r\nContent-Length: ")
+                .append(last - first + 1).append("\r\n");
+        if (rangesSupported) {
+            response.append("Accept-Ranges: bytes\r\n");
+        }
+        if (useRange) {
+            response.append("Content-Range: bytes ").append(first).append('-').append(last)
+                    .append('/').append(length).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : resource.mHeaders.entrySet()) {
+            response.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+        }
+        write(out, response.append("\r\n").toString());
+
+        long position = first;
+        long written = 0;
+        while (position <= last) {
+            int count = (int) Math.min(WRITE_SIZE, last - position + 1);
+            if (failAfter >= 0) {
+                if (written >= failAfter) {
+                    return;
+                }
+                count = (int) Math.min(count, failAfter - written);
+            }
+            out.write(resource.mBody, (int) position, count);
+            out.flush();
+            position += count;
+            written += count;
+            if (writeDelayMs > 0) {
+                try {
+                    Thread.sleep(writeDelayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length());
+        final int dash = spec.indexOf('-');
+        final long first;
+        final long last;
+        if (dash == 0) {
+            first = Math.max(0, length - Long.parseLong(spec.substring(1)));
+            last = length - 1;
+        } else {
+            first = Long.parseLong(spec.substring(0, dash));
+            last = dash == spec.length() - 1
+                    ? length - 1
+                    : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+        }
+        return first <= last ? new long[]{first, last} : null;
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v4.os.ResultReceiver;
+
+import com.example.android.mediasession.service.contentcatalogs.BrowseTree;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link MusicService} through a browser, editing, rescanning and restoring the queue
+ * while the player already has the next item, and checks which item plays once the current one
+ * completes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MusicServiceQueueTest {
+
+    private static final String JAZZ = "Jazz_In_Paris";
+    private static final String ROCK = "The_Coldest_Shoulder";
+    // How much of the current track is left to play when the test edits around it.
+    private static final long TAIL_MS = 1500;
+    private static final int TIMEOUT_MS = 15000;
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private Context mContext;
+    private File mDirectory;
+    private File mScannedFile;
+    private MediaBrowserCompat mBrowser;
+    private MediaControllerCompat mController;
+    private String mToken;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(mContext.getFilesDir(), "queue-test-" + System.nanoTime());
+        assertTrue(mDirectory.mkdirs());
+        mScannedFile = new File(mDirectory, "scanned.mp3");
+        copyAsset("jazz_in_paris.mp3", mScannedFile);
+        connect();
+        scan(mDirectory);
+        waitFor("scanned track in the catalog", new Condition() {
+            @Override
+            public boolean isMet() {
+                return MusicLibrary.getCatalog().getOrdinal(mScannedFile.getPath()) >= 0;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mController != null) {
+            mController.getTransportControls().stop();
+            // Back to the directory the app scans by default.
+            final File music = mContext.getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+            if (music != null) {
+                scan(music);
+            }
+        }
+        disconnect();
+        if (mScannedFile != null) {
+            mScannedFile.delete();
+        }
+        if (mDirectory != null) {
+            mDirectory.delete();
+        }
+    }
+
+    @Test
+    public void editedQueuePlaysNewNext() throws Exception {
+        final List<MediaSessionCompat.QueueItem> queue = playQueueOf(JAZZ, ROCK, JAZZ);
+        seekToTail();
+        // The player already holds the rock track as its next one.
+        mController.removeQueueItem(queue.get(1).getDescription());
+
+        // The same track again is played by a player of its own.
+        waitForActiveItem(queue.get(2).getQueueId(), JAZZ);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mController.getPlaybackState().getState());
+        assertEquals(2, mController.getQueue().size());
+    }
+
+    @Test
+    public void rescannedQueueEndsWithoutDroppedTrack() throws Exception {
+        final List<MediaSessionCompat.QueueItem> queue =
+                playQueueOf(JAZZ, mScannedFile.getPath());
+        assertTrue(mScannedFile.delete());
+        scan(mDirectory);
+        waitFor("dropped track removed from the queue", new Condition() {
+            @Override
+            public boolean isMet() {
+                return mController.getQueue().size() == 1;
+            }
+        });
+        seekToTail();
+
+        waitFor("end of the queue", new Condition() {
+            @Override
+            public boolean isMet() {
+                return mController.getPlaybackState().getState()
+                        != PlaybackStateCompat.STATE_PLAYING;
+            }
+        });
+        assertEquals(queue.get(0).getQueueId(),
+                     mController.getPlaybackState().getActiveQueueItemId());
+        assertEquals(JAZZ, mController.getMetadata().getDescription().getMediaId());
+    }
+
+    @Test
+    public void restoredQueuePlaysSavedNext() throws Exception {
+        final List<MediaSessionCompat.QueueItem> queue = playQueueOf(JAZZ, ROCK);
+        mController.getTransportControls().stop();
+        final String token = mToken;
+        // A new instance of the service restores the queue from the journal.
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (token.equals(mToken)) {
+            assertTrue("service not recreated", System.currentTimeMillis() < deadline);
+            disconnect();
+            Thread.sleep(100);
+            connect();
+        }
+        waitFor("restored queue", new Condition() {
+            @Override
+            public boolean isMet() {
+                final List<MediaSessionCompat.QueueItem> restored = mController.getQueue();
+                return restored != null && restored.size() == queue.size();
+            }
+        });
+        final List<MediaSessionCompat.QueueItem> restored = mController.getQueue();
+        for (int i = 0; i < queue.size(); i++) {
+            assertEquals(queue.get(i).getQueueId(), restored.get(i).getQueueId());
+        }
+
+        mController.getTransportControls().play();
+        waitForActiveItem(queue.get(0).getQueueId(), JAZZ);
+        waitForState(PlaybackStateCompat.STATE_PLAYING);
+        seekToTail();
+        waitForActiveItem(queue.get(1).getQueueId(), ROCK);
+    }
+
+    /**
+     * Replaces the queue with {@code mediaIds}, in order, and plays the first one.
+     *
+     * @return the queue.
+     */
+    private List<MediaSessionCompat.QueueItem> playQueueOf(final String... mediaIds)
+            throws Exception {
+        final Bundle extras = new Bundle();
+        extras.putString(MusicService.EXTRA_PARENT_MEDIA_ID, BrowseTree.ALL_TRACKS_ID);
+        mController.getTransportControls().playFromMediaId(mediaIds[0], extras);
+        waitFor("first track playing", new Condition() {
+            @Override
+            public boolean isMet() {
+                final MediaMetadataCompat metadata = mController.getMetadata();
+                return metadata != null
+                        && mediaIds[0].equals(metadata.getDescription().getMediaId());
+            }
+        });
+        // Whatever else the catalog queued goes, so the rest can be added in order.
+        for (MediaSessionCompat.QueueItem item : mController.getQueue()) {
+            if (!mediaIds[0].equals(item.getDescription().getMediaId())) {
+                mController.removeQueueItem(item.getDescription());
+            }
+        }
+        for (int i = 1; i < mediaIds.length; i++) {
+            mController.addQueueItem(new MediaDescriptionCompat.Builder()
+                                             .setMediaId(mediaIds[i])
+                                             .build());
+        }
+        waitFor("queue of " + mediaIds.length, new Condition() {
+            @Override
+            public boolean isMet() {
+                final List<MediaSessionCompat.QueueItem> queue = mController.getQueue();
+                if (queue == null || queue.size() != mediaIds.length) {
+                    return false;
+                }
+                for (int i = 0; i < mediaIds.length; i++) {
+                    if (!mediaIds[i].equals(queue.get(i).getDescription().getMediaId())) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        waitForState(PlaybackStateCompat.STATE_PLAYING);
+        return new ArrayList<>(mController.getQueue());
+    }
+
+    private void seekToTail() throws Exception {
+        final long duration = mController.getMetadata()
+                .getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        mController.getTransportControls().seekTo(duration - TAIL_MS);
+        waitFor("seek to the tail", new Condition() {
+            @Override
+            public boolean isMet() {
+                return mController.getPlaybackState().getPosition() >= duration - 2 * TAIL_MS;
+            }
+        });
+    }
+
+    private void waitForActiveItem(final long queueId, final String mediaId) throws Exception {
+        waitFor("queue item " + queueId + " active", new Condition() {
+            @Override
+            public boolean isMet() {
+                final MediaMetadataCompat metadata = mController.getMetadata();
+                return mController.getPlaybackState().getActiveQueueItemId() == queueId
+                        && metadata != null
+                        && mediaId.equals(metadata.getDescription().getMediaId());
+            }
+        });
+    }
+
+    private void waitForState(final int state) throws Exception {
+        waitFor("state " + state, new Condition() {
+            @Override
+            public boolean isMet() {
+                final PlaybackStateCompat playbackState = mController.getPlaybackState();
+                return playbackState != null && playbackState.getState() == state;
+            }
+        });
+    }
+
+    private static void waitFor(String what, Condition condition) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.isMet()) {
+            assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private void scan(File directory) throws Exception {
+        final Bundle extras = new Bundle();
+        extras.putString(MusicService.EXTRA_SCAN_DIRECTORY, directory.getAbsolutePath());
+        extras.putString(MusicService.EXTRA_COMMAND_TOKEN, mToken);
+        final BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        mController.sendCommand(MusicService.COMMAND_SCAN, extras,
+                new ResultReceiver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    protected void onReceiveResult(int resultCode, Bundle resultData) {
+                        results.add(resultCode);
+                    }
+                });
+        // Only a rejected scan answers; an accepted one shows in the catalog.
+        assertNull(results.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    private void connect() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBrowser = new MediaBrowserCompat(
+                        mContext,
+                        new ComponentName(mContext, MusicService.class),
+                        new MediaBrowserCompat.ConnectionCallback() {
+                            @Override
+                            public void onConnected() {
+                                connected.countDown();
+                            }
+                        },
+                        null);
+                mBrowser.connect();
+            }
+        });
+        assertTrue("not connected", connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final Bundle extras = mBrowser.getExtras();
+        assertNotNull(extras);
+        mToken = extras.getString(MusicService.EXTRA_COMMAND_TOKEN);
+        assertNotNull(mToken);
+        mController = new MediaControllerCompat(mContext, mBrowser.getSessionToken());
+    }
+
+    private void disconnect() {
+        final MediaBrowserCompat browser = mBrowser;
+        if (browser == null) {
+            return;
+        }
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                browser.disconnect();
+            }
+        });
+        mBrowser = null;
+        mController = null;
+    }
+
+    private void copyAsset(String name, File file) throws IOException {
+        final InputStream in = mContext.getAssets().open(name);
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cold start benchmark: the time until the first page of browse results is ready, either
+ * building the catalog in memory as {@link MusicLibrary}'s static initializer does, or mapping
+ * a {@link CatalogSnapshot} of it. Logs the median of a few runs of each at several sizes, and
+ * fails if the snapshot isn't the faster of the two for a large catalog.
+ * <p>
+ * The snapshot has just been written, so its pages come from the page cache rather than
+ * storage; a real cold start also pays for reading the few pages the first browse touches.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CatalogSnapshotColdStartTest {
+
+    private static final String TAG = CatalogSnapshotColdStartTest.class.getSimpleName();
+
+    private static final int RUNS = 5;
+    private static final int PAGE_SIZE = 50;
+    private static final long SOURCE_VERSION = 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                         "snapshot-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void builtInCatalog() throws IOException {
+        compare(new CatalogSource() {
+            @Override
+            public MusicCatalog build() {
+                final MusicCatalog.Builder builder = new MusicCatalog.Builder();
+                MusicLibrary.addBuiltInTracks(builder);
+                return builder.build();
+            }
+        });
+    }
+
+    @Test
+    public void catalogOf10k() throws IOException {
+        compare(newSyntheticSource(10000));
+    }
+
+    @Test
+    public void catalogOf100k() throws IOException {
+        final long[] times = compare(newSyntheticSource(100000));
+        assertTrue("Mapping took " + times[1] + "us, building " + times[0] + "us",
+                   times[1] < times[0]);
+    }
+
+    private interface CatalogSource {
+        MusicCatalog build();
+    }
+
+    private static CatalogSource newSyntheticSource(final int trackCount) {
+        return new CatalogSource() {
+            @Override
+            public MusicCatalog build() {
+                return TestCatalogs.build(trackCount);
+            }
+        };
+    }
+
+    /**
+     * @return the median time to the first page from building the catalog, and from mapping
+     * its snapshot, in microseconds.
+     */
+    private long[] compare(CatalogSource source) throws IOException {
+        final long[] buildUs = new long[RUNS];
+        MusicCatalog catalog = null;
+        List<MediaBrowserCompat.MediaItem> builtPage = null;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            catalog = source.build();
+            builtPage = catalog.getMediaItems(0, PAGE_SIZE);
+            buildUs[run] = (System.nanoTime() - start) / 1000;
+        }
+
+        CatalogSnapshot.write(catalog, mFile, SOURCE_VERSION);
+        final long[] mapUs = new long[RUNS];
+        List<MediaBrowserCompat.MediaItem> mappedPage = null;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            final CatalogSnapshot snapshot = CatalogSnapshot.open(mFile, SOURCE_VERSION);
+            assertNotNull(snapshot);
+            mappedPage = snapshot.getMediaItems(0, PAGE_SIZE);
+            mapUs[run] = (System.nanoTime() - start) / 1000;
+        }
+
+        // Both paths serve the same page.
+        assertEquals(builtPage.size(), mappedPage.size());
+        for (int i = 0; i < builtPage.size(); i++) {
+            assertEquals(builtPage.get(i).getMediaId(), mappedPage.get(i).getMediaId());
+        }
+
+        final long[] medians = {median(buildUs), median(mapUs)};
+        Log.i(TAG, catalog.size() + " tracks: building " + medians[0] + "us, mapping "
+                + medians[1] + "us");
+        return medians;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
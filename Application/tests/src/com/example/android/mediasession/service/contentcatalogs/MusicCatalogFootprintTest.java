@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Heap footprint benchmark of {@link MusicCatalog}: builds catalogs of synthetic tracks and
+ * logs the heap each retains per track, failing if it regresses towards what per-track
+ * {@code MediaMetadataCompat} objects used to cost (about 850 bytes).
+ * <p>
+ * Sizes that need more heap than the device allows an app are skipped.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MusicCatalogFootprintTest {
+
+    private static final String TAG = MusicCatalogFootprintTest.class.getSimpleName();
+
+    private static final int MAX_BYTES_PER_TRACK = 400;
+
+    @Test
+    public void footprint10k() {
+        measure(10000);
+    }
+
+    @Test
+    public void footprint100k() {
+        measure(100000);
+    }
+
+    @Test
+    public void footprint1m() {
+        measure(1000000);
+    }
+
+    private static void measure(int trackCount) {
+        // The builder holds every track's strings on top of the catalog being built.
+        assumeTrue("Not enough heap for " + trackCount + " tracks",
+                   Runtime.getRuntime().maxMemory() > 3L * trackCount * MAX_BYTES_PER_TRACK);
+
+        final long before = getUsedHeap();
+        final MusicCatalog catalog = TestCatalogs.build(trackCount);
+        final long bytesPerTrack = (getUsedHeap() - before) / trackCount;
+        Log.i(TAG, trackCount + " tracks: " + bytesPerTrack + " bytes per track");
+
+        // Also keeps the catalog reachable until measured.
+        assertEquals(trackCount, catalog.size());
+        assertTrue(bytesPerTrack + " bytes per track", bytesPerTrack <= MAX_BYTES_PER_TRACK);
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        // A few rounds, since one collection may leave objects that finalization frees.
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
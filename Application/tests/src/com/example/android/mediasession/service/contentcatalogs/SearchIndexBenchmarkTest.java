@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+/**
+ * Query time benchmark of {@link SearchIndex} over a catalog of 200k synthetic tracks: logs the
+ * median time of prefix and multi-token queries, failing if one takes long enough to be felt
+ * while typing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SearchIndexBenchmarkTest {
+
+    private static final String TAG = SearchIndexBenchmarkTest.class.getSimpleName();
+
+    private static final int TRACK_COUNT = 200000;
+    private static final int LIMIT = 100;
+    private static final int RUNS = 21;
+    // Searches run on the loader threads, but results this much later lag behind typing.
+    private static final long MAX_QUERY_MS = 100;
+
+    private static MusicCatalog sCatalog;
+    private static SearchIndex sIndex;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sCatalog = TestCatalogs.build(TRACK_COUNT);
+        final long start = SystemClock.elapsedRealtime();
+        sIndex = sCatalog.getSearchIndex();
+        Log.i(TAG, TRACK_COUNT + " tracks: index built in "
+                + (SystemClock.elapsedRealtime() - start) + "ms, " + sIndex.getTermCount()
+                + " terms");
+    }
+
+    @Test
+    public void shortPrefix() {
+        // Matches every track, the most postings a query can have.
+        assertEquals(LIMIT, measure("tr").length);
+    }
+
+    @Test
+    public void numberPrefix() {
+        // Matches thousands of terms, the numbers of tracks, albums and artists, whose postings
+        // are walked in full.
+        assertEquals(LIMIT, measure("12").length);
+    }
+
+    @Test
+    public void multiToken() {
+        // Album 6170 is by artist 1234.
+        final int[] found = measure("artist 1234 album 6170");
+        assertTrue(found.length > 0);
+        assertEquals("Album 6170", sCatalog.getAlbum(found[0]));
+    }
+
+    @Test
+    public void multiTokenPrefix() {
+        final int[] found = measure("arti 1234 alb 617");
+        assertTrue(found.length > 0);
+        assertEquals("Artist 1234", sCatalog.getArtist(found[0]));
+    }
+
+    @Test
+    public void noMatch() {
+        assertEquals(0, measure("track 1234 zz").length);
+    }
+
+    /**
+     * @return the results of {@code text}, once its median query time has been checked.
+     */
+    private static int[] measure(String text) {
+        final long[] times = new long[RUNS];
+        int[] found = null;
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            found = sIndex.search(text, LIMIT);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        final long medianUs = times[RUNS / 2] / 1000;
+        Log.i(TAG, "\"" + text + "\": " + found.length + " results in " + medianUs + "us");
+        assertTrue("\"" + text + "\" took " + medianUs + "us",
+                   medianUs <= MAX_QUERY_MS * 1000);
+        return found;
+    }
+}
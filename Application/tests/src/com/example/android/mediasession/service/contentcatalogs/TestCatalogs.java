@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+/**
+ * Synthetic catalogs for benchmarks: 10 tracks per album, 5 albums per artist and 20 genres.
+ */
+final class TestCatalogs {
+
+    private static final int TRACKS_PER_ALBUM = 10;
+    private static final int ALBUMS_PER_ARTIST = 5;
+    private static final int GENRES = 20;
+
+    private TestCatalogs() {
+    }
+
+    static MusicCatalog build(int trackCount) {
+        final MusicCatalog.Builder builder = new MusicCatalog.Builder();
+        for (int i = 0; i < trackCount; i++) {
+            final int album = i / TRACKS_PER_ALBUM;
+            final int artist = album / ALBUMS_PER_ARTIST;
+            builder.add("track_" + i,
+                        "Track " + i,
+                        "Artist " + artist,
+                        "Album " + album,
+                        null,
+                        "Genre " + album % GENRES,
+                        180000 + i % 120000,
+                        "content://com.example.android.mediasession/art/" + album,
+                        "track_" + i + ".mp3",
+                        0);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+
+import com.example.android.mediasession.TestHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads from a {@link TestHttpServer} with a {@link TrackDownloader}, checking the file it
+ * registers and the requests it makes on the way.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackDownloaderTest {
+
+    private static final String MEDIA_ID = "test_download";
+    // Matches TrackDownloader's.
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // Two whole chunks and half of one.
+    private static final int MEDIA_LENGTH = 2 * CHUNK_SIZE + CHUNK_SIZE / 2;
+    private static final int TIMEOUT_MS = 10000;
+
+    private TestHttpServer mServer;
+    private File mDirectory;
+    private TrackDownloader mDownloader;
+    private final BlockingQueue<Boolean> mResults = new LinkedBlockingQueue<>();
+    private byte[] mMedia;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestHttpServer();
+        mMedia = newMedia(MEDIA_LENGTH, 1);
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                              "download-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mDownloader != null) {
+            mDownloader.shutdown();
+        }
+        mServer.close();
+        MusicLibrary.setDownloadedFile(MEDIA_ID, null);
+        deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void downloadsVerifiesAndRegisters() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia);
+        mDownloader = newDownloader(2);
+        assertTrue(download(url, sha256(mMedia)));
+
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+        assertEquals("bytes=0-0", mServer.getRanges().get(0));
+        assertEquals(1 + 3, mServer.getRequestCount());
+        // Already downloaded.
+        assertFalse(download(url, null));
+    }
+
+    @Test
+    public void resumesChunkFromWhereItFailed() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia);
+        mServer.failAfter(300000, 1);
+        mDownloader = newDownloader(1);
+        download(url, sha256(mMedia));
+
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+        assertEquals(Arrays.asList("bytes=0-0",
+                                   "bytes=0-" + (CHUNK_SIZE - 1),
+                                   "bytes=300000-" + (CHUNK_SIZE - 1),
+                                   "bytes=" + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1),
+                                   "bytes=" + 2 * CHUNK_SIZE + "-" + (MEDIA_LENGTH - 1)),
+                     mServer.getRanges());
+    }
+
+    @Test
+    public void restoreResumesUnfinishedDownload() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia, etag("\"v1\""));
+        interruptAfterFirstChunk(url, sha256(mMedia));
+
+        mServer.resetCounts();
+        mDownloader = newDownloader(1);
+        restore();
+
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+        // Only the chunks that weren't finished are fetched again.
+        assertEquals(Arrays.asList("bytes=0-0",
+                                   "bytes=" + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1),
+                                   "bytes=" + 2 * CHUNK_SIZE + "-" + (MEDIA_LENGTH - 1)),
+                     mServer.getRanges());
+    }
+
+    @Test
+    public void startsOverWhenETagChanges() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia, etag("\"v1\""));
+        interruptAfterFirstChunk(url, null);
+
+        // Same length, different content.
+        final byte[] changed = newMedia(MEDIA_LENGTH, 2);
+        mServer.put("/track.mp3", changed, etag("\"v2\""));
+        mServer.resetCounts();
+        mDownloader = newDownloader(1);
+        restore();
+
+        assertTrue(awaitResult());
+        assertDownloaded(changed);
+        assertTrue(mServer.getRanges().contains("bytes=0-" + (CHUNK_SIZE - 1)));
+    }
+
+    @Test
+    public void startsOverWhenLengthChanges() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia);
+        interruptAfterFirstChunk(url, null);
+
+        final byte[] changed = newMedia(MEDIA_LENGTH + 1000, 2);
+        mServer.put("/track.mp3", changed);
+        mServer.resetCounts();
+        mDownloader = newDownloader(1);
+        restore();
+
+        assertTrue(awaitResult());
+        assertDownloaded(changed);
+        assertTrue(mServer.getRanges().contains("bytes=0-" + (CHUNK_SIZE - 1)));
+    }
+
+    @Test
+    public void changeDuringDownloadFailsAndDiscardsIt() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia, etag("\"v1\""));
+        mServer.setWriteDelayMs(2);
+        mDownloader = newDownloader(1);
+        download(url, null);
+        awaitRequest("bytes=" + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1));
+
+        // The last chunk is asked for with If-Range, and gets the whole new track instead.
+        mServer.put("/track.mp3", newMedia(MEDIA_LENGTH, 2), etag("\"v2\""));
+        assertFalse(awaitResult());
+        assertFalse(MusicLibrary.isDownloaded(MEDIA_ID));
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void checksumMismatchFailsAndDiscardsDownload() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia);
+        mDownloader = newDownloader(2);
+        download(url, sha256(new byte[]{1, 2, 3}));
+
+        assertFalse(awaitResult());
+        assertFalse(MusicLibrary.isDownloaded(MEDIA_ID));
+        assertEquals(0, mDirectory.list().length);
+
+        // Nothing of the bad download is reused.
+        mServer.resetCounts();
+        download(url, sha256(mMedia));
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+        assertTrue(mServer.getRanges().contains("bytes=0-" + (CHUNK_SIZE - 1)));
+    }
+
+    @Test
+    public void checksDigestFromServer() throws Exception {
+        final String url = mServer.put("/track.mp3", mMedia, digest(new byte[]{1, 2, 3}));
+        mDownloader = newDownloader(2);
+        download(url, null);
+        assertFalse(awaitResult());
+        assertFalse(MusicLibrary.isDownloaded(MEDIA_ID));
+
+        mServer.put("/track.mp3", mMedia, digest(mMedia));
+        download(url, null);
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+    }
+
+    @Test
+    public void downloadsWithoutRangeSupport() throws Exception {
+        mServer.setRangesSupported(false);
+        final String url = mServer.put("/track.mp3", mMedia);
+        mDownloader = newDownloader(2);
+        download(url, sha256(mMedia));
+
+        assertTrue(awaitResult());
+        assertDownloaded(mMedia);
+        // The probe, then everything in one go.
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    /**
+     * Downloads {@code url} with a downloader that is shut down, as if the process died, while
+     * it fetches the second chunk.
+     */
+    private void interruptAfterFirstChunk(String url, String sha256) throws Exception {
+        // Keeps the second chunk in flight for a while.
+        mServer.setWriteDelayMs(2);
+        mDownloader = newDownloader(1);
+        download(url, sha256);
+        awaitRequest("bytes=" + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1));
+        mDownloader.shutdown();
+        mDownloader = null;
+        // Once its connection is closed, the downloader no longer writes to the partial file.
+        mServer.awaitIdle(TIMEOUT_MS);
+        mServer.setWriteDelayMs(0);
+        assertEquals(0, mResults.size());
+    }
+
+    private void awaitRequest(String range) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mServer.getRanges().contains(range)) {
+            assertTrue(range + " not requested", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private TrackDownloader newDownloader(int maxConnections) {
+        return new TrackDownloader(mDirectory, maxConnections, TIMEOUT_MS, TIMEOUT_MS,
+                new TrackDownloader.Listener() {
+                    @Override
+                    public void onDownloadFinished(@NonNull String mediaId, boolean success) {
+                        mResults.add(success);
+                    }
+                });
+    }
+
+    private boolean download(final String url, final String sha256) {
+        final boolean[] started = new boolean[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                started[0] = mDownloader.download(MEDIA_ID, url, sha256);
+            }
+        });
+        return started[0];
+    }
+
+    private void restore() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mDownloader.restore();
+            }
+        });
+    }
+
+    private boolean awaitResult() throws InterruptedException {
+        final Boolean success = mResults.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Download didn't finish", success);
+        return success;
+    }
+
+    private void assertDownloaded(byte[] expected) throws IOException {
+        assertTrue(MusicLibrary.isDownloaded(MEDIA_ID));
+        final File file = new File(MusicLibrary.getMusicFilename(MEDIA_ID));
+        assertEquals(mDirectory, file.getParentFile());
+        assertArrayEquals(expected, readFully(file));
+        for (String name : mDirectory.list()) {
+            assertFalse(name, name.endsWith(".part") || name.endsWith(".state"));
+        }
+    }
+
+    private static byte[] newMedia(int length, long seed) {
+        final byte[] media = new byte[length];
+        new Random(seed).nextBytes(media);
+        return media;
+    }
+
+    private static Map<String, String> etag(String etag) {
+        return Collections.singletonMap("ETag", etag);
+    }
+
+    private static Map<String, String> digest(byte[] data) throws NoSuchAlgorithmException {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("Digest", "SHA-256=" + Base64.encodeToString(
+                MessageDigest.getInstance("SHA-256").digest(data), Base64.NO_WRAP));
+        return headers;
+    }
+
+    private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
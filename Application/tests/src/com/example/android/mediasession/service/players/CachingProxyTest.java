@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.players;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.mediasession.TestHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Streams through a {@link CachingProxy} from a {@link TestHttpServer}, checking what the
+ * client receives and what is fetched upstream.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CachingProxyTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    // Ten whole segments and a short one.
+    private static final int MEDIA_LENGTH = 10 * SEGMENT_SIZE + 100;
+    private static final int TIMEOUT_MS = 5000;
+
+    private TestHttpServer mServer;
+    private File mDirectory;
+    private CachingProxy mProxy;
+    private byte[] mMedia;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestHttpServer();
+        mMedia = new byte[MEDIA_LENGTH];
+        new Random(1).nextBytes(mMedia);
+        mUrl = mServer.put("/track.mp3", mMedia);
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                              "proxy-test-" + System.nanoTime());
+        mProxy = newProxy(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mProxy.shutdown();
+        mServer.close();
+        deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void servesWholeMediaAndCachesIt() throws IOException {
+        final Response first = get(mProxy.getProxyUrl(mUrl), null);
+        assertEquals(HttpURLConnection.HTTP_OK, first.mCode);
+        assertArrayEquals(mMedia, first.mBody);
+
+        mServer.resetCounts();
+        final Response second = get(mProxy.getProxyUrl(mUrl), null);
+        assertArrayEquals(mMedia, second.mBody);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        final String url = mProxy.getProxyUrl(mUrl);
+        assertRange(url, "bytes=0-99", 0, 99);
+        // Across a segment boundary.
+        assertRange(url, "bytes=1000-2099", 1000, 2099);
+        // Open ended, into the short last segment.
+        assertRange(url, "bytes=10000-", 10000, MEDIA_LENGTH - 1);
+        // Suffix.
+        assertRange(url, "bytes=-300", MEDIA_LENGTH - 300, MEDIA_LENGTH - 1);
+        // A last byte past the end is clamped.
+        assertRange(url, "bytes=5000-99999", 5000, MEDIA_LENGTH - 1);
+        assertRange(url, "bytes=42-42", 42, 42);
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() throws IOException {
+        final String url = mProxy.getProxyUrl(mUrl);
+        for (String range : Arrays.asList("bytes=" + MEDIA_LENGTH + "-",
+                                          "bytes=500-100",
+                                          "bytes=0-1,5-6",
+                                          "items=0-1",
+                                          "bytes=abc",
+                                          "bytes=12")) {
+            assertEquals(range, 416, get(url, range).mCode);
+        }
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws IOException {
+        final String url = mProxy.getProxyUrl(mUrl);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, get(url + "0", null).mCode);
+    }
+
+    @Test
+    public void seekForwardOnlyFetchesFromWhereItLands() throws IOException {
+        assertRange(mProxy.getProxyUrl(mUrl), "bytes=5000-", 5000, MEDIA_LENGTH - 1);
+        // The first segment, for the length, then everything from the segment holding 5000.
+        assertEquals(Arrays.asList("bytes=0-1023", "bytes=4096-" + (MEDIA_LENGTH - 1)),
+                     mServer.getRanges());
+    }
+
+    @Test
+    public void resumesAfterUpstreamDrop() throws IOException {
+        final String url = mProxy.getProxyUrl(mUrl);
+        assertRange(url, "bytes=0-0", 0, 0);
+        mServer.resetCounts();
+
+        mServer.failAfter(2500, 1);
+        final Response response = get(url, null);
+        assertArrayEquals(mMedia, response.mBody);
+        assertEquals(Arrays.asList("bytes=1024-" + (MEDIA_LENGTH - 1),
+                                   "bytes=" + (1024 + 2500) + "-" + (MEDIA_LENGTH - 1)),
+                     mServer.getRanges());
+
+        mServer.resetCounts();
+        assertArrayEquals(mMedia, get(url, null).mBody);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void failsAfterRepeatedUpstreamDrops() throws IOException {
+        final String url = mProxy.getProxyUrl(mUrl);
+        assertRange(url, "bytes=0-0", 0, 0);
+        mServer.resetCounts();
+
+        // Enough for the response to have started when the proxy gives up; otherwise the
+        // client may quietly retry the request.
+        mServer.failAfter(3000, 3);
+        // Depending on the client, the response ending early is an error or a short body.
+        boolean cutShort;
+        try {
+            cutShort = get(url, null).mBody.length < MEDIA_LENGTH;
+        } catch (IOException e) {
+            cutShort = true;
+        }
+        assertTrue(cutShort);
+        assertEquals(3, mServer.getRequestCount());
+
+        // Whatever was fetched is kept, and the next request completes the media.
+        assertArrayEquals(mMedia, get(url, null).mBody);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSegments() throws IOException {
+        mProxy.shutdown();
+        final long maxBytes = 4 * SEGMENT_SIZE + 100;
+        mProxy = newProxy(maxBytes);
+        final String url = mProxy.getProxyUrl(mUrl);
+        assertArrayEquals(mMedia, get(url, null).mBody);
+
+        final String key = SegmentCache.getKey(mUrl);
+        assertTrue(getCachedBytes() <= maxBytes);
+        assertFalse(new File(mDirectory, key + "_0").exists());
+        assertTrue(new File(mDirectory, key + "_10").exists());
+
+        // Evicted segments are fetched again.
+        mServer.resetCounts();
+        assertRange(url, "bytes=0-99", 0, 99);
+        assertTrue(mServer.getRequestCount() > 0);
+        assertTrue(getCachedBytes() <= maxBytes);
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameMedia() throws Exception {
+        // Keeps the requests overlapping.
+        mServer.setWriteDelayMs(5);
+        final String url = mProxy.getProxyUrl(mUrl);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Object> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Object result;
+                    try {
+                        result = get(url, null).mBody;
+                    } catch (IOException e) {
+                        result = e;
+                    }
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS * 4);
+        }
+
+        assertEquals(threads.size(), results.size());
+        for (Object result : results) {
+            assertTrue(String.valueOf(result), result instanceof byte[]);
+            assertArrayEquals(mMedia, (byte[]) result);
+        }
+        for (String name : mDirectory.list()) {
+            assertFalse(name, name.contains(".tmp"));
+        }
+        mServer.setWriteDelayMs(0);
+        mServer.resetCounts();
+        assertArrayEquals(mMedia, get(url, null).mBody);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void startsOverWhenMediaChanges() throws IOException {
+        final String upstream = mServer.put("/track.mp3", mMedia,
+                                            Collections.singletonMap("ETag", "\"v1\""));
+        final String url = mProxy.getProxyUrl(upstream);
+        assertRange(url, "bytes=0-99", 0, 99);
+        mServer.resetCounts();
+        // Continuing the media only if it is still the same.
+        assertRange(url, "bytes=2000-2099", 2000, 2099);
+        assertEquals(Collections.singletonList("\"v1\""), mServer.getIfRanges());
+
+        final byte[] changed = new byte[MEDIA_LENGTH];
+        new Random(2).nextBytes(changed);
+        mServer.put("/track.mp3", changed, Collections.singletonMap("ETag", "\"v2\""));
+        mServer.resetCounts();
+        // The server answers the next range with the whole new media, which doesn't go with
+        // what the cache holds, so that request fails. The client's HTTP stack may retry it,
+        // which then starts over.
+        Response response;
+        try {
+            response = get(url, "bytes=5000-5099");
+        } catch (IOException e) {
+            response = null;
+        }
+        assertEquals("\"v1\"", mServer.getIfRanges().get(0));
+        if (response != null && response.mBody.length == 100) {
+            assertArrayEquals(Arrays.copyOfRange(changed, 5000, 5100), response.mBody);
+        }
+
+        // Starting over, none of the old media is served from the cache.
+        assertArrayEquals(changed, get(url, null).mBody);
+    }
+
+    @Test
+    public void servesEmptyMedia() throws IOException {
+        final String url = mProxy.getProxyUrl(mServer.put("/empty.mp3", new byte[0]));
+        final Response first = get(url, null);
+        assertEquals(HttpURLConnection.HTTP_OK, first.mCode);
+        assertEquals(0, first.mBody.length);
+        assertEquals(1, mServer.getRequestCount());
+
+        mServer.resetCounts();
+        assertEquals(0, get(url, null).mBody.length);
+        assertEquals(416, get(url, "bytes=0-").mCode);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    private CachingProxy newProxy(long maxBytes) {
+        return new CachingProxy(new SegmentCache(mDirectory, maxBytes, SEGMENT_SIZE),
+                                TIMEOUT_MS, TIMEOUT_MS);
+    }
+
+    private void assertRange(String url, String range, int first, int last)
+            throws IOException {
+        final Response response = get(url, range);
+        assertEquals(range, HttpURLConnection.HTTP_PARTIAL, response.mCode);
+        assertEquals(range, "bytes " + first + "-" + last + "/" + MEDIA_LENGTH,
+                     response.mContentRange);
+        assertArrayEquals(range, Arrays.copyOfRange(mMedia, first, last + 1), response.mBody);
+    }
+
+    private long getCachedBytes() {
+        long total = 0;
+        for (File file : mDirectory.listFiles()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    private static final class Response {
+        int mCode;
+        String mContentRange;
+        byte[] mBody;
+    }
+
+    private static Response get(String url, String range) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            final Response response = new Response();
+            response.mCode = connection.getResponseCode();
+            response.mContentRange = connection.getHeaderField("Content-Range");
+            final InputStream in = response.mCode < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream()
+                    : connection.getErrorStream();
+            response.mBody = in != null ? readFully(in) : new byte[0];
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}